@@ -54,6 +54,16 @@ public class SettingsFragment extends PreferenceFragmentCompat implements
     public static final String NET_HOST_FILE = "net_hosts";
     public static final String IPV4_DNS = "IPV4_DNS";
     public static final String IS_CUS_DNS = "IS_CUS_DNS";
+    public static final String QUEUE_CAPACITY = "QUEUE_CAPACITY";
+    public static final String TUN_BATCH_SIZE = "TUN_BATCH_SIZE";
+    public static final String POOL_LEAK_DETECTION = "POOL_LEAK_DETECTION";
+    public static final String TCP_MAX_FLOWS = "TCP_MAX_FLOWS";
+    public static final String TCP_SHARDS = "TCP_SHARDS";
+    public static final String DNS_CACHE_KB = "DNS_CACHE_KB";
+    public static final String DNS_SERVE_STALE = "DNS_SERVE_STALE";
+    public static final String HOSTS_NODATA = "HOSTS_NODATA";
+    public static final String HOSTS_PARALLELISM = "HOSTS_PARALLELISM";
+    public static final String UPSTREAM_DNS = "UPSTREAM_DNS";
 
     private Handler handler = null;
 
@@ -16,30 +16,199 @@
 
 package com.github.xfalcon.vhosts.vservice;
 
+import com.github.xfalcon.vhosts.util.LogUtils;
+
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Direct buffers in a few size classes. Each class keeps a bounded shared
+ * free list, and every thread keeps a small cache in front of it so that a
+ * thread releasing what it acquired itself never touches the shared list.
+ */
 public class ByteBufferPool
 {
-    private static final int BUFFER_SIZE = 16384; // XXX: Is this ideal?
-    private static ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    private static final String TAG = ByteBufferPool.class.getSimpleName();
+
+    /** Headers only: ACK, RST, SYN-ACK */
+    public static final int SMALL = 128;
+    /** One packet read from the tun device, see {@link VhostsService#VPN_MTU} */
+    public static final int MTU = 2048;
+    /** Data read from the network */
+    public static final int LARGE = 16384;
+
+    private static final int[] SIZES = {SMALL, MTU, LARGE};
+    static final int[] RETAINED = {512, 256, 64};
+    static final int LOCAL_CACHE_SIZE = 16;
+
+    @SuppressWarnings("unchecked")
+    private static final ConcurrentLinkedQueue<ByteBuffer>[] pools = new ConcurrentLinkedQueue[SIZES.length];
+    private static final AtomicInteger[] pooled = new AtomicInteger[SIZES.length];
+    private static final Stats.Counter[] allocations = new Stats.Counter[SIZES.length];
+    private static final Stats.Counter[] discards = new Stats.Counter[SIZES.length];
+
+    static
+    {
+        for (int i = 0; i < SIZES.length; i++)
+        {
+            pools[i] = new ConcurrentLinkedQueue<>();
+            pooled[i] = new AtomicInteger();
+            allocations[i] = Stats.counter("pool." + SIZES[i] + ".allocations");
+            discards[i] = Stats.counter("pool." + SIZES[i] + ".discards");
+        }
+    }
+
+    // Bumped by clear() so that thread caches drop what they hold
+    private static volatile int generation;
+
+    private static final ThreadLocal<LocalCache> localCache = new ThreadLocal<LocalCache>()
+    {
+        @Override
+        protected LocalCache initialValue()
+        {
+            return new LocalCache();
+        }
+    };
+
+    private static final class LocalCache
+    {
+        final ByteBuffer[][] buffers = new ByteBuffer[SIZES.length][LOCAL_CACHE_SIZE];
+        final int[] counts = new int[SIZES.length];
+        int generation = ByteBufferPool.generation;
+
+        void checkGeneration()
+        {
+            if (generation == ByteBufferPool.generation) return;
+            for (int i = 0; i < SIZES.length; i++)
+            {
+                Arrays.fill(buffers[i], null);
+                counts[i] = 0;
+            }
+            generation = ByteBufferPool.generation;
+        }
+    }
+
+    private static volatile boolean leakDetection;
+    private static final Map<ByteBuffer, Throwable> outstanding = new IdentityHashMap<>();
 
     public static ByteBuffer acquire()
     {
-        ByteBuffer buffer = pool.poll();
-        if (buffer == null)
-            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE); // Using DirectBuffer for zero-copy
+        return acquire(LARGE);
+    }
+
+    /**
+     * @param minCapacity smallest acceptable capacity, at most {@link #LARGE}
+     */
+    public static ByteBuffer acquire(int minCapacity)
+    {
+        int sizeClass = sizeClass(minCapacity);
+        LocalCache cache = localCache.get();
+        cache.checkGeneration();
+        ByteBuffer buffer;
+        int count = cache.counts[sizeClass];
+        if (count > 0)
+        {
+            cache.counts[sizeClass] = --count;
+            buffer = cache.buffers[sizeClass][count];
+            cache.buffers[sizeClass][count] = null;
+        }
+        else
+        {
+            buffer = pools[sizeClass].poll();
+            if (buffer != null)
+                pooled[sizeClass].decrementAndGet();
+            else
+            {
+                buffer = ByteBuffer.allocateDirect(SIZES[sizeClass]); // Using DirectBuffer for zero-copy
+                allocations[sizeClass].inc();
+            }
+        }
+        if (leakDetection)
+            synchronized (outstanding)
+            {
+                outstanding.put(buffer, new Throwable("Acquired here"));
+            }
         return buffer;
     }
 
     public static void release(ByteBuffer buffer)
     {
+        if (leakDetection)
+            synchronized (outstanding)
+            {
+                if (outstanding.remove(buffer) == null)
+                    LogUtils.w(TAG, "Released twice or not from the pool", new Throwable());
+            }
+        int sizeClass = Arrays.binarySearch(SIZES, buffer.capacity());
+        if (sizeClass < 0) return; // Not ours
         buffer.clear();
-        pool.offer(buffer);
+        LocalCache cache = localCache.get();
+        cache.checkGeneration();
+        int count = cache.counts[sizeClass];
+        if (count < LOCAL_CACHE_SIZE)
+        {
+            cache.buffers[sizeClass][count] = buffer;
+            cache.counts[sizeClass] = count + 1;
+        }
+        else if (pooled[sizeClass].incrementAndGet() <= RETAINED[sizeClass])
+            pools[sizeClass].offer(buffer);
+        else
+        {
+            // Let the GC have it
+            pooled[sizeClass].decrementAndGet();
+            discards[sizeClass].inc();
+        }
+    }
+
+    private static int sizeClass(int minCapacity)
+    {
+        for (int i = 0; i < SIZES.length; i++)
+            if (minCapacity <= SIZES[i]) return i;
+        throw new IllegalArgumentException("No buffer class holds " + minCapacity + " bytes");
     }
 
     public static void clear()
     {
-        pool.clear();
+        generation++;
+        for (int i = 0; i < SIZES.length; i++)
+        {
+            pools[i].clear();
+            pooled[i].set(0);
+        }
+    }
+
+    /**
+     * Debug aid: remember where every buffer was acquired, so that
+     * {@link #reportLeaks()} can name the ones never released.
+     */
+    public static void setLeakDetection(boolean enabled)
+    {
+        synchronized (outstanding)
+        {
+            outstanding.clear();
+            leakDetection = enabled;
+        }
+    }
+
+    /**
+     * Logs the acquire site of every buffer still out, call once the relay threads have stopped.
+     *
+     * @return the number of such buffers
+     */
+    public static int reportLeaks()
+    {
+        synchronized (outstanding)
+        {
+            if (!leakDetection) return 0;
+            for (Throwable site : outstanding.values())
+                LogUtils.w(TAG, "Buffer never released", site);
+            int leaks = outstanding.size();
+            outstanding.clear();
+            return leaks;
+        }
     }
 }
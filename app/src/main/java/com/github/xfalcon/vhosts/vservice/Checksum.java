@@ -0,0 +1,74 @@
+/*
+ **Copyright (C) 2017  xfalcon
+ **
+ **This program is free software: you can redistribute it and/or modify
+ **it under the terms of the GNU General Public License as published by
+ **the Free Software Foundation, either version 3 of the License, or
+ **(at your option) any later version.
+ **
+ **This program is distributed in the hope that it will be useful,
+ **but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ **GNU General Public License for more details.
+ **
+ **You should have received a copy of the GNU General Public License
+ **along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **
+ */
+
+package com.github.xfalcon.vhosts.vservice;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Internet checksum (RFC 1071) helpers. Sums are kept unfolded in a long
+ * and folded once at the end; a big-endian 32 bit chunk adds up to the same
+ * folded value as its two 16 bit words, so the buffer is read 8 bytes at a time.
+ */
+public class Checksum {
+
+    /**
+     * @param offset absolute and at an even distance from the start of the summed data
+     * @return unfolded sum of the 16 bit words, an odd last byte is padded with zero
+     */
+    public static long sum(ByteBuffer buffer, int offset, int length) {
+        long sum = 0;
+        int end = offset + length;
+        int i = offset;
+        for (; i + 8 <= end; i += 8) {
+            long word = buffer.getLong(i);
+            sum += (word >>> 32) + (word & 0xFFFFFFFFL);
+        }
+        if (i + 4 <= end) {
+            sum += buffer.getInt(i) & 0xFFFFFFFFL;
+            i += 4;
+        }
+        if (i + 2 <= end) {
+            sum += buffer.getShort(i) & 0xFFFF;
+            i += 2;
+        }
+        if (i < end)
+            sum += (buffer.get(i) & 0xFF) << 8;
+        return sum;
+    }
+
+    /**
+     * @return sum of the two 16 bit halves of a 32 bit field
+     */
+    public static long sum32(long value) {
+        return ((value >>> 16) & 0xFFFF) + (value & 0xFFFF);
+    }
+
+    public static int fold(long sum) {
+        while ((sum >>> 16) != 0)
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        return (int) sum;
+    }
+
+    /**
+     * @return the checksum field for an unfolded sum
+     */
+    public static int finish(long sum) {
+        return ~fold(sum) & 0xFFFF;
+    }
+}
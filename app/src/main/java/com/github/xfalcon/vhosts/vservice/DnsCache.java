@@ -0,0 +1,397 @@
+/*
+ **Copyright (C) 2017  xfalcon
+ **
+ **This program is free software: you can redistribute it and/or modify
+ **it under the terms of the GNU General Public License as published by
+ **the Free Software Foundation, either version 3 of the License, or
+ **(at your option) any later version.
+ **
+ **This program is distributed in the hope that it will be useful,
+ **but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ **GNU General Public License for more details.
+ **
+ **You should have received a copy of the GNU General Public License
+ **along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **
+ */
+
+package com.github.xfalcon.vhosts.vservice;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Upstream responses kept as they came off the wire, keyed by their question,
+ * and replayed into later queries with the TTLs counted down. A response lives
+ * as long as its shortest TTL, or for a negative one the SOA minimum, and the
+ * least recently used go first once the entries outgrow the memory cap.
+ * Queries with and without OPT, DO or CD are told apart as upstream tells
+ * them apart, and a response larger than a device takes over UDP is left for
+ * upstream to answer it as it fits.
+ * <p>
+ * A name asked for repeatedly is refreshed shortly before it expires, so the
+ * next query does not wait on upstream. With serve-stale (RFC 8767) an expired
+ * response is kept for a day, and still answered, with a short TTL, while it
+ * is refreshed in the background. Refreshes queue here until UDPOutput takes
+ * them for the {@link DnsForwarder}, whose response replaces the entry.
+ * UDPInput stores and UDPOutput answers, under the cache's lock.
+ */
+public class DnsCache {
+    // RFC 8767 suggests capping TTLs at a week, a day is plenty for a device
+    static final int MAX_TTL = 86400;
+    // RFC 8767: how long an expired response is kept, the TTL it is served
+    // with, and how long to wait after a refresh before trying another
+    static final int MAX_STALE = 86400;
+    static final int STALE_TTL = 30;
+    static final long FAILURE_RECHECK = 30000;
+    // Answers from an entry, with half of its predecessor's, that make a name hot
+    static final int PREFETCH_HITS = 2;
+    // Shorter TTLs are left to expire, refreshing them would be most of the traffic
+    static final int MIN_PREFETCH_TTL = 10;
+    // Object headers, arrays and the map entry
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private static final int FLAG_QR = 0x8000;
+    private static final int FLAG_TC = 0x0200;
+    private static final int FLAG_RD = 0x0100;
+    private static final int FLAG_CD = 0x0010;
+    private static final int EDNS_DO = 0x8000;
+    private static final int EDNS_PAYLOAD_SIZE = 1232;
+    private static final int RCODE_NXDOMAIN = 3;
+    private static final int TYPE_SOA = 6;
+
+    private static final Stats.Counter HITS = Stats.counter("dns.cache.hits");
+    private static final Stats.Counter MISSES = Stats.counter("dns.cache.misses");
+    private static final Stats.Counter HIT_RATIO = Stats.counter("dns.cache.hit_ratio_pct");
+    private static final Stats.Counter STORED = Stats.counter("dns.cache.stored");
+    private static final Stats.Counter EXPIRED = Stats.counter("dns.cache.expired");
+    private static final Stats.Counter EVICTIONS = Stats.counter("dns.cache.evictions");
+    private static final Stats.Counter ENTRIES = Stats.counter("dns.cache.entries");
+    private static final Stats.Counter BYTES = Stats.counter("dns.cache.bytes");
+    private static final Stats.Counter PREFETCHES = Stats.counter("dns.cache.prefetches");
+    // Prefetched responses replaced or dropped before answering anything
+    private static final Stats.Counter WASTED = Stats.counter("dns.cache.prefetches_wasted");
+    private static final Stats.Counter STALE_SERVED = Stats.counter("dns.cache.stale_served");
+    private static final Stats.Counter STALE_REFRESHES = Stats.counter("dns.cache.stale_refreshes");
+
+    private static final class Entry {
+        final DnsQuestion key;
+        final byte[] message;
+        // Where the answer sections start, the question is the query's own
+        final int questionEnd;
+        final int[] ttlOffsets;
+        final long storedAt;
+        final long expiresAt;
+        final int size;
+        int hits;
+        // Hits, plus half of the previous entry's for the name
+        int popularity;
+        // Stored by a prefetch, as opposed to a query or a stale refresh
+        boolean prefetched;
+        boolean prefetching;
+        // In the refresh queue, due at refreshAt
+        boolean queued;
+        long refreshAt;
+        long refreshedAt;
+        boolean removed;
+
+        Entry(DnsQuestion key, byte[] message, int questionEnd, int[] ttlOffsets, long storedAt, long expiresAt) {
+            this.key = key;
+            this.message = message;
+            this.questionEnd = questionEnd;
+            this.ttlOffsets = ttlOffsets;
+            this.storedAt = storedAt;
+            this.expiresAt = expiresAt;
+            this.size = ENTRY_OVERHEAD + message.length + 4 * ttlOffsets.length + key.length();
+        }
+    }
+
+    private final long maxBytes;
+    private final boolean serveStale;
+    // Access order, the eldest is the least recently used
+    private final LinkedHashMap<DnsQuestion, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+    private final DnsQuestion lookupKey = new DnsQuestion();
+    private final DnsQuestion storeKey = new DnsQuestion();
+    private int[] ttlOffsets = new int[32];
+    // Entries taken out of the map stay queued until they come up, and are skipped
+    private final PriorityQueue<Entry> refreshes = new PriorityQueue<>(16, new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return a.refreshAt < b.refreshAt ? -1 : a.refreshAt > b.refreshAt ? 1 : 0;
+        }
+    });
+
+    /**
+     * @param maxBytes   memory cap, 0 disables the cache
+     * @param serveStale answer from expired responses while they are refreshed
+     */
+    public DnsCache(long maxBytes, boolean serveStale) {
+        this.maxBytes = maxBytes;
+        this.serveStale = serveStale;
+    }
+
+    /**
+     * UDPOutput. Writes the cached response to the query over it, under the
+     * query's ID and question, and turns the packet around.
+     *
+     * @return false on a miss, the packet is left as it was
+     */
+    public synchronized boolean answer(Packet packet, DnsQuery query, long now) {
+        if (maxBytes == 0) return false;
+        lookupKey.set(query, true);
+        Entry entry = entries.get(lookupKey);
+        boolean stale = entry != null && now >= entry.expiresAt;
+        if (stale && (!serveStale || now >= entry.expiresAt + MAX_STALE * 1000L)) {
+            remove(entry);
+            EXPIRED.inc();
+            entry = null;
+            stale = false;
+        }
+        ByteBuffer buffer = query.buffer();
+        int offset = query.offset();
+        // Too large for the device, which upstream answers minimally or with TC
+        if (entry == null || entry.message.length > query.payloadSize()
+                || offset + entry.message.length > buffer.capacity()) {
+            misses++;
+            MISSES.inc();
+            HIT_RATIO.set(hits * 100 / (hits + misses));
+            return false;
+        }
+
+        int id = query.id();
+        buffer.limit(buffer.capacity());
+        // The question stays as the device spelled it
+        buffer.position(offset);
+        buffer.put(entry.message, 0, DnsQuery.HEADER_SIZE);
+        buffer.position(offset + entry.questionEnd);
+        buffer.put(entry.message, entry.questionEnd, entry.message.length - entry.questionEnd);
+        buffer.putShort(offset, (short) id);
+        int elapsed = (int) ((now - entry.storedAt) / 1000);
+        for (int ttlOffset : entry.ttlOffsets) {
+            int ttl = getInt(entry.message, ttlOffset);
+            buffer.putInt(offset + ttlOffset, stale ? STALE_TTL : Math.max(0, ttl - elapsed));
+        }
+        int length = entry.message.length;
+        buffer.limit(offset + length);
+        packet.swapSourceAndDestination();
+        packet.updateUDPBuffer(buffer, length);
+        buffer.position(packet.IP_TRAN_SIZE + length);
+        hits++;
+        HITS.inc();
+        HIT_RATIO.set(hits * 100 / (hits + misses));
+        entry.hits++;
+        entry.popularity++;
+        if (stale) {
+            STALE_SERVED.inc();
+            if (entry.refreshedAt == 0 || now - entry.refreshedAt >= FAILURE_RECHECK) queue(entry, now);
+        } else if (entry.popularity >= PREFETCH_HITS) {
+            schedulePrefetch(entry);
+        }
+        return true;
+    }
+
+    private void schedulePrefetch(Entry entry) {
+        if (entry.prefetching || entry.expiresAt - entry.storedAt < MIN_PREFETCH_TTL * 1000L) return;
+        // Unbound's window, the last tenth of the TTL
+        queue(entry, entry.expiresAt - (entry.expiresAt - entry.storedAt) / 10);
+    }
+
+    private void queue(Entry entry, long at) {
+        // Queued already for a prefetch, which is earlier than anything stale
+        if (entry.queued) return;
+        entry.queued = true;
+        entry.refreshAt = at;
+        refreshes.add(entry);
+    }
+
+    /**
+     * @return when the next refresh is due, Long.MAX_VALUE if none is queued
+     */
+    public synchronized long nextRefresh() {
+        Entry entry;
+        while ((entry = refreshes.peek()) != null && entry.removed) {
+            refreshes.poll();
+            entry.queued = false;
+        }
+        return entry == null ? Long.MAX_VALUE : entry.refreshAt;
+    }
+
+    /**
+     * UDPOutput. Writes a query for the next refresh due, if any, at the
+     * buffer's position, and leaves the position and limit around it.
+     *
+     * @return false if no refresh is due
+     */
+    public synchronized boolean refresh(ByteBuffer buffer, long now) {
+        if (nextRefresh() > now) return false;
+        Entry entry = refreshes.poll();
+        entry.queued = false;
+        entry.refreshedAt = now;
+        if (now < entry.expiresAt) {
+            entry.prefetching = true;
+            PREFETCHES.inc();
+        } else {
+            STALE_REFRESHES.inc();
+        }
+        int start = buffer.position();
+        int keyFlags = entry.key.flags();
+        boolean edns = (keyFlags & DnsQuestion.EDNS) != 0;
+        // The forwarder sets the ID
+        buffer.putShort((short) 0);
+        buffer.putShort((short) (FLAG_RD | ((keyFlags & DnsQuestion.CHECKING_DISABLED) != 0 ? FLAG_CD : 0)));
+        buffer.putShort((short) 1);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) (edns ? 1 : 0));
+        entry.key.write(buffer);
+        if (edns) {
+            buffer.put((byte) 0);
+            buffer.putShort((short) DnsQuery.TYPE_OPT);
+            buffer.putShort((short) EDNS_PAYLOAD_SIZE);
+            buffer.putInt((keyFlags & DnsQuestion.DNSSEC_OK) != 0 ? EDNS_DO : 0);
+            buffer.putShort((short) 0);
+        }
+        buffer.limit(buffer.position());
+        buffer.position(start);
+        return true;
+    }
+
+    /**
+     * UDPInput. Keeps a copy of a response, from the buffer's position to its
+     * limit, if it is a complete NOERROR or NXDOMAIN answer to one question.
+     * It is keyed as the query was, so that it can only fill the entry for
+     * the question that was asked.
+     *
+     * @param question the pending query's, its name in any case
+     */
+    public synchronized void store(ByteBuffer buffer, DnsQuestion question, long now) {
+        if (maxBytes == 0) return;
+        int offset = buffer.position();
+        int limit = buffer.limit();
+        if (limit - offset < DnsQuery.HEADER_SIZE) return;
+        int flags = buffer.getShort(offset + 2) & 0xFFFF;
+        int rcode = flags & 0xF;
+        if ((flags & FLAG_QR) == 0 || (flags & FLAG_TC) != 0) return;
+        if (rcode != 0 && rcode != RCODE_NXDOMAIN) return;
+        if (buffer.getShort(offset + 4) != 1) return;
+        int answers = buffer.getShort(offset + 6) & 0xFFFF;
+        int authorities = buffer.getShort(offset + 8) & 0xFFFF;
+        int additionals = buffer.getShort(offset + 10) & 0xFFFF;
+
+        // Lowercased, as lookups are
+        int questionEnd = storeKey.set(buffer, offset, limit, question.flags());
+        if (questionEnd < 0 || !storeKey.sameQuestion(question)) return;
+        long minTtl = MAX_TTL;
+        int ttlCount = 0;
+        int pos = questionEnd;
+        int records = answers + authorities + additionals;
+        for (int i = 0; i < records; i++) {
+            pos = skipName(buffer, pos, limit);
+            if (pos < 0 || pos + 10 > limit) return;
+            int type = buffer.getShort(pos) & 0xFFFF;
+            int rdlength = buffer.getShort(pos + 8) & 0xFFFF;
+            int rdata = pos + 10;
+            if (rdata + rdlength > limit) return;
+            if (type != DnsQuery.TYPE_OPT) {
+                long ttl = buffer.getInt(pos + 4) & 0xFFFFFFFFL;
+                minTtl = Math.min(minTtl, ttl);
+                // RFC 2308, a negative answer lives as long as the SOA minimum
+                if (answers == 0 && type == TYPE_SOA && i < answers + authorities && rdlength >= 4)
+                    minTtl = Math.min(minTtl, buffer.getInt(rdata + rdlength - 4) & 0xFFFFFFFFL);
+                if (ttlCount == ttlOffsets.length) ttlOffsets = Arrays.copyOf(ttlOffsets, ttlCount * 2);
+                ttlOffsets[ttlCount++] = pos + 4 - offset;
+            }
+            pos = rdata + rdlength;
+        }
+        // Nothing says how long it may be kept
+        if (ttlCount == 0 || minTtl == 0) return;
+
+        byte[] message = new byte[pos - offset];
+        ByteBuffer source = buffer.duplicate();
+        source.limit(pos);
+        source.position(offset);
+        source.get(message);
+        Entry entry = new Entry(storeKey.copy(), message, questionEnd - offset,
+                Arrays.copyOf(ttlOffsets, ttlCount), now, now + minTtl * 1000);
+        if (entry.size > maxBytes) return;
+        Entry old = entries.put(entry.key, entry);
+        if (old != null) {
+            bytes -= old.size;
+            dropped(old);
+            // Only a prefetch replaces a response that has not expired yet
+            entry.prefetched = old.prefetching && now < old.expiresAt;
+            entry.popularity = old.popularity / 2;
+            if (entry.popularity >= PREFETCH_HITS) schedulePrefetch(entry);
+        }
+        bytes += entry.size;
+        STORED.inc();
+        Iterator<Map.Entry<DnsQuestion, Entry>> eldest = entries.entrySet().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            Entry evicted = eldest.next().getValue();
+            bytes -= evicted.size;
+            eldest.remove();
+            dropped(evicted);
+            EVICTIONS.inc();
+        }
+        ENTRIES.set(entries.size());
+        BYTES.set(bytes);
+    }
+
+    /**
+     * @return offset just past the name at pos, which may end in a compression pointer, or -1
+     */
+    private static int skipName(ByteBuffer buffer, int pos, int limit) {
+        while (pos < limit) {
+            int length = buffer.get(pos) & 0xFF;
+            if (length == 0) return pos + 1;
+            if ((length & 0xC0) == 0xC0) return pos + 2;
+            if ((length & 0xC0) != 0) return -1;
+            pos += length + 1;
+        }
+        return -1;
+    }
+
+    private static int getInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) << 24 | (bytes[offset + 1] & 0xFF) << 16
+                | (bytes[offset + 2] & 0xFF) << 8 | bytes[offset + 3] & 0xFF;
+    }
+
+    private void remove(Entry entry) {
+        entries.remove(entry.key);
+        dropped(entry);
+        bytes -= entry.size;
+        ENTRIES.set(entries.size());
+        BYTES.set(bytes);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    private static void dropped(Entry entry) {
+        entry.removed = true;
+        if (entry.prefetched && entry.hits == 0) WASTED.inc();
+    }
+
+    public synchronized void clear() {
+        for (Entry entry : entries.values()) dropped(entry);
+        entries.clear();
+        refreshes.clear();
+        bytes = 0;
+        ENTRIES.set(0);
+        BYTES.set(0);
+    }
+}
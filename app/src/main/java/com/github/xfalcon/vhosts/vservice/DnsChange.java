@@ -18,84 +18,42 @@
 
 package com.github.xfalcon.vhosts.vservice;
 
+import android.os.Build;
+
 import com.github.xfalcon.vhosts.util.LogUtils;
 import org.xbill.DNS.*;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class DnsChange {
 
     static String TAG = DnsChange.class.getSimpleName();
-    static ConcurrentHashMap<String, String> DOMAINS_IP_MAPS4 = null;
-    static ConcurrentHashMap<String, String> DOMAINS_IP_MAPS6 = null;
+    static volatile HostsIndex HOSTS_INDEX = null;
+    // HOSTS_NODATA, on by default: other types for names in the hosts table get NODATA.
+    // Off, they are forwarded upstream as before
+    static volatile boolean NODATA_OTHER_TYPES = true;
+    // Threads building the hosts index
+    static volatile int HOSTS_PARALLELISM = Runtime.getRuntime().availableProcessors();
+    private static final Stats.Counter HITS = Stats.counter("dns.hosts.hits");
+    private static final Stats.Counter NODATA = Stats.counter("dns.hosts.nodata");
 
 
-    public static ByteBuffer handle_dns_packet(Packet packet) {
-        if (DOMAINS_IP_MAPS4 == null) {
-            LogUtils.d(TAG, "DOMAINS_IP_MAPS IS　NULL　HOST FILE ERROR");
+    /**
+     * @param query the packet's query parsed, or null if it did not parse
+     */
+    public static ByteBuffer handle_dns_packet(Packet packet, DnsQuery query) {
+        HostsIndex hosts_index = HOSTS_INDEX;
+        if (hosts_index == null) {
+            LogUtils.d(TAG, "HOSTS_INDEX IS　NULL　HOST FILE ERROR");
             return null;
         }
         try {
-            ByteBuffer packet_buffer = packet.backingBuffer;
-            packet_buffer.mark();
-            byte[] tmp_bytes = new byte[packet_buffer.remaining()];
-            packet_buffer.get(tmp_bytes);
-            packet_buffer.reset();
-            Message message = new Message(tmp_bytes);
-            Record question = message.getQuestion();
-            ConcurrentHashMap<String, String> DOMAINS_IP_MAPS;
-            int type = question.getType();
-            if (type == Type.A)
-                DOMAINS_IP_MAPS = DOMAINS_IP_MAPS4;
-            else if (type == Type.AAAA)
-                DOMAINS_IP_MAPS = DOMAINS_IP_MAPS6;
-            else return null;
-            Name query_domain = message.getQuestion().getName();
-            String query_string = query_domain.toString();
-            LogUtils.d(TAG, "query: " + question.getType() + " :" + query_string);
-            if (!DOMAINS_IP_MAPS.containsKey(query_string)) {
-                query_string = "." + query_string;
-                int j = 0;
-                while (true) {
-                    int i = query_string.indexOf(".", j);
-                    if (i == -1) {
-                        return null;
-                    }
-                    String str = query_string.substring(i);
-
-                    if (".".equals(str) || "".equals(str)) {
-                        return null;
-                    }
-                    if (DOMAINS_IP_MAPS.containsKey(str)) {
-                        query_string = str;
-                        break;
-                    }
-                    j = i + 1;
-                }
-            }
-            InetAddress address = Address.getByAddress(DOMAINS_IP_MAPS.get(query_string));
-            Record record;
-            if (type == Type.A) record = new ARecord(query_domain, 1, 86400, address);
-            else record = new AAAARecord(query_domain, 1, 86400, address);
-            message.addRecord(record, 1);
-            message.getHeader().setFlag(Flags.QR);
-            packet_buffer.limit(packet_buffer.capacity());
-            packet_buffer.put(message.toWire());
-            packet_buffer.limit(packet_buffer.position());
-            packet_buffer.reset();
-            packet.swapSourceAndDestination();
-            packet.updateUDPBuffer(packet_buffer, packet_buffer.remaining());
-            packet_buffer.position(packet_buffer.limit());
-            LogUtils.d(TAG, "hit: " + question.getType() + " :" + query_domain.toString() + " :" + address.getHostName());
-            return packet_buffer;
+            if (query != null)
+                return answer_in_place(packet, query, hosts_index);
+            return answer_with_message(packet, hosts_index);
         } catch (Exception e) {
             LogUtils.d(TAG, "dns hook error", e);
             return null;
@@ -103,37 +61,91 @@ public class DnsChange {
 
     }
 
+    // Counted rather than logged, nothing here allocates per query
+    private static ByteBuffer answer_in_place(Packet packet, DnsQuery query, HostsIndex hosts_index) {
+        int type = query.type();
+        int dns_length;
+        if (type == DnsQuery.TYPE_A || type == DnsQuery.TYPE_AAAA) {
+            boolean ipv6 = type == DnsQuery.TYPE_AAAA;
+            byte[] address_bytes = hosts_index.lookup(query, ipv6);
+            if (address_bytes != null) {
+                dns_length = DnsResponse.writeAnswer(query, address_bytes);
+                if (dns_length >= 0) HITS.inc();
+            } else if (NODATA_OTHER_TYPES && hosts_index.lookup(query, !ipv6) != null) {
+                // Mapped for the other family only, the upstream answer would get around the mapping
+                dns_length = no_data(query);
+            } else return null;
+        } else if (NODATA_OTHER_TYPES && hosts_index.contains(query)) {
+            // HTTPS records would hand the browser upstream address hints
+            dns_length = no_data(query);
+        } else return null;
+        if (dns_length < 0) return null;
+        ByteBuffer packet_buffer = packet.backingBuffer;
+        packet.swapSourceAndDestination();
+        packet.updateUDPBuffer(packet_buffer, dns_length);
+        packet_buffer.position(packet.IP_TRAN_SIZE + dns_length);
+        return packet_buffer;
+    }
+
+    private static int no_data(DnsQuery query) {
+        int dns_length = DnsResponse.writeNoData(query);
+        if (dns_length >= 0) NODATA.inc();
+        return dns_length;
+    }
+
+    private static ByteBuffer answer_with_message(Packet packet, HostsIndex hosts_index) throws IOException {
+        ByteBuffer packet_buffer = packet.backingBuffer;
+        packet_buffer.mark();
+        byte[] tmp_bytes = new byte[packet_buffer.remaining()];
+        packet_buffer.get(tmp_bytes);
+        packet_buffer.reset();
+        Message message = new Message(tmp_bytes);
+        Record question = message.getQuestion();
+        int type = question.getType();
+        Name query_domain = message.getQuestion().getName();
+        String query_string = query_domain.toString();
+        LogUtils.d(TAG, "query: " + question.getType() + " :" + query_string);
+        boolean ipv6 = type == Type.AAAA;
+        byte[] address_bytes = type == Type.A || type == Type.AAAA ? hosts_index.lookup(query_string, ipv6) : null;
+        InetAddress address = null;
+        if (address_bytes != null) {
+            address = InetAddress.getByAddress(address_bytes);
+            Record record;
+            if (type == Type.A) record = new ARecord(query_domain, 1, DnsResponse.ANSWER_TTL, address);
+            else record = new AAAARecord(query_domain, 1, DnsResponse.ANSWER_TTL, address);
+            message.addRecord(record, Section.ANSWER);
+        } else if (NODATA_OTHER_TYPES && (type == Type.A || type == Type.AAAA
+                ? hosts_index.lookup(query_string, !ipv6) != null : hosts_index.contains(query_string))) {
+            long ttl = DnsResponse.ANSWER_TTL;
+            message.addRecord(new SOARecord(query_domain, DClass.IN, ttl, Name.root, Name.root,
+                    1, ttl, ttl, ttl, ttl), Section.AUTHORITY);
+            NODATA.inc();
+        } else return null;
+        message.getHeader().setFlag(Flags.QR);
+        packet_buffer.limit(packet_buffer.capacity());
+        packet_buffer.put(message.toWire());
+        packet_buffer.limit(packet_buffer.position());
+        packet_buffer.reset();
+        packet.swapSourceAndDestination();
+        packet.updateUDPBuffer(packet_buffer, packet_buffer.remaining());
+        packet_buffer.position(packet_buffer.limit());
+        LogUtils.d(TAG, "hit: " + question.getType() + " :" + query_domain.toString()
+                + " :" + (address != null ? address.getHostAddress() : "nodata"));
+        return packet_buffer;
+    }
+
     public static int handle_hosts(InputStream inputStream) {
-        String STR_COMMENT = "#";
-        String HOST_PATTERN_STR = "^\\s*(" + STR_COMMENT + "?)\\s*(\\S*)\\s*([^" + STR_COMMENT + "]*)" + STR_COMMENT + "?(.*)$";
-        Pattern HOST_PATTERN = Pattern.compile(HOST_PATTERN_STR);
         try {
-            BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
-            String line;
-            DOMAINS_IP_MAPS4 = new ConcurrentHashMap<>();
-            DOMAINS_IP_MAPS6 = new ConcurrentHashMap<>();
-            while (!Thread.interrupted() && (line = reader.readLine()) != null) {
-                if (line.length() > 1000 || line.startsWith(STR_COMMENT)) continue;
-                Matcher matcher = HOST_PATTERN.matcher(line);
-                if (matcher.find()) {
-                    String ip = matcher.group(2).trim();
-                    try {
-                        Address.getByAddress(ip);
-                    } catch (Exception e) {
-                        continue;
-                    }
-                    if (ip.contains(":")) {
-                        DOMAINS_IP_MAPS6.put(matcher.group(3).trim() + ".", ip);
-                    } else {
-                        DOMAINS_IP_MAPS4.put(matcher.group(3).trim() + ".", ip);
-                    }
-                }
-            }
-            reader.close();
+            // ForkJoinPool came with Lollipop
+            int parallelism = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ? HOSTS_PARALLELISM : 1;
+            long start = System.nanoTime();
+            HostsLoader loader = new HostsLoader(parallelism);
+            HOSTS_INDEX = loader.load(inputStream);
             inputStream.close();
-            LogUtils.d(TAG, DOMAINS_IP_MAPS4.toString());
-            LogUtils.d(TAG, DOMAINS_IP_MAPS6.toString());
-            return DOMAINS_IP_MAPS4.size() + DOMAINS_IP_MAPS6.size();
+            LogUtils.d(TAG, "hosts records: " + HOSTS_INDEX.size() + " lines: " + loader.lines()
+                    + " skipped: " + loader.skipped() + " threads: " + parallelism
+                    + " ms: " + (System.nanoTime() - start) / 1000000);
+            return HOSTS_INDEX.size();
         } catch (IOException e) {
             LogUtils.d(TAG, "Hook dns error", e);
             return 0;
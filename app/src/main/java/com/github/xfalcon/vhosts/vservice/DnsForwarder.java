@@ -0,0 +1,543 @@
+/*
+ **Copyright (C) 2017  xfalcon
+ **
+ **This program is free software: you can redistribute it and/or modify
+ **it under the terms of the GNU General Public License as published by
+ **the Free Software Foundation, either version 3 of the License, or
+ **(at your option) any later version.
+ **
+ **This program is distributed in the hope that it will be useful,
+ **but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ **GNU General Public License for more details.
+ **
+ **You should have received a copy of the GNU General Public License
+ **along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **
+ */
+
+package com.github.xfalcon.vhosts.vservice;
+
+import com.github.xfalcon.vhosts.util.LogUtils;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Sends the device's DNS queries upstream over a few unconnected sockets
+ * instead of a socket per query. Each query goes out under a random ID, and
+ * its slot, found from the socket and the ID, holds the original ID and the
+ * device's 5-tuple until the response comes back or the query times out.
+ * A query goes to the fastest of the {@link DnsUpstreams}, and to the next
+ * one too if the first has not answered within its RTO; the first answer wins.
+ * A query asked again while the first is still out waits on that one, and
+ * the response goes back to every waiting flow under its own ID, cut to its
+ * header and question with TC where it is larger than the flow takes. The
+ * {@link DnsCache}'s own refreshes go out the same way, with no flow behind
+ * them but those that join while they are out.
+ * UDPOutput forwards and runs the timers, UDPInput reads the sockets, whose
+ * keys carry the forwarder as attachment; slots are claimed by compare and
+ * set, waiters join and leave under the lock of the in-flight map. Answered
+ * queries are handed back to UDPOutput to cancel their timers.
+ */
+public class DnsForwarder {
+    private static final String TAG = DnsForwarder.class.getSimpleName();
+
+    static final int SOCKETS = 4;
+    // Per socket, a power of two
+    private static final int SLOTS = 4096;
+    private static final int ID_ATTEMPTS = 8;
+    // Past this a repeated question goes upstream again
+    private static final int MAX_WAITERS = 32;
+    static final long QUERY_TIMEOUT = 5000;
+    static final long TICK = 10;
+    // UDPInput's receive buffer, the largest must still fit a pool buffer behind IPv6 and UDP headers
+    static final int MAX_RESPONSE = ByteBufferPool.LARGE - 48;
+    private static final int FLAG_TC = 0x0200;
+
+    private static final Stats.Counter FORWARDED = Stats.counter("dns.forward.queries");
+    private static final Stats.Counter ANSWERED = Stats.counter("dns.forward.responses");
+    private static final Stats.Counter TIMEOUTS = Stats.counter("dns.forward.timeouts");
+    private static final Stats.Counter UNMATCHED = Stats.counter("dns.forward.unmatched");
+    private static final Stats.Counter COALESCED = Stats.counter("dns.forward.coalesced");
+    private static final Stats.Counter FULL = Stats.counter("dns.forward.full");
+    private static final Stats.Counter ERRORS = Stats.counter("dns.forward.errors");
+    // Responses cut to header, question and TC, as they filled the receive
+    // buffer or were larger than a waiting flow takes
+    private static final Stats.Counter TRUNCATED = Stats.counter("dns.forward.truncated");
+    private static final Stats.Counter RACED = Stats.counter("dns.upstream.raced");
+    private static final Stats.Counter RACES_WON = Stats.counter("dns.upstream.races_won");
+    private static final Stats.Histogram LATENCY = Stats.histogram("dns.upstream.latency_ms");
+
+    private static final class Waiter {
+        final int originalId;
+        // Swapped, a template for the response's headers
+        final Packet reference;
+        // Its EDNS payload size, or 512
+        final int payloadSize;
+        final Waiter next;
+
+        Waiter(int originalId, Packet reference, int payloadSize, Waiter next) {
+            this.originalId = originalId;
+            this.reference = reference;
+            this.payloadSize = payloadSize;
+            this.next = next;
+        }
+    }
+
+    /**
+     * Its timer races the second resolver, then times the query out.
+     */
+    private final class Pending extends TimerWheel.Timer {
+        final int slot;
+        final int id;
+        final int originalId;
+        // Null for a refresh
+        final Packet reference;
+        // Unbounded when the query did not parse
+        final int payloadSize;
+        // Null when the query did not parse
+        final DnsQuestion question;
+        final int server;
+        final long sentAt;
+        volatile int racedServer = -1;
+        volatile long racedAt;
+        // UDPOutput's, the query kept for the race
+        ByteBuffer query;
+        // Other flows asking the same, guarded by inFlight
+        Waiter waiters;
+        int waiterCount;
+
+        Pending(int slot, int id, int originalId, Packet reference, int payloadSize, DnsQuestion question,
+                int server, long sentAt) {
+            this.slot = slot;
+            this.id = id;
+            this.originalId = originalId;
+            this.reference = reference;
+            this.payloadSize = payloadSize;
+            this.question = question;
+            this.server = server;
+            this.sentAt = sentAt;
+        }
+
+        @Override
+        protected void expired(long now) {
+            boolean live = pending.get(slot) == this;
+            if (live && query != null && now - sentAt < QUERY_TIMEOUT) {
+                int second = upstreams.second(server, now);
+                if (second >= 0 && send(this, query, second, now)) RACED.inc();
+                releaseQuery();
+                timers.schedule(this, sentAt + QUERY_TIMEOUT);
+                return;
+            }
+            releaseQuery();
+            // Answered already, or the forwarder closed
+            if (!live || !pending.compareAndSet(slot, this, null)) return;
+            finish(this);
+            TIMEOUTS.inc();
+            upstreams.failed(server, now);
+            if (racedServer >= 0) upstreams.failed(racedServer, now);
+        }
+
+        private void releaseQuery() {
+            if (query == null) return;
+            ByteBufferPool.release(query);
+            query = null;
+        }
+    }
+
+    private final DatagramChannel[] sockets;
+    private final DnsUpstreams upstreams;
+    private final DnsCache cache;
+    // UDPOutput's, woken up when a query is answered
+    private final PacketQueue<?> timerQueue;
+    // Answered by UDPInput, for UDPOutput to cancel their timers and release their queries
+    private final ConcurrentLinkedQueue<Pending> answered = new ConcurrentLinkedQueue<>();
+    private final AtomicReferenceArray<Pending> pending;
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    // Queries still out by question, spelled as asked since responses repeat it
+    private final HashMap<DnsQuestion, Pending> inFlight = new HashMap<>();
+    // UDPOutput's
+    private final DnsQuestion lookupKey = new DnsQuestion();
+    private final DnsQuery refreshQuery = new DnsQuery();
+    private final TimerWheel timers = new TimerWheel(TICK, (int) (2 * QUERY_TIMEOUT / TICK), TimerWheel.now());
+    // Off-path spoofing has to guess the ID as well as the port
+    private final Random random = new SecureRandom();
+    private int nextSocket;
+    // UDPInput's, responses are read here before their headers are known
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(MAX_RESPONSE);
+    private final DnsQuestion responseQuestion = new DnsQuestion();
+
+    /**
+     * Opens and protects the sockets, and registers them for UDPInput.
+     */
+    public static DnsForwarder open(VhostsService vpnService, RegistrationQueue registrations,
+                                    DnsUpstreams upstreams, DnsCache cache, PacketQueue<?> timerQueue)
+            throws IOException {
+        DatagramChannel[] sockets = new DatagramChannel[SOCKETS];
+        try {
+            for (int i = 0; i < SOCKETS; i++) {
+                sockets[i] = DatagramChannel.open();
+                vpnService.protect(sockets[i].socket());
+            }
+        } catch (IOException e) {
+            close(sockets);
+            throw e;
+        }
+        return new DnsForwarder(sockets, registrations, upstreams, cache, timerQueue);
+    }
+
+    /**
+     * @param sockets    protected already
+     * @param cache      gets the response to every query that parsed, or null
+     * @param timerQueue the queue UDPOutput waits on, woken up once a query is answered
+     */
+    DnsForwarder(DatagramChannel[] sockets, RegistrationQueue registrations, DnsUpstreams upstreams,
+                 DnsCache cache, PacketQueue<?> timerQueue) throws IOException {
+        this.sockets = sockets;
+        this.upstreams = upstreams;
+        this.cache = cache;
+        this.timerQueue = timerQueue;
+        this.pending = new AtomicReferenceArray<>(sockets.length * SLOTS);
+        try {
+            for (DatagramChannel socket : sockets) {
+                socket.configureBlocking(false);
+                socket.socket().bind(null);
+                registrations.interestOps(socket, SelectionKey.OP_READ, this);
+            }
+        } catch (IOException e) {
+            close(sockets);
+            throw e;
+        }
+    }
+
+    /**
+     * UDPOutput only. Sends the query in the packet's buffer, from its position,
+     * upstream, unless the same question is out already. Takes the buffer, and
+     * keeps the packet for the response.
+     *
+     * @param query the packet's query parsed, or null if it did not parse
+     * @return false if the query was dropped
+     */
+    public boolean forward(Packet packet, DnsQuery query, long now) {
+        ByteBuffer buffer = packet.backingBuffer;
+        int start = buffer.position();
+        if (buffer.limit() - start < DnsQuery.HEADER_SIZE) {
+            ERRORS.inc();
+            ByteBufferPool.release(buffer);
+            return false;
+        }
+        int originalId = buffer.getShort(start) & 0xFFFF;
+        if (query != null) {
+            lookupKey.set(query, false);
+            synchronized (inFlight) {
+                Pending first = inFlight.get(lookupKey);
+                if (first != null && first.waiterCount < MAX_WAITERS) {
+                    packet.swapSourceAndDestination();
+                    first.waiters = new Waiter(originalId, packet, query.payloadSize(), first.waiters);
+                    first.waiterCount++;
+                    COALESCED.inc();
+                    ByteBufferPool.release(buffer);
+                    return true;
+                }
+            }
+        }
+        if (query == null) return issue(buffer, originalId, packet, Integer.MAX_VALUE, null, now);
+        return issue(buffer, originalId, packet, query.payloadSize(), lookupKey.copy(), now);
+    }
+
+    /**
+     * UDPOutput only. Sends a query from {@link DnsCache#refresh}, from the
+     * buffer's position, unless the question is out already. Takes the buffer.
+     *
+     * @return false if the query was not sent
+     */
+    public boolean refresh(ByteBuffer buffer, long now) {
+        if (!refreshQuery.parse(buffer, buffer.position(), buffer.limit())) {
+            ERRORS.inc();
+            ByteBufferPool.release(buffer);
+            return false;
+        }
+        lookupKey.set(refreshQuery, false);
+        synchronized (inFlight) {
+            if (inFlight.containsKey(lookupKey)) {
+                ByteBufferPool.release(buffer);
+                return false;
+            }
+        }
+        return issue(buffer, 0, null, 0, lookupKey.copy(), now);
+    }
+
+    private boolean issue(ByteBuffer buffer, int originalId, Packet packet, int payloadSize, DnsQuestion question,
+                          long now) {
+        int start = buffer.position();
+        int socket = nextSocket;
+        nextSocket = (nextSocket + 1) % sockets.length;
+
+        int id = 0;
+        int slot = -1;
+        for (int attempt = 0; attempt < ID_ATTEMPTS; attempt++) {
+            id = random.nextInt(0x10000);
+            int candidate = socket * SLOTS + (id & (SLOTS - 1));
+            if (pending.get(candidate) == null) {
+                slot = candidate;
+                break;
+            }
+        }
+        if (slot < 0) {
+            FULL.inc();
+            ByteBufferPool.release(buffer);
+            return false;
+        }
+
+        buffer.putShort(start, (short) id);
+        if (packet != null) packet.swapSourceAndDestination();
+        int server = upstreams.first(now);
+        Pending entry = new Pending(slot, id, originalId, packet, payloadSize, question, server, now);
+        // Both before the send, so the response cannot find either missing
+        if (entry.question != null) {
+            synchronized (inFlight) {
+                inFlight.put(entry.question, entry);
+            }
+        }
+        // Only this thread fills slots, a free one stays free until then
+        pending.set(slot, entry);
+        pendingCount.incrementAndGet();
+        FORWARDED.inc();
+        boolean sent = send(entry, buffer, server, now);
+        if (upstreams.size() > 1) {
+            entry.query = buffer;
+            // Races at once if the first resolver could not even be sent to
+            timers.schedule(entry, sent ? now + upstreams.raceDelay(server) : now);
+        } else {
+            ByteBufferPool.release(buffer);
+            timers.schedule(entry, now + QUERY_TIMEOUT);
+        }
+        return true;
+    }
+
+    private boolean send(Pending entry, ByteBuffer query, int server, long now) {
+        if (server != entry.server) {
+            // Before the send, so that its answer is taken
+            entry.racedAt = now;
+            entry.racedServer = server;
+        }
+        int start = query.position();
+        try {
+            sockets[entry.slot / SLOTS].send(query, upstreams.address(server));
+            return true;
+        } catch (IOException e) {
+            LogUtils.w(TAG, "Upstream send error: " + upstreams.address(server), e);
+            ERRORS.inc();
+            upstreams.failed(server, now);
+            return false;
+        } finally {
+            query.position(start);
+        }
+    }
+
+    /**
+     * UDPOutput only. Cancels the timers of the queries answered since, and
+     * races and times out the queries that are due.
+     */
+    public void advance(long now) {
+        Pending entry;
+        while ((entry = answered.poll()) != null) {
+            timers.cancel(entry);
+            entry.releaseQuery();
+        }
+        timers.advance(now);
+    }
+
+    /**
+     * UDPOutput only, after {@link #advance}, to sleep until then.
+     *
+     * @return when the next race or timeout is due, Long.MAX_VALUE if none is
+     */
+    public long nextDeadline() {
+        return timers.nextDeadline();
+    }
+
+    /**
+     * UDPInput only. Reads every response waiting on a socket and queues each
+     * for the device, under its original ID and from the address it asked.
+     */
+    public void read(DatagramChannel channel, PacketQueue<ByteBuffer> outputQueue) {
+        int socket = indexOf(channel);
+        while (true) {
+            receiveBuffer.clear();
+            SocketAddress from;
+            try {
+                from = channel.receive(receiveBuffer);
+            } catch (IOException e) {
+                LogUtils.e(TAG, "Upstream read error", e);
+                return;
+            }
+            if (from == null) return;
+            // The device may advertise more than fits, and the rest of the datagram is lost
+            boolean cut = receiveBuffer.position() == receiveBuffer.capacity();
+            receiveBuffer.flip();
+            if (receiveBuffer.remaining() < DnsQuery.HEADER_SIZE) {
+                UNMATCHED.inc();
+                continue;
+            }
+            int id = receiveBuffer.getShort(0) & 0xFFFF;
+            int slot = socket * SLOTS + (id & (SLOTS - 1));
+            Pending entry = pending.get(slot);
+            int server = upstreams.indexOf(from);
+            if (entry == null || entry.id != id || server < 0
+                    || (server != entry.server && server != entry.racedServer)
+                    || !answers(receiveBuffer, entry.question)
+                    || !pending.compareAndSet(slot, entry, null)) {
+                UNMATCHED.inc();
+                continue;
+            }
+            long now = TimerWheel.now();
+            if (cut) {
+                int length = questionLength(receiveBuffer);
+                truncate(receiveBuffer, 0, length);
+                receiveBuffer.limit(length);
+            }
+            // Before the question leaves inFlight, so that a query for it either waits or hits.
+            // Nothing checked what a query that did not parse was answered with
+            if (cache != null && entry.question != null) cache.store(receiveBuffer, entry.question, now);
+            finish(entry);
+            answered.offer(entry);
+            timerQueue.wakeup();
+            long rtt = now - (server == entry.server ? entry.sentAt : entry.racedAt);
+            LATENCY.record(rtt);
+            ANSWERED.inc();
+            upstreams.answered(server, rtt);
+            if (server != entry.server) {
+                RACES_WON.inc();
+                upstreams.lost(entry.server, now - entry.sentAt);
+            }
+            if (entry.reference != null)
+                deliver(entry.reference, entry.originalId, entry.payloadSize, receiveBuffer, outputQueue);
+            // No waiter joins once finish() took the query out of inFlight
+            for (Waiter waiter = entry.waiters; waiter != null; waiter = waiter.next)
+                deliver(waiter.reference, waiter.originalId, waiter.payloadSize, receiveBuffer, outputQueue);
+        }
+    }
+
+    /**
+     * RFC 5452, the ID and address alone are too easily guessed.
+     *
+     * @param question asked, or null if the query did not parse and any response goes
+     * @return whether the response repeats the question, in any case
+     */
+    private boolean answers(ByteBuffer response, DnsQuestion question) {
+        if (question == null) return true;
+        if (response.getShort(4) != 1) return false;
+        return responseQuestion.set(response, 0, response.limit(), 0) >= 0
+                && responseQuestion.sameQuestion(question);
+    }
+
+    /**
+     * @return length of the response's header and question, or of its header
+     *         alone if the question does not read
+     */
+    private int questionLength(ByteBuffer response) {
+        int start = response.position();
+        if (response.getShort(start + 4) != 1) return DnsQuery.HEADER_SIZE;
+        int end = responseQuestion.set(response, start, response.limit(), 0);
+        return end < 0 ? DnsQuery.HEADER_SIZE : end - start;
+    }
+
+    /**
+     * Marks a message at offset, cut to length by {@link #questionLength}, as
+     * truncated, so that the device asks again over TCP rather than reading
+     * records cut short. The cache does not keep it.
+     */
+    private static void truncate(ByteBuffer message, int offset, int length) {
+        if (length == DnsQuery.HEADER_SIZE) message.putShort(offset + 4, (short) 0);
+        message.putShort(offset + 2, (short) (message.getShort(offset + 2) | FLAG_TC));
+        message.putShort(offset + 6, (short) 0);
+        message.putShort(offset + 8, (short) 0);
+        message.putShort(offset + 10, (short) 0);
+        TRUNCATED.inc();
+    }
+
+    /**
+     * Takes a query whose slot was just claimed out of the books. Its timer
+     * stays scheduled until UDPOutput cancels it, and finds the slot gone if
+     * it fires before.
+     */
+    private void finish(Pending entry) {
+        pendingCount.decrementAndGet();
+        if (entry.question == null) return;
+        synchronized (inFlight) {
+            // Unless a later query for the same question took over
+            if (inFlight.get(entry.question) == entry) inFlight.remove(entry.question);
+        }
+    }
+
+    /**
+     * Queues a copy of the response under id, truncated if it is larger than
+     * payloadSize, leaving the response as it was but for its ID.
+     */
+    private void deliver(Packet reference, int id, int payloadSize, ByteBuffer response,
+                         PacketQueue<ByteBuffer> outputQueue) {
+        int start = response.position();
+        int limit = response.limit();
+        boolean truncated = limit - start > payloadSize;
+        int length = truncated ? questionLength(response) : limit - start;
+        response.putShort(start, (short) id);
+        ByteBuffer buffer = ByteBufferPool.acquire(reference.IP_TRAN_SIZE + length);
+        buffer.position(reference.IP_TRAN_SIZE);
+        response.limit(start + length);
+        buffer.put(response);
+        response.limit(limit);
+        response.position(start);
+        if (truncated) truncate(buffer, reference.IP_TRAN_SIZE, length);
+        reference.updateUDPBuffer(buffer, length);
+        buffer.position(reference.IP_TRAN_SIZE + length);
+        outputQueue.offer(buffer);
+    }
+
+    private int indexOf(DatagramChannel channel) {
+        for (int i = 0; i < sockets.length; i++)
+            if (sockets[i] == channel) return i;
+        throw new IllegalArgumentException("Not a forwarder socket");
+    }
+
+    /**
+     * @return queries sent and neither answered nor timed out yet
+     */
+    public int pending() {
+        return pendingCount.get();
+    }
+
+    /**
+     * UDPOutput only, once it stopped. Drops the queries still out.
+     */
+    public void close() {
+        close(sockets);
+        for (int slot = 0; slot < pending.length(); slot++) {
+            Pending entry = pending.get(slot);
+            if (entry != null && pending.compareAndSet(slot, entry, null)) finish(entry);
+        }
+        // Every timer fires and finds its slot gone, releasing what it kept
+        timers.advance(Long.MAX_VALUE);
+    }
+
+    private static void close(DatagramChannel[] sockets) {
+        for (DatagramChannel socket : sockets) {
+            if (socket == null) continue;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ **Copyright (C) 2017  xfalcon
+ **
+ **This program is free software: you can redistribute it and/or modify
+ **it under the terms of the GNU General Public License as published by
+ **the Free Software Foundation, either version 3 of the License, or
+ **(at your option) any later version.
+ **
+ **This program is distributed in the hope that it will be useful,
+ **but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ **GNU General Public License for more details.
+ **
+ **You should have received a copy of the GNU General Public License
+ **along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **
+ */
+
+
+package com.github.xfalcon.vhosts.vservice;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Times DNS queries from the tun read to the write of their answer, whether
+ * it came from the hosts file, the cache or upstream. Queries are keyed by
+ * device port and message ID in a small table that VPNReader writes and
+ * VPNWriter reads; a query overwritten by a colliding one before its answer
+ * is simply not timed.
+ */
+public class DnsLatency {
+    private static final Stats.Histogram ROUND_TRIP = Stats.histogram("dns.round_trip_us");
+
+    private static final int DNS_PORT = 53;
+    private static final int UDP = 17;
+    private static final int SLOTS = 256;
+
+    // Pairs of key and read time, a key is the device port and the ID plus one so 0 stays free
+    private static final AtomicLongArray queries = new AtomicLongArray(2 * SLOTS);
+
+    /**
+     * Called by VPNReader for every UDP packet read from the tun.
+     */
+    public static void queried(Packet packet, long now) {
+        if (packet.udpHeader.destinationPort != DNS_PORT) return;
+        ByteBuffer buffer = packet.backingBuffer;
+        if (buffer.limit() < packet.IP_TRAN_SIZE + DnsQuery.HEADER_SIZE) return;
+        long key = key(packet.udpHeader.sourcePort, buffer.getShort(packet.IP_TRAN_SIZE) & 0xFFFF);
+        int slot = slot(key);
+        queries.set(slot + 1, now);
+        queries.set(slot, key);
+    }
+
+    /**
+     * Called by VPNWriter for every packet written to the tun.
+     *
+     * @param buffer the packet from 0 to its limit
+     */
+    public static void answered(ByteBuffer buffer, long now) {
+        if (buffer.limit() < 1) return;
+        int version = (buffer.get(0) & 0xFF) >> 4;
+        int udpOffset;
+        if (version == 4) {
+            if ((buffer.get(9) & 0xFF) != UDP) return;
+            udpOffset = (buffer.get(0) & 0x0F) << 2;
+        } else if (version == 6) {
+            if ((buffer.get(6) & 0xFF) != UDP) return;
+            udpOffset = 40;
+        } else return;
+        if (buffer.limit() < udpOffset + 8 + DnsQuery.HEADER_SIZE) return;
+        if ((buffer.getShort(udpOffset) & 0xFFFF) != DNS_PORT) return;
+        long key = key(buffer.getShort(udpOffset + 2) & 0xFFFF, buffer.getShort(udpOffset + 8) & 0xFFFF);
+        int slot = slot(key);
+        if (queries.get(slot) != key) return;
+        long readAt = queries.get(slot + 1);
+        // Only the first answer to a query counts
+        if (queries.compareAndSet(slot, key, 0))
+            ROUND_TRIP.record((now - readAt) / 1000);
+    }
+
+    private static long key(int port, int id) {
+        return ((long) port << 16 | id) + 1;
+    }
+
+    private static int slot(long key) {
+        return (int) ((key ^ key >>> 16) & (SLOTS - 1)) << 1;
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ **Copyright (C) 2017  xfalcon
+ **
+ **This program is free software: you can redistribute it and/or modify
+ **it under the terms of the GNU General Public License as published by
+ **the Free Software Foundation, either version 3 of the License, or
+ **(at your option) any later version.
+ **
+ **This program is distributed in the hope that it will be useful,
+ **but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ **GNU General Public License for more details.
+ **
+ **You should have received a copy of the GNU General Public License
+ **along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **
+ */
+
+package com.github.xfalcon.vhosts.vservice;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight reader for the question of a DNS query, parsed in place from the
+ * packet buffer. Only plain single-question queries are accepted, anything
+ * else is left to dnsjava. Not thread safe, keep one instance per thread.
+ */
+public class DnsQuery {
+    public static final int HEADER_SIZE = 12;
+    public static final int TYPE_A = 1;
+    public static final int TYPE_AAAA = 28;
+    public static final int CLASS_IN = 1;
+    public static final int TYPE_OPT = 41;
+    // Without an OPT record, and the least one may advertise (RFC 6891)
+    public static final int MIN_PAYLOAD_SIZE = 512;
+
+    private static final int FLAG_CD = 0x0010;
+    // In the OPT record's TTL
+    private static final int EDNS_DO = 0x8000;
+
+    private static final int MAX_LABELS = 128;
+    private static final int MAX_NAME_LENGTH = 255;
+
+    private ByteBuffer buffer;
+    private int offset;
+    private int limit;
+    private final int[] labels = new int[MAX_LABELS];
+    private int labelCount;
+    private int questionEnd;
+    private int id;
+    private int flags;
+    private int type;
+    private int dclass;
+    private boolean edns;
+    private int payloadSize;
+    private boolean dnssecOk;
+
+    /**
+     * @param buffer packet buffer, not modified
+     * @param offset start of the DNS message (the UDP payload)
+     * @param limit  end of the DNS message
+     * @return false if the message is not a plain single-question query
+     */
+    public boolean parse(ByteBuffer buffer, int offset, int limit) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.limit = limit;
+        this.labelCount = 0;
+        if (limit - offset < HEADER_SIZE + 5) return false;
+
+        id = buffer.getShort(offset) & 0xFFFF;
+        flags = buffer.getShort(offset + 2) & 0xFFFF;
+        // QR must be clear and OPCODE must be QUERY
+        if ((flags & 0xF800) != 0) return false;
+        if (buffer.getShort(offset + 4) != 1) return false;
+        if (buffer.getShort(offset + 6) != 0 || buffer.getShort(offset + 8) != 0) return false;
+        // An OPT record is the only additional record we accept
+        int arcount = buffer.getShort(offset + 10) & 0xFFFF;
+        if (arcount > 1) return false;
+
+        int pos = offset + HEADER_SIZE;
+        int nameLength = 1;
+        while (true) {
+            if (pos >= limit) return false;
+            int length = buffer.get(pos) & 0xFF;
+            if (length == 0) break;
+            // Compression pointers and extended label types do not belong in a question
+            if ((length & 0xC0) != 0) return false;
+            nameLength += length + 1;
+            if (nameLength > MAX_NAME_LENGTH || labelCount == MAX_LABELS) return false;
+            labels[labelCount++] = pos;
+            pos += length + 1;
+        }
+        pos++;
+        if (pos + 4 > limit) return false;
+        type = buffer.getShort(pos) & 0xFFFF;
+        dclass = buffer.getShort(pos + 2) & 0xFFFF;
+        questionEnd = pos + 4;
+
+        edns = arcount == 1;
+        payloadSize = MIN_PAYLOAD_SIZE;
+        dnssecOk = false;
+        if (edns) {
+            // Root name, TYPE, the payload size as CLASS, then TTL and RDLENGTH
+            if (questionEnd + 11 > limit || buffer.get(questionEnd) != 0
+                    || buffer.getShort(questionEnd + 1) != TYPE_OPT) return false;
+            payloadSize = Math.max(MIN_PAYLOAD_SIZE, buffer.getShort(questionEnd + 3) & 0xFFFF);
+            dnssecOk = (buffer.getShort(questionEnd + 7) & EDNS_DO) != 0;
+        }
+        return dclass == CLASS_IN;
+    }
+
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    public int offset() {
+        return offset;
+    }
+
+    public int limit() {
+        return limit;
+    }
+
+    public int id() {
+        return id;
+    }
+
+    public int flags() {
+        return flags;
+    }
+
+    public int type() {
+        return type;
+    }
+
+    public int dclass() {
+        return dclass;
+    }
+
+    public boolean edns() {
+        return edns;
+    }
+
+    /**
+     * @return the largest response the device takes over UDP
+     */
+    public int payloadSize() {
+        return payloadSize;
+    }
+
+    /**
+     * @return whether the device wants DNSSEC records (DO)
+     */
+    public boolean dnssecOk() {
+        return dnssecOk;
+    }
+
+    /**
+     * @return whether the device validates itself (CD)
+     */
+    public boolean checkingDisabled() {
+        return (flags & FLAG_CD) != 0;
+    }
+
+    public int labelCount() {
+        return labelCount;
+    }
+
+    /**
+     * @return absolute offset of the first byte of label i, counted from the left
+     */
+    public int labelStart(int i) {
+        return labels[i] + 1;
+    }
+
+    public int labelLength(int i) {
+        return buffer.get(labels[i]) & 0xFF;
+    }
+
+    /**
+     * @return absolute offset just past QCLASS
+     */
+    public int questionEnd() {
+        return questionEnd;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < labelCount; i++) {
+            int start = labelStart(i);
+            int end = start + labelLength(i);
+            for (int j = start; j < end; j++)
+                sb.append((char) (buffer.get(j) & 0xFF));
+            sb.append('.');
+        }
+        if (labelCount == 0) sb.append('.');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ **Copyright (C) 2017  xfalcon
+ **
+ **This program is free software: you can redistribute it and/or modify
+ **it under the terms of the GNU General Public License as published by
+ **the Free Software Foundation, either version 3 of the License, or
+ **(at your option) any later version.
+ **
+ **This program is distributed in the hope that it will be useful,
+ **but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ **GNU General Public License for more details.
+ **
+ **You should have received a copy of the GNU General Public License
+ **along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **
+ */
+
+package com.github.xfalcon.vhosts.vservice;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Hash key for a question: the name in wire format, QTYPE and QCLASS, then
+ * whether the query carried an OPT record, as a response to one does, and its
+ * DO and CD bits, which change what upstream answers. A key is set again for
+ * each lookup and copied only to be kept.
+ */
+public class DnsQuestion {
+    // The flags byte that ends the key
+    public static final int EDNS = 1;
+    public static final int DNSSEC_OK = 2;
+    public static final int CHECKING_DISABLED = 4;
+
+    private static final int MAX_NAME_LENGTH = 255;
+
+    private final byte[] bytes;
+    private int length;
+    private int hash;
+
+    public DnsQuestion() {
+        this(MAX_NAME_LENGTH + 6);
+    }
+
+    private DnsQuestion(int capacity) {
+        bytes = new byte[capacity];
+    }
+
+    public DnsQuestion copy() {
+        DnsQuestion copy = new DnsQuestion(length);
+        System.arraycopy(bytes, 0, copy.bytes, 0, length);
+        copy.length = length;
+        copy.hash = hash;
+        return copy;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * @param foldCase lowercase the name, as names compare; otherwise only the
+     *                 same spelling matches, as a response repeats it
+     */
+    public void set(DnsQuery query, boolean foldCase) {
+        ByteBuffer buffer = query.buffer();
+        length = 0;
+        for (int i = 0; i < query.labelCount(); i++) {
+            int start = query.labelStart(i);
+            int labelLength = query.labelLength(i);
+            bytes[length++] = (byte) labelLength;
+            for (int j = start; j < start + labelLength; j++)
+                bytes[length++] = foldCase ? lower(buffer.get(j)) : buffer.get(j);
+        }
+        finish(buffer, query.questionEnd() - 4, (query.edns() ? EDNS : 0)
+                | (query.dnssecOk() ? DNSSEC_OK : 0) | (query.checkingDisabled() ? CHECKING_DISABLED : 0));
+    }
+
+    /**
+     * Reads the question of a response, lowercased. It may not use compression.
+     *
+     * @return offset just past QCLASS, or -1 if it is not a plain name
+     */
+    public int set(ByteBuffer buffer, int offset, int limit, int flags) {
+        length = 0;
+        int pos = offset + DnsQuery.HEADER_SIZE;
+        while (true) {
+            if (pos >= limit) return -1;
+            int labelLength = buffer.get(pos) & 0xFF;
+            if (labelLength == 0) break;
+            if ((labelLength & 0xC0) != 0 || length + labelLength + 1 > MAX_NAME_LENGTH) return -1;
+            if (pos + 1 + labelLength > limit) return -1;
+            bytes[length++] = (byte) labelLength;
+            for (int j = pos + 1; j <= pos + labelLength; j++)
+                bytes[length++] = lower(buffer.get(j));
+            pos += labelLength + 1;
+        }
+        pos++;
+        if (pos + 4 > limit) return -1;
+        finish(buffer, pos, flags);
+        return pos + 4;
+    }
+
+    private void finish(ByteBuffer buffer, int typeOffset, int flags) {
+        bytes[length++] = 0;
+        for (int i = 0; i < 4; i++)
+            bytes[length++] = buffer.get(typeOffset + i);
+        bytes[length++] = 0;
+        setFlags(flags);
+    }
+
+    /**
+     * Writes the question as a query's question section.
+     */
+    public void write(ByteBuffer buffer) {
+        buffer.put(bytes, 0, length - 1);
+    }
+
+    /**
+     * @return EDNS, DNSSEC_OK and CHECKING_DISABLED as set
+     */
+    public int flags() {
+        return bytes[length - 1];
+    }
+
+    public void setFlags(int flags) {
+        bytes[length - 1] = (byte) flags;
+        int h = 1;
+        for (int i = 0; i < length; i++) h = 31 * h + bytes[i];
+        hash = h;
+    }
+
+    /**
+     * Whether both are the same question, the name compared without case and
+     * the flags left out, as a response is checked against its query.
+     */
+    public boolean sameQuestion(DnsQuestion other) {
+        if (other.length != length) return false;
+        for (int i = 0; i < length - 1; i++)
+            if (lower(bytes[i]) != lower(other.bytes[i])) return false;
+        return true;
+    }
+
+    private static byte lower(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof DnsQuestion)) return false;
+        DnsQuestion other = (DnsQuestion) o;
+        if (other.length != length || other.hash != hash) return false;
+        for (int i = 0; i < length; i++)
+            if (bytes[i] != other.bytes[i]) return false;
+        return true;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ **Copyright (C) 2017  xfalcon
+ **
+ **This program is free software: you can redistribute it and/or modify
+ **it under the terms of the GNU General Public License as published by
+ **the Free Software Foundation, either version 3 of the License, or
+ **(at your option) any later version.
+ **
+ **This program is distributed in the hope that it will be useful,
+ **but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ **GNU General Public License for more details.
+ **
+ **You should have received a copy of the GNU General Public License
+ **along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **
+ */
+
+package com.github.xfalcon.vhosts.vservice;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Turns a query read by {@link DnsQuery} into its response inside the same
+ * buffer, without going through dnsjava.
+ */
+public class DnsResponse {
+    public static final int ANSWER_TTL = 86400;
+
+    private static final int FLAG_QR = 0x8000;
+    private static final int NAME_POINTER = 0xC000 | DnsQuery.HEADER_SIZE;
+    private static final int RR_FIXED_SIZE = 12; // name pointer, type, class, ttl, rdlength
+    private static final int TYPE_SOA = 6;
+    // Root MNAME and RNAME, then serial, refresh, retry, expire and minimum
+    private static final int SOA_RDATA_SIZE = 2 + 5 * 4;
+
+    /**
+     * Appends one answer right after the question. The owner name is a
+     * compression pointer to the question name, and any OPT record of the
+     * query is overwritten.
+     *
+     * @param rdata 4 or 16 address bytes
+     * @return length of the DNS message, or -1 if the buffer is too small
+     */
+    public static int writeAnswer(DnsQuery query, byte[] rdata) {
+        ByteBuffer buffer = query.buffer();
+        int pos = query.questionEnd();
+        int end = pos + RR_FIXED_SIZE + rdata.length;
+        if (end > buffer.capacity()) return -1;
+        buffer.limit(end);
+        buffer.putShort(pos, (short) NAME_POINTER);
+        buffer.putShort(pos + 2, (short) query.type());
+        buffer.putShort(pos + 4, (short) DnsQuery.CLASS_IN);
+        buffer.putInt(pos + 6, ANSWER_TTL);
+        buffer.putShort(pos + 10, (short) rdata.length);
+        pos += RR_FIXED_SIZE;
+        for (int i = 0; i < rdata.length; i++)
+            buffer.put(pos + i, rdata[i]);
+        writeHeader(query, 1, 0);
+        return end - query.offset();
+    }
+
+    /**
+     * Appends an SOA to the authority section right after the question, for a
+     * NOERROR answer with no records, which resolvers keep for its minimum
+     * (RFC 2308). The SOA is owned by the question name, and any OPT record
+     * of the query is overwritten.
+     *
+     * @return length of the DNS message, or -1 if the buffer is too small
+     */
+    public static int writeNoData(DnsQuery query) {
+        ByteBuffer buffer = query.buffer();
+        int pos = query.questionEnd();
+        int end = pos + RR_FIXED_SIZE + SOA_RDATA_SIZE;
+        if (end > buffer.capacity()) return -1;
+        buffer.limit(end);
+        buffer.putShort(pos, (short) NAME_POINTER);
+        buffer.putShort(pos + 2, (short) TYPE_SOA);
+        buffer.putShort(pos + 4, (short) DnsQuery.CLASS_IN);
+        buffer.putInt(pos + 6, ANSWER_TTL);
+        buffer.putShort(pos + 10, (short) SOA_RDATA_SIZE);
+        pos += RR_FIXED_SIZE;
+        buffer.put(pos, (byte) 0);
+        buffer.put(pos + 1, (byte) 0);
+        buffer.putInt(pos + 2, 1);
+        buffer.putInt(pos + 6, ANSWER_TTL);
+        buffer.putInt(pos + 10, ANSWER_TTL);
+        buffer.putInt(pos + 14, ANSWER_TTL);
+        buffer.putInt(pos + 18, ANSWER_TTL);
+        writeHeader(query, 0, 1);
+        return end - query.offset();
+    }
+
+    private static void writeHeader(DnsQuery query, int answerCount, int authorityCount) {
+        ByteBuffer buffer = query.buffer();
+        int offset = query.offset();
+        buffer.putShort(offset + 2, (short) (query.flags() | FLAG_QR));
+        buffer.putShort(offset + 6, (short) answerCount);
+        buffer.putShort(offset + 8, (short) authorityCount);
+        buffer.putShort(offset + 10, (short) 0);
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ **Copyright (C) 2017  xfalcon
+ **
+ **This program is free software: you can redistribute it and/or modify
+ **it under the terms of the GNU General Public License as published by
+ **the Free Software Foundation, either version 3 of the License, or
+ **(at your option) any later version.
+ **
+ **This program is distributed in the hope that it will be useful,
+ **but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ **GNU General Public License for more details.
+ **
+ **You should have received a copy of the GNU General Public License
+ **along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **
+ */
+
+package com.github.xfalcon.vhosts.vservice;
+
+import java.net.InetSocketAddress;
+
+/**
+ * The resolvers queries are forwarded to, ranked by a smoothed round trip
+ * time kept as TCP keeps its RTO (RFC 6298). A resolver that fails several
+ * times in a row is passed over for a while, longer each time it fails again
+ * right after, and one success brings it back. UDPOutput picks and records
+ * timeouts, UDPInput records answers, under the object's lock.
+ */
+public class DnsUpstreams {
+    // Until the first answer, so that no resolver starts out ahead
+    private static final long INITIAL_RTT = 100;
+    static final long MIN_RACE_DELAY = 20;
+    static final long MAX_RACE_DELAY = 1000;
+    static final int FAILURE_THRESHOLD = 3;
+    static final long INITIAL_OPEN_TIME = 30000;
+    static final long MAX_OPEN_TIME = 300000;
+
+    private static final Stats.Counter BREAKER_OPENED = Stats.counter("dns.upstream.breaker_opened");
+
+    private final InetSocketAddress[] addresses;
+    private final long[] smoothedRtt;
+    private final long[] rttVariance;
+    private final boolean[] sampled;
+    private final int[] failures;
+    private final long[] openUntil;
+    private final long[] openTime;
+
+    public DnsUpstreams(InetSocketAddress[] addresses) {
+        if (addresses.length == 0) throw new IllegalArgumentException("No resolvers");
+        this.addresses = addresses.clone();
+        int n = addresses.length;
+        smoothedRtt = new long[n];
+        rttVariance = new long[n];
+        sampled = new boolean[n];
+        failures = new int[n];
+        openUntil = new long[n];
+        openTime = new long[n];
+        for (int i = 0; i < n; i++) {
+            smoothedRtt[i] = INITIAL_RTT;
+            rttVariance[i] = INITIAL_RTT / 2;
+            openTime[i] = INITIAL_OPEN_TIME;
+        }
+    }
+
+    public int size() {
+        return addresses.length;
+    }
+
+    public InetSocketAddress address(int server) {
+        return addresses[server];
+    }
+
+    /**
+     * @return the resolver a response came from, or -1
+     */
+    public int indexOf(Object address) {
+        for (int i = 0; i < addresses.length; i++)
+            if (addresses[i].equals(address)) return i;
+        return -1;
+    }
+
+    /**
+     * @return the fastest resolver not passed over, or if all are, the first to come back
+     */
+    public synchronized int first(long now) {
+        return best(now, -1);
+    }
+
+    /**
+     * @return the resolver to race against first, or -1 if there is only one
+     */
+    public synchronized int second(int first, long now) {
+        return best(now, first);
+    }
+
+    private int best(long now, int exclude) {
+        int best = -1;
+        for (int i = 0; i < addresses.length; i++) {
+            if (i == exclude || openUntil[i] > now) continue;
+            if (best < 0 || smoothedRtt[i] < smoothedRtt[best]) best = i;
+        }
+        if (best >= 0) return best;
+        for (int i = 0; i < addresses.length; i++) {
+            if (i == exclude) continue;
+            if (best < 0 || openUntil[i] < openUntil[best]) best = i;
+        }
+        return best;
+    }
+
+    /**
+     * @return how long to wait for the resolver before racing another, its RTO
+     */
+    public synchronized long raceDelay(int server) {
+        long delay = smoothedRtt[server] + 4 * rttVariance[server];
+        return Math.max(MIN_RACE_DELAY, Math.min(MAX_RACE_DELAY, delay));
+    }
+
+    public synchronized long smoothedRtt(int server) {
+        return smoothedRtt[server];
+    }
+
+    /**
+     * The resolver answered after rtt milliseconds.
+     */
+    public synchronized void answered(int server, long rtt) {
+        sample(server, rtt);
+        failures[server] = 0;
+        openUntil[server] = 0;
+        openTime[server] = INITIAL_OPEN_TIME;
+    }
+
+    /**
+     * Another resolver answered first, this one took at least elapsed milliseconds.
+     */
+    public synchronized void lost(int server, long elapsed) {
+        if (elapsed > smoothedRtt[server]) sample(server, elapsed);
+    }
+
+    private void sample(int server, long rtt) {
+        if (!sampled[server]) {
+            sampled[server] = true;
+            smoothedRtt[server] = rtt;
+            rttVariance[server] = rtt / 2;
+            return;
+        }
+        rttVariance[server] = (3 * rttVariance[server] + Math.abs(smoothedRtt[server] - rtt)) / 4;
+        smoothedRtt[server] = (7 * smoothedRtt[server] + rtt) / 8;
+    }
+
+    /**
+     * The resolver did not answer in time, or could not be sent to.
+     */
+    public synchronized void failed(int server, long now) {
+        // Past the threshold already when it comes back, so one more failure is enough
+        if (++failures[server] < FAILURE_THRESHOLD) return;
+        openUntil[server] = now + openTime[server];
+        openTime[server] = Math.min(MAX_OPEN_TIME, openTime[server] * 2);
+        BREAKER_OPENED.inc();
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("DnsUpstreams{");
+        for (int i = 0; i < addresses.length; i++) {
+            if (i > 0) sb.append(", ");
+            sb.append(addresses[i]).append(" srtt=").append(smoothedRtt[i])
+                    .append(" failures=").append(failures[i]);
+        }
+        return sb.append('}').toString();
+    }
+}
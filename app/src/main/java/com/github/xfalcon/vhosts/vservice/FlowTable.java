@@ -0,0 +1,210 @@
+/*
+ **Copyright (C) 2017  xfalcon
+ **
+ **This program is free software: you can redistribute it and/or modify
+ **it under the terms of the GNU General Public License as published by
+ **the Free Software Foundation, either version 3 of the License, or
+ **(at your option) any later version.
+ **
+ **This program is distributed in the hope that it will be useful,
+ **but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ **GNU General Public License for more details.
+ **
+ **You should have received a copy of the GNU General Public License
+ **along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **
+ */
+
+package com.github.xfalcon.vhosts.vservice;
+
+/**
+ * Open addressing hash map from a flow to its state, keyed by the remote
+ * address (two longs, see {@link Packet.IPHeader}) and a long packing the IP
+ * version and both ports. The local address is the VPN's own and the
+ * protocol is implied by the table, so this is the whole 5-tuple.
+ * Lookups allocate nothing. Not thread safe, each table has one owner thread.
+ */
+public class FlowTable<V> {
+    private static final long MIX = 0x9E3779B97F4A7C15L;
+
+    private long[] keys;
+    private Object[] values;
+    private long[] stamps;
+    private int mask;
+    private int size;
+    private long clock;
+
+    /**
+     * @param expectedSize entries held without resizing
+     */
+    public FlowTable(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity * 3];
+        values = new Object[capacity];
+        stamps = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * @return the third key word of a flow
+     */
+    public static long ports(int version, int destinationPort, int sourcePort) {
+        return (long) version << 32 | (long) destinationPort << 16 | sourcePort;
+    }
+
+    public static long ports(Packet packet) {
+        if (packet.isTCP())
+            return ports(packet.ipHeader.version, packet.tcpHeader.destinationPort, packet.tcpHeader.sourcePort);
+        return ports(packet.ipHeader.version, packet.udpHeader.destinationPort, packet.udpHeader.sourcePort);
+    }
+
+    /**
+     * @return the shard of the flow of a packet read from the device, in [0, shards)
+     */
+    public static int shard(Packet packet, int shards) {
+        int h = hash(packet.ipHeader.destinationHigh, packet.ipHeader.destinationLow, ports(packet));
+        // From the high bits, the table of each shard indexes by the low ones
+        return (int) (((h & 0xFFFFFFFFL) * shards) >>> 32);
+    }
+
+    private static int hash(long high, long low, long ports) {
+        long h = high * MIX;
+        h = (h ^ low) * MIX;
+        h = (h ^ ports) * MIX;
+        return (int) (h >>> 32);
+    }
+
+    private int find(long high, long low, long ports) {
+        for (int i = hash(high, low, ports) & mask; ; i = (i + 1) & mask) {
+            if (values[i] == null) return -1;
+            int k = i * 3;
+            if (keys[k] == high && keys[k + 1] == low && keys[k + 2] == ports) return i;
+        }
+    }
+
+    /**
+     * Also marks the flow as the most recently used.
+     *
+     * @return the value, or null if there is none
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long high, long low, long ports) {
+        int i = find(high, low, ports);
+        if (i < 0) return null;
+        stamps[i] = ++clock;
+        return (V) values[i];
+    }
+
+    /**
+     * @return the value replaced, or null
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long high, long low, long ports, V value) {
+        int i = find(high, low, ports);
+        if (i >= 0) {
+            V old = (V) values[i];
+            values[i] = value;
+            stamps[i] = ++clock;
+            return old;
+        }
+        if ((size + 1) * 4 > values.length * 3) resize(values.length << 1);
+        insert(high, low, ports, value, ++clock);
+        size++;
+        return null;
+    }
+
+    private void insert(long high, long low, long ports, Object value, long stamp) {
+        int i = hash(high, low, ports) & mask;
+        while (values[i] != null) i = (i + 1) & mask;
+        int k = i * 3;
+        keys[k] = high;
+        keys[k + 1] = low;
+        keys[k + 2] = ports;
+        values[i] = value;
+        stamps[i] = stamp;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        long[] oldStamps = stamps;
+        allocate(capacity);
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] == null) continue;
+            int k = i * 3;
+            insert(oldKeys[k], oldKeys[k + 1], oldKeys[k + 2], oldValues[i], oldStamps[i]);
+        }
+    }
+
+    /**
+     * @return the value removed, or null
+     */
+    public V remove(long high, long low, long ports) {
+        int i = find(high, low, ports);
+        return i < 0 ? null : removeAt(i);
+    }
+
+    /**
+     * Removes the least recently used flow, in linear time.
+     *
+     * @return its value, or null if the table is empty
+     */
+    public V evictEldest() {
+        int eldest = -1;
+        for (int i = 0; i < values.length; i++)
+            if (values[i] != null && (eldest < 0 || stamps[i] < stamps[eldest])) eldest = i;
+        return eldest < 0 ? null : removeAt(eldest);
+    }
+
+    /**
+     * Backward shift deletion, so that no tombstones are left behind.
+     */
+    @SuppressWarnings("unchecked")
+    private V removeAt(int slot) {
+        V old = (V) values[slot];
+        int hole = slot;
+        for (int i = (slot + 1) & mask; values[i] != null; i = (i + 1) & mask) {
+            int k = i * 3;
+            int home = hash(keys[k], keys[k + 1], keys[k + 2]) & mask;
+            // Move the entry back unless its home lies cyclically in (hole, i]
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                System.arraycopy(keys, k, keys, hole * 3, 3);
+                values[hole] = values[i];
+                stamps[hole] = stamps[i];
+                hole = i;
+            }
+        }
+        values[hole] = null;
+        size--;
+        return old;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Slots, for iterating with {@link #valueAt(int)}.
+     */
+    public int slots() {
+        return values.length;
+    }
+
+    /**
+     * @return the value in a slot, or null if the slot is free
+     */
+    @SuppressWarnings("unchecked")
+    public V valueAt(int slot) {
+        return (V) values[slot];
+    }
+
+    public void clear() {
+        for (int i = 0; i < values.length; i++) values[i] = null;
+        size = 0;
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ **Copyright (C) 2017  xfalcon
+ **
+ **This program is free software: you can redistribute it and/or modify
+ **it under the terms of the GNU General Public License as published by
+ **the Free Software Foundation, either version 3 of the License, or
+ **(at your option) any later version.
+ **
+ **This program is distributed in the hope that it will be useful,
+ **but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ **GNU General Public License for more details.
+ **
+ **You should have received a copy of the GNU General Public License
+ **along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **
+ */
+
+package com.github.xfalcon.vhosts.vservice;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Reverse-label suffix trie of the hosts table.
+ * Labels are stored from the top level domain down, so one walk over a query
+ * answers both the exact entry and every ".suffix" wildcard above it.
+ * Names compare without regard to ASCII case (RFC 4343): labels are folded
+ * to lower case once when added, and query bytes as they are hashed and
+ * compared, so a 0x20-randomised query matches without a copy.
+ * An index is immutable once built and safe to share between threads.
+ */
+public class HostsIndex {
+
+    private final Node root;
+    private final int size;
+
+    private HostsIndex(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param domain query name, with or without the final dot
+     * @param ipv6   look up the AAAA table instead of the A table
+     * @return the 4 or 16 address bytes, or null when nothing matches
+     */
+    public byte[] lookup(CharSequence domain, boolean ipv6) {
+        int end = domain.length();
+        if (end > 0 && domain.charAt(end - 1) == '.') end--;
+        if (end == 0) return null;
+        Node node = root;
+        byte[] best = null;
+        while (true) {
+            int start = end;
+            while (start > 0 && domain.charAt(start - 1) != '.') start--;
+            node = node.child(domain, start, end);
+            if (node == null) return best;
+            if (start == 0) return node.match(ipv6, best);
+            byte[] suffix = node.suffix(ipv6);
+            if (suffix != null) best = suffix;
+            end = start - 1;
+        }
+    }
+
+    /**
+     * Same as {@link #lookup(CharSequence, boolean)}, reading and hashing the
+     * labels in place in the packet buffer.
+     */
+    public byte[] lookup(DnsQuery query, boolean ipv6) {
+        int i = query.labelCount() - 1;
+        if (i < 0) return null;
+        ByteBuffer buffer = query.buffer();
+        Node node = root;
+        byte[] best = null;
+        while (true) {
+            int start = query.labelStart(i);
+            node = node.child(buffer, start, start + query.labelLength(i));
+            if (node == null) return best;
+            if (i == 0) return node.match(ipv6, best);
+            byte[] suffix = node.suffix(ipv6);
+            if (suffix != null) best = suffix;
+            i--;
+        }
+    }
+
+    /**
+     * @return whether the name has an address in either table
+     */
+    public boolean contains(CharSequence domain) {
+        return lookup(domain, false) != null || lookup(domain, true) != null;
+    }
+
+    public boolean contains(DnsQuery query) {
+        return lookup(query, false) != null || lookup(query, true) != null;
+    }
+
+    static int hash(CharSequence s, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++)
+            h = 31 * h + lower(s.charAt(i) & 0xFF);
+        return h ^ (h >>> 16);
+    }
+
+    static int hash(ByteBuffer buffer, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++)
+            h = 31 * h + lower(buffer.get(i) & 0xFF);
+        return h ^ (h >>> 16);
+    }
+
+    private static int lower(int c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    static final class Node {
+        private final byte[] label;
+        private final int hash;
+        private Node[] children;
+        private int childCount;
+
+        private byte[] exact4;
+        private byte[] suffix4;
+        private byte[] exact6;
+        private byte[] suffix6;
+
+        private Node(byte[] label, int hash) {
+            this.label = label;
+            this.hash = hash;
+        }
+
+        byte[] exact(boolean ipv6) {
+            return ipv6 ? exact6 : exact4;
+        }
+
+        byte[] suffix(boolean ipv6) {
+            return ipv6 ? suffix6 : suffix4;
+        }
+
+        /**
+         * Match for a query ending at this node: the exact entry first, then
+         * this node's own wildcard, then the deepest wildcard seen above it.
+         */
+        byte[] match(boolean ipv6, byte[] best) {
+            byte[] exact = exact(ipv6);
+            if (exact != null) return exact;
+            byte[] suffix = suffix(ipv6);
+            return suffix != null ? suffix : best;
+        }
+
+        Node child(CharSequence s, int start, int end) {
+            Node[] table = children;
+            if (table == null) return null;
+            int h = hash(s, start, end);
+            int mask = table.length - 1;
+            for (int i = h & mask; ; i = (i + 1) & mask) {
+                Node child = table[i];
+                if (child == null) return null;
+                if (child.hash == h && child.labelEquals(s, start, end)) return child;
+            }
+        }
+
+        Node child(ByteBuffer buffer, int start, int end) {
+            Node[] table = children;
+            if (table == null) return null;
+            int h = hash(buffer, start, end);
+            int mask = table.length - 1;
+            for (int i = h & mask; ; i = (i + 1) & mask) {
+                Node child = table[i];
+                if (child == null) return null;
+                if (child.hash == h && child.labelEquals(buffer, start, end)) return child;
+            }
+        }
+
+        private boolean labelEquals(ByteBuffer buffer, int start, int end) {
+            if (label.length != end - start) return false;
+            for (int i = 0; i < label.length; i++)
+                if (label[i] != (byte) lower(buffer.get(start + i) & 0xFF)) return false;
+            return true;
+        }
+
+        private boolean labelEquals(CharSequence s, int start, int end) {
+            if (label.length != end - start) return false;
+            for (int i = 0; i < label.length; i++)
+                if (label[i] != (byte) lower(s.charAt(start + i) & 0xFF)) return false;
+            return true;
+        }
+
+        private Node addChild(CharSequence s, int start, int end) {
+            Node child = child(s, start, end);
+            if (child != null) return child;
+            byte[] bytes = new byte[end - start];
+            for (int i = 0; i < bytes.length; i++)
+                bytes[i] = (byte) lower(s.charAt(start + i) & 0xFF);
+            child = new Node(bytes, hash(s, start, end));
+            put(child);
+            return child;
+        }
+
+        private void put(Node child) {
+            if (children == null) children = new Node[4];
+            else if ((childCount + 1) * 4 > children.length * 3) rehash(children.length << 1);
+            insert(children, child);
+            childCount++;
+        }
+
+        private Node child(Node like) {
+            Node[] table = children;
+            if (table == null) return null;
+            int mask = table.length - 1;
+            for (int i = like.hash & mask; ; i = (i + 1) & mask) {
+                Node child = table[i];
+                if (child == null) return null;
+                if (child.hash == like.hash && Arrays.equals(child.label, like.label)) return child;
+            }
+        }
+
+        /**
+         * Moves the other node's entries and children into this one. Where
+         * both have a child, the smaller table goes into the larger.
+         *
+         * @param otherWins the other's addresses replace these, rather than the reverse
+         * @return how many entries both had
+         */
+        int merge(Node other, boolean otherWins) {
+            int replaced = 0;
+            if (other.exact4 != null) {
+                if (exact4 != null) replaced++;
+                if (exact4 == null || otherWins) exact4 = other.exact4;
+            }
+            if (other.suffix4 != null) {
+                if (suffix4 != null) replaced++;
+                if (suffix4 == null || otherWins) suffix4 = other.suffix4;
+            }
+            if (other.exact6 != null) {
+                if (exact6 != null) replaced++;
+                if (exact6 == null || otherWins) exact6 = other.exact6;
+            }
+            if (other.suffix6 != null) {
+                if (suffix6 != null) replaced++;
+                if (suffix6 == null || otherWins) suffix6 = other.suffix6;
+            }
+            Node[] moved = other.children;
+            if (moved == null) return replaced;
+            if (other.childCount > childCount) {
+                moved = children;
+                children = other.children;
+                childCount = other.childCount;
+                otherWins = !otherWins;
+                if (moved == null) return replaced;
+            }
+            for (Node child : moved) {
+                if (child == null) continue;
+                Node mine = child(child);
+                if (mine == null) put(child);
+                else replaced += mine.merge(child, otherWins);
+            }
+            return replaced;
+        }
+
+        private void rehash(int capacity) {
+            Node[] table = new Node[capacity];
+            for (Node child : children)
+                if (child != null) insert(table, child);
+            children = table;
+        }
+
+        private static void insert(Node[] table, Node child) {
+            int mask = table.length - 1;
+            int i = child.hash & mask;
+            while (table[i] != null) i = (i + 1) & mask;
+            table[i] = child;
+        }
+    }
+
+    /**
+     * Not thread safe; build on one thread and publish the result of {@link #build()}.
+     */
+    public static class Builder {
+        private Node root = new Node(null, 0);
+        private int size;
+
+        /**
+         * @param domain  "example.com" for an exact entry, ".example.com" for the domain and all its subdomains
+         * @param address 4 or 16 address bytes, also used as the answer RDATA
+         * @return false if the domain is empty or malformed
+         */
+        public boolean add(CharSequence domain, byte[] address) {
+            boolean ipv6 = address.length == 16;
+            int begin = 0;
+            int end = domain.length();
+            if (end > 0 && domain.charAt(end - 1) == '.') end--;
+            boolean wildcard = end > 0 && domain.charAt(0) == '.';
+            if (wildcard) begin = 1;
+            if (begin >= end) return false;
+
+            Node node = root;
+            while (end > begin) {
+                int start = end;
+                while (start > begin && domain.charAt(start - 1) != '.') start--;
+                if (start == end) return false;
+                node = node.addChild(domain, start, end);
+                end = start - 1;
+            }
+            if (end == begin) return false; // trailing empty label, e.g. "a..b" or "..b"
+
+            boolean added;
+            if (wildcard) {
+                added = node.suffix(ipv6) == null;
+                if (ipv6) node.suffix6 = address;
+                else node.suffix4 = address;
+            } else {
+                added = node.exact(ipv6) == null;
+                if (ipv6) node.exact6 = address;
+                else node.exact4 = address;
+            }
+            if (added) size++;
+            return true;
+        }
+
+        /**
+         * Moves every entry of the other builder into this one, as if they
+         * were added here after this one's, and leaves the other empty.
+         */
+        public void addAll(Builder other) {
+            size += other.size - root.merge(other.root, true);
+            other.root = new Node(null, 0);
+            other.size = 0;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public HostsIndex build() {
+            HostsIndex index = new HostsIndex(root, size);
+            root = null;
+            return index;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ **Copyright (C) 2017  xfalcon
+ **
+ **This program is free software: you can redistribute it and/or modify
+ **it under the terms of the GNU General Public License as published by
+ **the Free Software Foundation, either version 3 of the License, or
+ **(at your option) any later version.
+ **
+ **This program is distributed in the hope that it will be useful,
+ **but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ **GNU General Public License for more details.
+ **
+ **You should have received a copy of the GNU General Public License
+ **along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **
+ */
+
+package com.github.xfalcon.vhosts.vservice;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Builds the {@link HostsIndex} for a hosts file on several threads: the
+ * file is split on line boundaries into a chunk per thread, each parsed
+ * into its own partial trie on a ForkJoinPool, and neighbouring tries are merged
+ * as their tasks join, a later chunk's entries replacing an earlier one's
+ * as they would in a single pass. A regular file is mapped rather than read.
+ * With a parallelism of 1 the stream is parsed as it is read instead.
+ * ForkJoinPool needs API 21.
+ */
+public class HostsLoader {
+    // Merging moves about half the nodes at each level, so no more chunks than threads
+    static final int MIN_CHUNK_SIZE = 64 * 1024;
+
+    private final int parallelism;
+    private final int minChunkSize;
+    private int lines;
+    private int skipped;
+
+    public HostsLoader(int parallelism) {
+        this(parallelism, MIN_CHUNK_SIZE);
+    }
+
+    HostsLoader(int parallelism, int minChunkSize) {
+        this.parallelism = Math.max(1, parallelism);
+        this.minChunkSize = minChunkSize;
+    }
+
+    /**
+     * Does not close the stream.
+     */
+    public HostsIndex load(InputStream in) throws IOException {
+        if (parallelism > 1) return load(read(in));
+        HostsIndex.Builder builder = new HostsIndex.Builder();
+        HostsParser parser = new HostsParser(builder);
+        parser.parse(in);
+        lines = parser.lines();
+        skipped = parser.skipped();
+        return builder.build();
+    }
+
+    /**
+     * Reads from the buffer's position to its limit, leaving both as they were.
+     */
+    public HostsIndex load(ByteBuffer hosts) {
+        int[] bounds = chunks(hosts);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            Part part = pool.invoke(new Chunks(hosts, bounds, 0, bounds.length - 1));
+            lines = part.lines;
+            skipped = part.skipped;
+            return part.builder.build();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public int lines() {
+        return lines;
+    }
+
+    public int skipped() {
+        return skipped;
+    }
+
+    /**
+     * @return the offset each chunk starts at, then the end
+     */
+    private int[] chunks(ByteBuffer hosts) {
+        int start = hosts.position();
+        int end = hosts.limit();
+        int chunkSize = Math.max(minChunkSize, (int) (((long) end - start + parallelism - 1) / parallelism));
+        int[] bounds = new int[(end - start) / chunkSize + 2];
+        int count = 0;
+        bounds[count++] = start;
+        int pos = start;
+        while (end - pos > chunkSize) {
+            pos += chunkSize;
+            while (pos < end && hosts.get(pos - 1) != '\n') pos++;
+            if (pos == end) break;
+            bounds[count++] = pos;
+        }
+        bounds[count++] = end;
+        int[] result = new int[count];
+        System.arraycopy(bounds, 0, result, 0, count);
+        return result;
+    }
+
+    private static ByteBuffer read(InputStream in) throws IOException {
+        if (in instanceof FileInputStream) {
+            ByteBuffer mapped = map(((FileInputStream) in).getChannel());
+            if (mapped != null) return mapped;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+        byte[] buffer = new byte[64 * 1024];
+        int n;
+        while ((n = in.read(buffer)) >= 0) out.write(buffer, 0, n);
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    /**
+     * Pipes cannot be mapped, and files under /proc report no size.
+     *
+     * @return the rest of a regular file, or null to read the channel as a
+     * stream, from where it was
+     */
+    private static ByteBuffer map(FileChannel channel) {
+        try {
+            long position = channel.position();
+            long size = channel.size();
+            if (size <= position || size - position > Integer.MAX_VALUE) return null;
+            return channel.map(FileChannel.MapMode.READ_ONLY, position, size - position);
+        } catch (IOException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    private static final class Part {
+        final HostsIndex.Builder builder = new HostsIndex.Builder();
+        int lines;
+        int skipped;
+    }
+
+    /**
+     * Chunks from first up to last, a range of bounds.
+     */
+    private static final class Chunks extends RecursiveTask<Part> {
+        private static final long serialVersionUID = 1L;
+
+        private final ByteBuffer hosts;
+        private final int[] bounds;
+        private final int first;
+        private final int last;
+
+        Chunks(ByteBuffer hosts, int[] bounds, int first, int last) {
+            this.hosts = hosts;
+            this.bounds = bounds;
+            this.first = first;
+            this.last = last;
+        }
+
+        @Override
+        protected Part compute() {
+            if (last - first == 1) {
+                Part part = new Part();
+                ByteBuffer chunk = hosts.duplicate();
+                chunk.limit(bounds[last]);
+                chunk.position(bounds[first]);
+                HostsParser parser = new HostsParser(part.builder);
+                parser.parse(chunk);
+                part.lines = parser.lines();
+                part.skipped = parser.skipped();
+                return part;
+            }
+            int middle = (first + last) >>> 1;
+            Chunks earlier = new Chunks(hosts, bounds, first, middle);
+            earlier.fork();
+            Part later = new Chunks(hosts, bounds, middle, last).compute();
+            Part part = earlier.join();
+            part.builder.addAll(later.builder);
+            part.lines += later.lines;
+            part.skipped += later.skipped;
+            return part;
+        }
+    }
+}
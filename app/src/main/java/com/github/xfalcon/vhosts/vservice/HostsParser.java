@@ -0,0 +1,291 @@
+/*
+ **Copyright (C) 2017  xfalcon
+ **
+ **This program is free software: you can redistribute it and/or modify
+ **it under the terms of the GNU General Public License as published by
+ **the Free Software Foundation, either version 3 of the License, or
+ **(at your option) any later version.
+ **
+ **This program is distributed in the hope that it will be useful,
+ **but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ **GNU General Public License for more details.
+ **
+ **You should have received a copy of the GNU General Public License
+ **along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **
+ */
+
+package com.github.xfalcon.vhosts.vservice;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Reads a hosts file into a {@link HostsIndex.Builder} a byte at a time:
+ * an address, then the names it maps, separated by spaces or tabs, with
+ * everything after a '#' a comment. Addresses are parsed by hand, and a
+ * line that does not start with one is skipped without an exception. Names
+ * go to the builder through a view of the line, so a line allocates
+ * nothing but the trie nodes it adds, and consecutive lines for the same
+ * address share its bytes.
+ */
+public class HostsParser {
+    // Longer lines are skipped
+    static final int MAX_LINE = 1000;
+    private static final int READ_SIZE = 64 * 1024;
+
+    private final HostsIndex.Builder builder;
+    private final byte[] line = new byte[MAX_LINE];
+    private final Latin1 name = new Latin1(line);
+    private final byte[] parsed = new byte[16];
+    private byte[] lastAddress;
+    // The line so far
+    private int length;
+    private boolean overflow;
+    private int lines;
+    private int skipped;
+
+    public HostsParser(HostsIndex.Builder builder) {
+        this.builder = builder;
+    }
+
+    /**
+     * Reads until the end of the stream, or until the thread is interrupted.
+     * Does not close the stream.
+     */
+    public void parse(InputStream in) throws IOException {
+        byte[] buffer = new byte[READ_SIZE];
+        int n;
+        while (!Thread.interrupted() && (n = in.read(buffer)) >= 0) {
+            for (int i = 0; i < n; i++) accept(buffer[i]);
+        }
+        finish();
+    }
+
+    /**
+     * Reads from the buffer's position to its limit, leaving both as they were.
+     */
+    public void parse(ByteBuffer buffer) {
+        for (int i = buffer.position(); i < buffer.limit(); i++) accept(buffer.get(i));
+        finish();
+    }
+
+    private void accept(byte b) {
+        if (b == '\n') {
+            lines++;
+            if (overflow) skipped++;
+            else parseLine(length);
+            length = 0;
+            overflow = false;
+        } else if (length < MAX_LINE) {
+            line[length++] = b;
+        } else {
+            overflow = true;
+        }
+    }
+
+    private void finish() {
+        if (length == 0 && !overflow) return;
+        lines++;
+        if (overflow) skipped++;
+        else parseLine(length);
+        length = 0;
+        overflow = false;
+    }
+
+    /**
+     * @return lines read, blank and comment lines included
+     */
+    public int lines() {
+        return lines;
+    }
+
+    /**
+     * @return lines with something on them other than an address and names
+     */
+    public int skipped() {
+        return skipped;
+    }
+
+    private void parseLine(int length) {
+        int pos = skipSpace(0, length);
+        if (pos == length || line[pos] == '#') return;
+        int start = pos;
+        pos = skipToken(pos, length);
+        byte[] address = address(start, pos);
+        if (address == null) {
+            skipped++;
+            return;
+        }
+        while (true) {
+            pos = skipSpace(pos, length);
+            if (pos == length || line[pos] == '#') return;
+            start = pos;
+            pos = skipToken(pos, length);
+            name.set(start, pos);
+            builder.add(name, address);
+        }
+    }
+
+    private int skipSpace(int pos, int length) {
+        while (pos < length && isSpace(line[pos])) pos++;
+        return pos;
+    }
+
+    private int skipToken(int pos, int length) {
+        while (pos < length && !isSpace(line[pos]) && line[pos] != '#') pos++;
+        return pos;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\f' || b == 0x0B;
+    }
+
+    /**
+     * @return the address bytes, the previous line's array if they are the same, or null
+     */
+    private byte[] address(int start, int end) {
+        int length;
+        if (parseIPv4(line, start, end, parsed, 0)) length = 4;
+        else if (parseIPv6(line, start, end, parsed)) length = 16;
+        else return null;
+        byte[] last = lastAddress;
+        if (last != null && last.length == length) {
+            boolean same = true;
+            for (int i = 0; i < length && same; i++) same = last[i] == parsed[i];
+            if (same) return last;
+        }
+        lastAddress = Arrays.copyOf(parsed, length);
+        return lastAddress;
+    }
+
+    /**
+     * Dotted quad, each part 0 to 255 in at most three digits.
+     */
+    static boolean parseIPv4(byte[] s, int start, int end, byte[] out, int offset) {
+        int part = 0;
+        int value = 0;
+        int digits = 0;
+        for (int i = start; i < end; i++) {
+            byte c = s[i];
+            if (c >= '0' && c <= '9') {
+                if (++digits > 3) return false;
+                value = value * 10 + (c - '0');
+                if (value > 255) return false;
+            } else if (c == '.') {
+                if (digits == 0 || part == 3) return false;
+                out[offset + part++] = (byte) value;
+                value = 0;
+                digits = 0;
+            } else {
+                return false;
+            }
+        }
+        if (digits == 0 || part != 3) return false;
+        out[offset + 3] = (byte) value;
+        return true;
+    }
+
+    /**
+     * Up to eight groups of up to four hex digits, at most one "::" standing
+     * for the zero groups left out, and optionally a dotted quad for the last two.
+     */
+    static boolean parseIPv6(byte[] s, int start, int end, byte[] out) {
+        int groups = 0;
+        int gap = -1;
+        int i = start;
+        if (end - i >= 2 && s[i] == ':' && s[i + 1] == ':') {
+            gap = 0;
+            i += 2;
+        } else if (i < end && s[i] == ':') {
+            return false;
+        }
+        while (i < end) {
+            if (groups == 8) return false;
+            int groupStart = i;
+            int value = 0;
+            while (i < end && i - groupStart < 5) {
+                int digit = hexDigit(s[i]);
+                if (digit < 0) break;
+                value = value << 4 | digit;
+                i++;
+            }
+            if (i < end && s[i] == '.') {
+                // The rest is a dotted quad
+                if (groups > 6 || !parseIPv4(s, groupStart, end, out, 2 * groups)) return false;
+                groups += 2;
+                break;
+            }
+            int digits = i - groupStart;
+            if (digits == 0 || digits > 4) return false;
+            out[2 * groups] = (byte) (value >> 8);
+            out[2 * groups + 1] = (byte) value;
+            groups++;
+            if (i == end) break;
+            if (s[i] != ':' || ++i == end) return false;
+            if (s[i] == ':') {
+                if (gap >= 0) return false;
+                gap = groups;
+                i++;
+            }
+        }
+        if (gap < 0) return groups == 8;
+        if (groups == 8) return false;
+        // Move the groups after the gap to the end, and zero the gap
+        int tail = 2 * (groups - gap);
+        System.arraycopy(out, 2 * gap, out, 16 - tail, tail);
+        Arrays.fill(out, 2 * gap, 16 - tail, (byte) 0);
+        return true;
+    }
+
+    private static int hexDigit(byte c) {
+        if (c >= '0' && c <= '9') return c - '0';
+        if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+        if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+        return -1;
+    }
+
+    /**
+     * A name on the current line, one char per byte. UTF-8 names stay as the
+     * bytes they are on the wire.
+     */
+    private static final class Latin1 implements CharSequence {
+        private final byte[] bytes;
+        private int start;
+        private int length;
+
+        Latin1(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        void set(int start, int end) {
+            this.start = start;
+            this.length = end - start;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (bytes[start + index] & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            return toString().substring(from, to);
+        }
+
+        @Override
+        public String toString() {
+            char[] chars = new char[length];
+            for (int i = 0; i < length; i++) chars[i] = charAt(i);
+            return new String(chars);
+        }
+    }
+}
@@ -1,49 +0,0 @@
-/*
-** Copyright 2015, Mohamed Naufal
-**
-** Licensed under the Apache License, Version 2.0 (the "License");
-** you may not use this file except in compliance with the License.
-** You may obtain a copy of the License at
-**
-**     http://www.apache.org/licenses/LICENSE-2.0
-**
-** Unless required by applicable law or agreed to in writing, software
-** distributed under the License is distributed on an "AS IS" BASIS,
-** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
-** See the License for the specific language governing permissions and
-** limitations under the License.
-*/
-
-package com.github.xfalcon.vhosts.vservice;
-
-import java.util.LinkedHashMap;
-
-public class LRUCache<K, V> extends LinkedHashMap<K, V>
-{
-    private int maxSize;
-    private CleanupCallback callback;
-
-    public LRUCache(int maxSize, CleanupCallback callback)
-    {
-        super(maxSize + 1, 1, true);
-
-        this.maxSize = maxSize;
-        this.callback = callback;
-    }
-
-    @Override
-    protected boolean removeEldestEntry(Entry<K, V> eldest)
-    {
-        if (size() > maxSize)
-        {
-            callback.cleanup(eldest);
-            return true;
-        }
-        return false;
-    }
-
-    public static interface CleanupCallback<K, V>
-    {
-        public void cleanup(Entry<K, V> eldest);
-    }
-}
@@ -32,6 +32,7 @@ public class Packet {
     private static final int IP6_HEADER_SIZE = 40;
     private static final int TCP_HEADER_SIZE = 20;
     private static final int UDP_HEADER_SIZE = 8;
+    private static final int MSS_OPTION_SIZE = 4;
     private static final int TCP = 6;
     private static final int UDP = 17;
     private int IP_HEADER_SIZE;
@@ -43,8 +44,9 @@ public class Packet {
 
     private boolean isTCP;
     private boolean isUDP;
+    private long fixedSum = -1;
 
-    public Packet(ByteBuffer buffer) throws UnknownHostException {
+    public Packet(ByteBuffer buffer) {
         byte versionAndIHL = buffer.get();
         byte version = (byte) (versionAndIHL >> 4);
         if (version == 4) {
@@ -93,9 +95,12 @@ public class Packet {
     }
 
     public void swapSourceAndDestination() {
-        InetAddress newSourceAddress = ipHeader.destinationAddress;
-        ipHeader.destinationAddress = ipHeader.sourceAddress;
-        ipHeader.sourceAddress = newSourceAddress;
+        long newSourceHigh = ipHeader.destinationHigh;
+        long newSourceLow = ipHeader.destinationLow;
+        ipHeader.destinationHigh = ipHeader.sourceHigh;
+        ipHeader.destinationLow = ipHeader.sourceLow;
+        ipHeader.sourceHigh = newSourceHigh;
+        ipHeader.sourceLow = newSourceLow;
 
         if (isUDP) {
             int newSourcePort = udpHeader.destinationPort;
@@ -109,6 +114,21 @@ public class Packet {
     }
 
     public void updateTCPBuffer(ByteBuffer buffer, byte flags, long sequenceNum, long ackNum, int payloadSize) {
+        updateTCPBuffer(buffer, flags, sequenceNum, ackNum, payloadSize, 0);
+    }
+
+    /**
+     * @return the largest segment a packet of this flow can carry within the tun MTU
+     */
+    public int maxSegmentSize() {
+        return VhostsService.VPN_MTU - IP_TRAN_SIZE;
+    }
+
+    /**
+     * @param mss advertised with an MSS option when not 0, for a SYN-ACK without payload.
+     *            The buffer is then left positioned after the option.
+     */
+    public void updateTCPBuffer(ByteBuffer buffer, byte flags, long sequenceNum, long ackNum, int payloadSize, int mss) {
         buffer.position(0);
         fillHeader(buffer);
         backingBuffer = buffer;
@@ -122,12 +142,20 @@ public class Packet {
         tcpHeader.acknowledgementNumber = ackNum;
         backingBuffer.putInt(IP_HEADER_SIZE + 8, (int) ackNum);
 
-        // Reset header size, since we don't need options
-        byte dataOffset = (byte) (TCP_HEADER_SIZE << 2);
+        // Reset header size, the only option we send is MSS
+        int optionsSize = mss > 0 ? MSS_OPTION_SIZE : 0;
+        byte dataOffset = (byte) ((TCP_HEADER_SIZE + optionsSize) << 2);
         tcpHeader.dataOffsetAndReserved = dataOffset;
         backingBuffer.put(IP_HEADER_SIZE + 12, dataOffset);
-        checksum(payloadSize);
-        int totalLength = TCP_HEADER_SIZE + payloadSize;
+        if (mss > 0) {
+            backingBuffer.put(IP_TRAN_SIZE, (byte) TCPHeader.OPTION_MSS);
+            backingBuffer.put(IP_TRAN_SIZE + 1, (byte) MSS_OPTION_SIZE);
+            backingBuffer.putShort(IP_TRAN_SIZE + 2, (short) mss);
+            backingBuffer.position(IP_TRAN_SIZE + MSS_OPTION_SIZE);
+        }
+        // Options are summed like payload
+        checksum(optionsSize + payloadSize);
+        int totalLength = TCP_HEADER_SIZE + optionsSize + payloadSize;
         ipHeader.updateIpHeader(this, totalLength);
     }
 
@@ -152,72 +180,98 @@ public class Packet {
     }
 
     private void checksum(int payloadSize) {
-        int sum = 0;
-        int length;
-        int pos;
+        if (this.ipHeader.version == 4 && isUDP()) {
+            backingBuffer.putShort(IP_HEADER_SIZE + 6, (short) 0);
+            udpHeader.checksum = 0;
+            return;
+        }
+        // Only the fields that change between segments and the payload are summed each time
+        long sum = fixedSum() + Checksum.sum(backingBuffer, IP_TRAN_SIZE, payloadSize);
         if (isTCP()) {
-            length = TCP_HEADER_SIZE + payloadSize;
-            pos = 16;
+            sum += TCP_HEADER_SIZE + payloadSize
+                    + Checksum.sum32(tcpHeader.sequenceNumber) + Checksum.sum32(tcpHeader.acknowledgementNumber)
+                    + ((tcpHeader.dataOffsetAndReserved & 0xFF) << 8 | (tcpHeader.flags & 0xFF))
+                    + tcpHeader.window;
+            tcpHeader.checksum = Checksum.finish(sum);
+            backingBuffer.putShort(IP_HEADER_SIZE + 16, (short) tcpHeader.checksum);
         } else {
-            length = UDP_HEADER_SIZE + payloadSize;
-            pos = 6;
-        }
-        ByteBuffer buffer;
-        // Calculate pseudo-header checksum
-        if (this.ipHeader.version == 4) {
-            if (isUDP()) {
-                backingBuffer.putShort(IP_HEADER_SIZE + 6, (short) 0);
-                udpHeader.checksum = 0;
-                return;
-            }
-            buffer = ByteBuffer.wrap(ipHeader.sourceAddress.getAddress());
-            sum = BitUtils.getUnsignedShort(buffer.getShort()) + BitUtils.getUnsignedShort(buffer.getShort());
-            buffer = ByteBuffer.wrap(ipHeader.destinationAddress.getAddress());
-            sum += BitUtils.getUnsignedShort(buffer.getShort()) + BitUtils.getUnsignedShort(buffer.getShort());
-            sum += ipHeader.protocol + length;
-        } else if (this.ipHeader.version == 6) {
-            final int bbLength = 38; // IPv6 src + dst + nextHeader (with padding) + length 16+16+2+4
-            buffer = ByteBufferPool.acquire();
-            buffer.put(ipHeader.sourceAddress.getAddress());
-            buffer.put(ipHeader.destinationAddress.getAddress());
-            buffer.put((byte) 0); // padding
-            buffer.put(ipHeader.protocol);
-            buffer.putInt(length);
-            buffer.rewind();
-            for (int i = 0; i < bbLength / 2; ++i) {
-                sum += 0xffff & buffer.getShort();
-            }
-            ByteBufferPool.release(buffer);
+            // Pseudo-header length and UDP length
+            sum += 2 * (UDP_HEADER_SIZE + payloadSize);
+            int checksum = Checksum.finish(sum);
+            udpHeader.checksum = checksum == 0 ? 0xFFFF : checksum;
+            backingBuffer.putShort(IP_HEADER_SIZE + 6, (short) udpHeader.checksum);
         }
-        buffer = backingBuffer.duplicate();
-        // Clear previous checksum
-        buffer.putShort(IP_HEADER_SIZE + pos, (short) 0);
+    }
 
-        // Calculate TCP segment checksum
-        buffer.position(IP_HEADER_SIZE);
-        while (length > 1) {
-            sum += BitUtils.getUnsignedShort(buffer.getShort());
-            length -= 2;
+    /**
+     * Sum of the pseudo-header and transport header words that stay the same
+     * for every response built from this packet. Swapping source and
+     * destination does not change it.
+     */
+    private long fixedSum() {
+        if (fixedSum < 0) {
+            fixedSum = ipHeader.addressSum() + ipHeader.protocol;
+            if (isTCP)
+                fixedSum += tcpHeader.sourcePort + tcpHeader.destinationPort + tcpHeader.urgentPointer;
+            else
+                fixedSum += udpHeader.sourcePort + udpHeader.destinationPort;
         }
-        if (length > 0)
-            sum += BitUtils.getUnsignedByte(buffer.get()) << 8;
-
-        while (sum >> 16 > 0)
-            sum = (sum & 0xFFFF) + (sum >> 16);
-
-        sum = ~sum;
-        if (isUDP()) udpHeader.checksum = sum;
-        else tcpHeader.checksum = sum;
-        backingBuffer.putShort(IP_HEADER_SIZE + pos, (short) sum);
+        return fixedSum;
     }
 
     public static class IPHeader {
         public byte version;
         public byte protocol;
-        public InetAddress sourceAddress;
-        public InetAddress destinationAddress;
+        // Addresses as two big-endian halves, an IPv4 address is the low 32 bits of the low half
+        public long sourceHigh;
+        public long sourceLow;
+        public long destinationHigh;
+        public long destinationLow;
         public int totalLength;
 
+        public InetAddress getSourceAddress() throws UnknownHostException {
+            return toInetAddress(sourceHigh, sourceLow);
+        }
+
+        /**
+         * Allocates, only call when opening a socket
+         */
+        public InetAddress getDestinationAddress() throws UnknownHostException {
+            return toInetAddress(destinationHigh, destinationLow);
+        }
+
+        private InetAddress toInetAddress(long high, long low) throws UnknownHostException {
+            byte[] address;
+            if (version == 4) {
+                address = new byte[4];
+                ByteBuffer.wrap(address).putInt((int) low);
+            } else {
+                address = new byte[16];
+                ByteBuffer.wrap(address).putLong(high).putLong(low);
+            }
+            return InetAddress.getByAddress(address);
+        }
+
+        String addressToString(long high, long low) {
+            try {
+                return toInetAddress(high, low).getHostAddress();
+            } catch (UnknownHostException e) {
+                return "?";
+            }
+        }
+
+        /**
+         * @return sum of the 16 bit words of both addresses, for the pseudo-header
+         */
+        int addressSum() {
+            return wordSum(sourceHigh) + wordSum(sourceLow) + wordSum(destinationHigh) + wordSum(destinationLow);
+        }
+
+        private static int wordSum(long value) {
+            return (int) (value >>> 48) + (int) ((value >>> 32) & 0xFFFF)
+                    + (int) ((value >>> 16) & 0xFFFF) + (int) (value & 0xFFFF);
+        }
+
         public void fillHeader(ByteBuffer buffer) {
         }
 
@@ -238,12 +292,11 @@ public class Packet {
 
         private short TTL;
         private int headerChecksum;
-        private static byte[] addressBytes = new byte[4];
 
         public int optionsAndPadding;
 
 
-        private IP4Header(ByteBuffer buffer, byte version, byte IHL, int headerLength) throws UnknownHostException {
+        private IP4Header(ByteBuffer buffer, byte version, byte IHL, int headerLength) {
             this.version = version;
             this.IHL = IHL;
             this.headerLength = headerLength;
@@ -256,10 +309,8 @@ public class Packet {
             this.TTL = BitUtils.getUnsignedByte(buffer.get());
             this.protocol = buffer.get();
             this.headerChecksum = BitUtils.getUnsignedShort(buffer.getShort());
-            buffer.get(addressBytes);
-            this.sourceAddress = InetAddress.getByAddress(addressBytes);
-            buffer.get(addressBytes);
-            this.destinationAddress = InetAddress.getByAddress(addressBytes);
+            this.sourceLow = BitUtils.getUnsignedInt(buffer.getInt());
+            this.destinationLow = BitUtils.getUnsignedInt(buffer.getInt());
 
             //this.optionsAndPadding = buffer.getInt();
         }
@@ -275,32 +326,28 @@ public class Packet {
             buffer.put(this.protocol);
             buffer.putShort((short) this.headerChecksum);
 
-            buffer.put(this.sourceAddress.getAddress());
-            buffer.put(this.destinationAddress.getAddress());
+            buffer.putInt((int) this.sourceLow);
+            buffer.putInt((int) this.destinationLow);
         }
 
         @Override
         public void updateIpHeader(Packet packet, int tcpPayLength) {
-            this.totalLength = packet.IP_HEADER_SIZE + tcpPayLength;
-            packet.backingBuffer.putShort(2, (short) this.totalLength);
-            ByteBuffer buffer = packet.backingBuffer.duplicate();
-            buffer.position(0);
-
-            // Clear previous checksum
-            buffer.putShort(10, (short) 0);
-
-            int ipLength = headerLength;
-            int sum = 0;
-            while (ipLength > 0) {
-                sum += BitUtils.getUnsignedShort(buffer.getShort());
-                ipLength -= 2;
+            int newTotalLength = packet.IP_HEADER_SIZE + tcpPayLength;
+            ByteBuffer buffer = packet.backingBuffer;
+            buffer.putShort(2, (short) newTotalLength);
+            if (headerLength == IP4_HEADER_SIZE) {
+                // Summed from the fields just written rather than updated from the
+                // checksum the device sent, which this packet cannot vouch for
+                long sum = ((version << 12) | (IHL << 8) | typeOfService) + newTotalLength
+                        + Checksum.sum32(identificationAndFlagsAndFragmentOffset & 0xFFFFFFFFL)
+                        + ((TTL << 8) | (protocol & 0xFF)) + addressSum();
+                headerChecksum = Checksum.finish(sum);
+            } else {
+                buffer.putShort(10, (short) 0);
+                headerChecksum = Checksum.finish(Checksum.sum(buffer, 0, headerLength));
             }
-            while (sum >> 16 > 0)
-                sum = (sum & 0xFFFF) + (sum >> 16);
-
-            sum = ~sum;
-            headerChecksum = sum;
-            packet.backingBuffer.putShort(10, (short) sum);
+            this.totalLength = newTotalLength;
+            buffer.putShort(10, (short) headerChecksum);
         }
 
         @Override
@@ -314,8 +361,8 @@ public class Packet {
             sb.append(", TTL=").append(TTL);
             sb.append(", protocol=").append(protocol);
             sb.append(", headerChecksum=").append(headerChecksum);
-            sb.append(", sourceAddress=").append(sourceAddress.getHostAddress());
-            sb.append(", destinationAddress=").append(destinationAddress.getHostAddress());
+            sb.append(", sourceAddress=").append(addressToString(sourceHigh, sourceLow));
+            sb.append(", destinationAddress=").append(addressToString(destinationHigh, destinationLow));
             sb.append('}');
             return sb.toString();
         }
@@ -324,9 +371,8 @@ public class Packet {
     public static class IP6Header extends IPHeader {
         private long versionTrafficFlowLabel;
         private byte hotLimit;
-        private static byte[] addressBytes = new byte[16];
 
-        private IP6Header(ByteBuffer buffer, byte version) throws UnknownHostException {
+        private IP6Header(ByteBuffer buffer, byte version) {
             this.version = version;
             buffer.position(0);
             this.versionTrafficFlowLabel = BitUtils.getUnsignedInt(buffer.getInt());
@@ -334,10 +380,10 @@ public class Packet {
             this.totalLength = BitUtils.getUnsignedShort(buffer.getShort());
             this.protocol = buffer.get();
             this.hotLimit = buffer.get();
-            buffer.get(addressBytes);
-            this.sourceAddress = InetAddress.getByAddress(addressBytes);
-            buffer.get(addressBytes);
-            this.destinationAddress = InetAddress.getByAddress(addressBytes);
+            this.sourceHigh = buffer.getLong();
+            this.sourceLow = buffer.getLong();
+            this.destinationHigh = buffer.getLong();
+            this.destinationLow = buffer.getLong();
             //this.optionsAndPadding = buffer.getInt();
         }
 
@@ -352,8 +398,10 @@ public class Packet {
             buffer.putShort((short) this.totalLength);
             buffer.put(this.protocol);
             buffer.put(this.hotLimit);
-            buffer.put((this.sourceAddress.getAddress()));
-            buffer.put(this.destinationAddress.getAddress());
+            buffer.putLong(this.sourceHigh);
+            buffer.putLong(this.sourceLow);
+            buffer.putLong(this.destinationHigh);
+            buffer.putLong(this.destinationLow);
         }
 
         @Override
@@ -364,8 +412,8 @@ public class Packet {
             sb.append(", payload=").append(totalLength);
             sb.append(", protocol=").append(protocol);
             sb.append(", hotLimit=").append(hotLimit);
-            sb.append(", sourceAddress=").append(sourceAddress.getHostAddress());
-            sb.append(", destinationAddress=").append(destinationAddress.getHostAddress());
+            sb.append(", sourceAddress=").append(addressToString(sourceHigh, sourceLow));
+            sb.append(", destinationAddress=").append(addressToString(destinationHigh, destinationLow));
             sb.append('}');
             return sb.toString();
         }
@@ -380,6 +428,10 @@ public class Packet {
         public static final int ACK = 0x10;
         public static final int URG = 0x20;
 
+        static final int OPTION_END = 0;
+        static final int OPTION_NOP = 1;
+        static final int OPTION_MSS = 2;
+
         public int sourcePort;
         public int destinationPort;
 
@@ -389,12 +441,14 @@ public class Packet {
         private byte dataOffsetAndReserved;
         private int headerLength;
         private byte flags;
-        private int window;
+        // Unscaled, we never negotiate window scaling
+        public int window;
 
         private int checksum;
         private int urgentPointer;
 
-        private byte[] optionsAndPadding;
+        // From the MSS option of a SYN, 0 if there was none
+        public int maxSegmentSize;
 
         private TCPHeader(ByteBuffer buffer) {
             this.sourcePort = BitUtils.getUnsignedShort(buffer.getShort());
@@ -411,10 +465,29 @@ public class Packet {
             this.checksum = BitUtils.getUnsignedShort(buffer.getShort());
             this.urgentPointer = BitUtils.getUnsignedShort(buffer.getShort());
 
+            // Skipped, not copied, the MSS of a SYN is all we need
             int optionsLength = this.headerLength - TCP_HEADER_SIZE;
             if (optionsLength > 0) {
-                optionsAndPadding = new byte[optionsLength];
-                buffer.get(optionsAndPadding, 0, optionsLength);
+                if (isSYN()) parseOptions(buffer, buffer.position(), buffer.position() + optionsLength);
+                buffer.position(buffer.position() + optionsLength);
+            }
+        }
+
+        private void parseOptions(ByteBuffer buffer, int start, int end) {
+            int i = start;
+            while (i < end) {
+                int kind = buffer.get(i) & 0xFF;
+                if (kind == OPTION_END) break;
+                if (kind == OPTION_NOP) {
+                    i++;
+                    continue;
+                }
+                if (i + 1 >= end) break;
+                int length = buffer.get(i + 1) & 0xFF;
+                if (length < 2 || i + length > end) break;
+                if (kind == OPTION_MSS && length == MSS_OPTION_SIZE)
+                    maxSegmentSize = buffer.getShort(i + 2) & 0xFFFF;
+                i += length;
             }
         }
 
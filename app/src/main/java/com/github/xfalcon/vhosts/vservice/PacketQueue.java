@@ -0,0 +1,212 @@
+/*
+ **Copyright (C) 2017  xfalcon
+ **
+ **This program is free software: you can redistribute it and/or modify
+ **it under the terms of the GNU General Public License as published by
+ **the Free Software Foundation, either version 3 of the License, or
+ **(at your option) any later version.
+ **
+ **This program is distributed in the hope that it will be useful,
+ **but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ **GNU General Public License for more details.
+ **
+ **You should have received a copy of the GNU General Public License
+ **along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **
+ */
+
+package com.github.xfalcon.vhosts.vservice;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded multi-producer single-consumer queue between the relay threads.
+ * The consumer parks while the queue is empty and producers unpark it, so
+ * nobody has to sleep-poll. What happens to a producer on a full queue is
+ * decided by the {@link Policy}.
+ */
+public class PacketQueue<E> {
+
+    public enum Policy {
+        /**
+         * Hand the element to the {@link DropCallback} and return at once
+         */
+        DROP,
+        /**
+         * Park the producer until the consumer makes room
+         */
+        BLOCK,
+    }
+
+    public interface DropCallback<E> {
+        void dropped(E element);
+    }
+
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+
+    private final Policy policy;
+    private final DropCallback<E> callback;
+    private volatile Thread consumer;
+    private volatile boolean woken;
+    private final ConcurrentLinkedQueue<Thread> blockedProducers = new ConcurrentLinkedQueue<>();
+
+    private final Stats.Counter drops;
+    private final Stats.Counter maxDepth;
+
+    /**
+     * @param name     prefix of the queue's counters
+     * @param capacity rounded up to a power of two
+     */
+    public PacketQueue(String name, int capacity, Policy policy, DropCallback<E> callback) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.elements = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) sequences.set(i, i);
+        this.mask = size - 1;
+        this.policy = policy;
+        this.callback = callback;
+        this.drops = Stats.counter("queue." + name + ".drops");
+        this.maxDepth = Stats.counter("queue." + name + ".max_depth");
+    }
+
+    /**
+     * Called by any thread.
+     *
+     * @return false if the element was dropped
+     */
+    public boolean offer(E element) {
+        if (tryOffer(element)) return true;
+        if (policy == Policy.BLOCK) {
+            Thread current = Thread.currentThread();
+            while (!current.isInterrupted()) {
+                blockedProducers.offer(current);
+                if (tryOffer(element)) {
+                    blockedProducers.remove(current);
+                    return true;
+                }
+                LockSupport.park(this);
+                blockedProducers.remove(current);
+                if (tryOffer(element)) return true;
+            }
+        }
+        drops.inc();
+        callback.dropped(element);
+        return false;
+    }
+
+    private boolean tryOffer(E element) {
+        long pos = tail.get();
+        while (true) {
+            int index = (int) (pos & mask);
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) break;
+                pos = tail.get();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+        int index = (int) (pos & mask);
+        elements.set(index, element);
+        sequences.set(index, pos + 1);
+        long depth = pos + 1 - head;
+        maxDepth.max(depth);
+        Thread waiting = consumer;
+        if (waiting != null) LockSupport.unpark(waiting);
+        return true;
+    }
+
+    /**
+     * Called by the consumer thread only.
+     *
+     * @return the head of the queue, or null if it is empty
+     */
+    public E poll() {
+        long pos = head;
+        int index = (int) (pos & mask);
+        if (sequences.get(index) != pos + 1) return null;
+        E element = elements.get(index);
+        elements.set(index, null);
+        sequences.set(index, pos + mask + 1);
+        head = pos + 1;
+        if (!blockedProducers.isEmpty()) {
+            Thread producer = blockedProducers.poll();
+            if (producer != null) LockSupport.unpark(producer);
+        }
+        return element;
+    }
+
+    /**
+     * Called by any thread, makes the consumer's pending or next
+     * {@link #poll(long)} return null at once, for work handed over some
+     * other way. {@link #take()} keeps waiting.
+     */
+    public void wakeup() {
+        woken = true;
+        Thread waiting = consumer;
+        if (waiting != null) LockSupport.unpark(waiting);
+    }
+
+    /**
+     * Called by the consumer thread only, parks until an element arrives.
+     */
+    public E take() throws InterruptedException {
+        E element;
+        while ((element = poll(Long.MAX_VALUE)) == null) ;
+        return element;
+    }
+
+    /**
+     * Called by the consumer thread only, parks up to timeoutMillis, forever
+     * for Long.MAX_VALUE.
+     *
+     * @return the head of the queue, or null on timeout or {@link #wakeup()}
+     */
+    public E poll(long timeoutMillis) throws InterruptedException {
+        E element = poll();
+        if (element != null) return element;
+        long deadline = timeoutMillis == Long.MAX_VALUE ? Long.MAX_VALUE
+                : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        consumer = Thread.currentThread();
+        try {
+            while (true) {
+                element = poll();
+                if (element != null) return element;
+                if (Thread.interrupted()) throw new InterruptedException();
+                if (woken) {
+                    woken = false;
+                    return null;
+                }
+                if (deadline == Long.MAX_VALUE) {
+                    LockSupport.park(this);
+                } else {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) return null;
+                    LockSupport.parkNanos(this, remaining);
+                }
+            }
+        } finally {
+            consumer = null;
+        }
+    }
+
+    public int size() {
+        return (int) (tail.get() - head);
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+}
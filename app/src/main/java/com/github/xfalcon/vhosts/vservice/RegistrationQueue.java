@@ -0,0 +1,112 @@
+/*
+ **Copyright (C) 2017  xfalcon
+ **
+ **This program is free software: you can redistribute it and/or modify
+ **it under the terms of the GNU General Public License as published by
+ **the Free Software Foundation, either version 3 of the License, or
+ **(at your option) any later version.
+ **
+ **This program is distributed in the hope that it will be useful,
+ **but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ **GNU General Public License for more details.
+ **
+ **You should have received a copy of the GNU General Public License
+ **along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **
+ */
+
+package com.github.xfalcon.vhosts.vservice;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Registrations and interest changes for a selector, queued by any thread and
+ * applied by the selecting thread before it blocks. Other threads never touch
+ * the selector but to wake it up, and only the first command queued while it
+ * blocks does that.
+ */
+public class RegistrationQueue {
+
+    private static final class Command {
+        final SelectableChannel channel;
+        final int ops;
+        final Object attachment;
+
+        Command(SelectableChannel channel, int ops, Object attachment) {
+            this.channel = channel;
+            this.ops = ops;
+            this.attachment = attachment;
+        }
+    }
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Command> commands = new ConcurrentLinkedQueue<>();
+    // Set while the selecting thread may be blocked with commands it has not seen
+    private final AtomicBoolean selecting = new AtomicBoolean();
+    private final Stats.Counter queued;
+    private final Stats.Counter wakeups;
+
+    /**
+     * @param name prefix of the queue's counters
+     */
+    public RegistrationQueue(Selector selector, String name) {
+        this.selector = selector;
+        this.queued = Stats.counter("selector." + name + ".commands");
+        this.wakeups = Stats.counter("selector." + name + ".wakeups");
+    }
+
+    public Selector selector() {
+        return selector;
+    }
+
+    /**
+     * Any thread. Registers the channel, or sets its interest ops if it is registered already.
+     *
+     * @param attachment replaces the key's attachment, unless null
+     */
+    public void interestOps(SelectableChannel channel, int ops, Object attachment) {
+        commands.offer(new Command(channel, ops, attachment));
+        queued.inc();
+        if (selecting.compareAndSet(true, false)) {
+            selector.wakeup();
+            wakeups.inc();
+        }
+    }
+
+    /**
+     * Selecting thread only, in place of {@link Selector#select()}.
+     */
+    public int select() throws IOException {
+        selecting.set(true);
+        // A command queued from here on either is applied below or wakes up the select
+        apply();
+        int readyChannels = selector.select();
+        selecting.set(false);
+        return readyChannels;
+    }
+
+    private void apply() {
+        Command command;
+        while ((command = commands.poll()) != null) {
+            try {
+                SelectionKey key = command.channel.keyFor(selector);
+                if (key == null) {
+                    command.channel.register(selector, command.ops, command.attachment);
+                } else {
+                    key.interestOps(command.ops);
+                    if (command.attachment != null) key.attach(command.attachment);
+                }
+            } catch (ClosedChannelException | CancelledKeyException e) {
+                // Closed before its command came up
+            }
+        }
+    }
+}
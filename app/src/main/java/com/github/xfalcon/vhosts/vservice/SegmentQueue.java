@@ -0,0 +1,140 @@
+/*
+ **Copyright (C) 2017  xfalcon
+ **
+ **This program is free software: you can redistribute it and/or modify
+ **it under the terms of the GNU General Public License as published by
+ **the Free Software Foundation, either version 3 of the License, or
+ **(at your option) any later version.
+ **
+ **This program is distributed in the hope that it will be useful,
+ **but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ **GNU General Public License for more details.
+ **
+ **You should have received a copy of the GNU General Public License
+ **along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **
+ */
+
+package com.github.xfalcon.vhosts.vservice;
+
+import java.nio.ByteBuffer;
+
+/**
+ * TCP segments ordered by sequence number, with their payloads copied into
+ * pool buffers. A TCB keeps one for what it sent and the device has not
+ * acknowledged, and one for what the device sent ahead of a gap. Either
+ * holds at most a window, so the arrays stay small. Callers hold the TCB.
+ */
+public class SegmentQueue {
+    private long[] sequences = new long[8];
+    private ByteBuffer[] payloads = new ByteBuffer[8];
+    private int size;
+    private int bytes;
+
+    /**
+     * @return how far sequence number a is after b, negative if it is before,
+     * for numbers less than 2^31 apart
+     */
+    public static int distance(long a, long b) {
+        return (int) (a - b);
+    }
+
+    /**
+     * Copies length bytes from offset in source. Searches from the tail, so
+     * appending in order is constant time.
+     *
+     * @return false if a segment as long starting at the same number is already held
+     */
+    public boolean add(long sequence, ByteBuffer source, int offset, int length) {
+        int i = size;
+        while (i > 0 && distance(sequences[i - 1], sequence) > 0) i--;
+        if (i > 0 && distance(sequences[i - 1], sequence) == 0) {
+            if (payloads[i - 1].limit() >= length) return false;
+            bytes -= payloads[i - 1].limit();
+            ByteBufferPool.release(payloads[i - 1]);
+            payloads[i - 1] = copy(source, offset, length);
+            bytes += length;
+            return true;
+        }
+        if (size == payloads.length) {
+            long[] newSequences = new long[size * 2];
+            ByteBuffer[] newPayloads = new ByteBuffer[size * 2];
+            System.arraycopy(sequences, 0, newSequences, 0, size);
+            System.arraycopy(payloads, 0, newPayloads, 0, size);
+            sequences = newSequences;
+            payloads = newPayloads;
+        }
+        System.arraycopy(sequences, i, sequences, i + 1, size - i);
+        System.arraycopy(payloads, i, payloads, i + 1, size - i);
+        sequences[i] = sequence & 0xFFFFFFFFL;
+        payloads[i] = copy(source, offset, length);
+        size++;
+        bytes += length;
+        return true;
+    }
+
+    private static ByteBuffer copy(ByteBuffer source, int offset, int length) {
+        ByteBuffer copy = ByteBufferPool.acquire(length);
+        ByteBuffer slice = source.duplicate();
+        slice.limit(offset + length);
+        slice.position(offset);
+        copy.put(slice);
+        copy.flip();
+        return copy;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return payload bytes held
+     */
+    public int bytes() {
+        return bytes;
+    }
+
+    public long sequenceAt(int index) {
+        return sequences[index];
+    }
+
+    /**
+     * @return the payload from its start, still owned by the queue
+     */
+    public ByteBuffer payloadAt(int index) {
+        ByteBuffer payload = payloads[index];
+        payload.position(0);
+        return payload;
+    }
+
+    public void removeFirst() {
+        bytes -= payloads[0].limit();
+        ByteBufferPool.release(payloads[0]);
+        size--;
+        System.arraycopy(sequences, 1, sequences, 0, size);
+        System.arraycopy(payloads, 1, payloads, 0, size);
+        payloads[size] = null;
+    }
+
+    /**
+     * Removes the segments that end at or before sequence, a cumulative ACK.
+     */
+    public void removeUpTo(long sequence) {
+        while (size > 0 && distance(sequence, sequences[0] + payloads[0].limit()) >= 0)
+            removeFirst();
+    }
+
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            ByteBufferPool.release(payloads[i]);
+            payloads[i] = null;
+        }
+        size = 0;
+        bytes = 0;
+    }
+}
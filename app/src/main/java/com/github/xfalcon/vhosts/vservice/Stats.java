@@ -0,0 +1,172 @@
+/*
+ **Copyright (C) 2017  xfalcon
+ **
+ **This program is free software: you can redistribute it and/or modify
+ **it under the terms of the GNU General Public License as published by
+ **the Free Software Foundation, either version 3 of the License, or
+ **(at your option) any later version.
+ **
+ **This program is distributed in the hope that it will be useful,
+ **but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ **GNU General Public License for more details.
+ **
+ **You should have received a copy of the GNU General Public License
+ **along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **
+ */
+
+package com.github.xfalcon.vhosts.vservice;
+
+import com.github.xfalcon.vhosts.util.LogUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process wide counters of the VPN service, written to the log when it stops.
+ * Counters are declared as static fields next to the code that updates them.
+ */
+public class Stats {
+
+    private static final List<Object> metrics = new ArrayList<>();
+
+    /**
+     * @return the counter registered under name, created on first use
+     */
+    public static Counter counter(String name) {
+        synchronized (metrics) {
+            for (Object metric : metrics)
+                if (metric instanceof Counter && ((Counter) metric).name.equals(name))
+                    return (Counter) metric;
+            Counter counter = new Counter(name);
+            metrics.add(counter);
+            return counter;
+        }
+    }
+
+    /**
+     * @return the histogram registered under name, created on first use
+     */
+    public static Histogram histogram(String name) {
+        synchronized (metrics) {
+            for (Object metric : metrics)
+                if (metric instanceof Histogram && ((Histogram) metric).name.equals(name))
+                    return (Histogram) metric;
+            Histogram histogram = new Histogram(name);
+            metrics.add(histogram);
+            return histogram;
+        }
+    }
+
+    public static void dump(String tag) {
+        synchronized (metrics) {
+            for (Object metric : metrics)
+                LogUtils.i(tag, metric.toString());
+        }
+    }
+
+    public static void reset() {
+        synchronized (metrics) {
+            for (Object metric : metrics) {
+                if (metric instanceof Counter) ((Counter) metric).set(0);
+                else ((Histogram) metric).reset();
+            }
+        }
+    }
+
+    public static class Counter {
+        private final String name;
+        private final AtomicLong value = new AtomicLong();
+
+        private Counter(String name) {
+            this.name = name;
+        }
+
+        public void inc() {
+            value.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            value.addAndGet(delta);
+        }
+
+        public void set(long newValue) {
+            value.set(newValue);
+        }
+
+        /**
+         * Raises the counter to candidate if it is higher, for high-water marks
+         * updated by several threads. A CAS loop, accumulateAndGet is API 24.
+         */
+        public void max(long candidate) {
+            long current;
+            while (candidate > (current = value.get()))
+                if (value.compareAndSet(current, candidate)) return;
+        }
+
+        public long get() {
+            return value.get();
+        }
+
+        @Override
+        public String toString() {
+            return name + "=" + value.get();
+        }
+    }
+
+    /**
+     * Power of two buckets: bucket i counts values in [2^(i-1), 2^i), bucket 0 counts zero.
+     */
+    public static class Histogram {
+        private static final int BUCKETS = 32;
+
+        private final String name;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+
+        private Histogram(String name) {
+            this.name = name;
+        }
+
+        public void record(long value) {
+            if (value < 0) value = 0;
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+            buckets.incrementAndGet(bucket);
+            count.incrementAndGet();
+            sum.addAndGet(value);
+        }
+
+        public long count() {
+            return count.get();
+        }
+
+        public long bucket(int i) {
+            return buckets.get(i);
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) buckets.set(i, 0);
+            count.set(0);
+            sum.set(0);
+        }
+
+        @Override
+        public String toString() {
+            long n = count.get();
+            final StringBuilder sb = new StringBuilder(name);
+            sb.append("{count=").append(n);
+            if (n > 0) sb.append(", mean=").append(sum.get() / n);
+            for (int i = 0; i < BUCKETS; i++) {
+                long c = buckets.get(i);
+                if (c == 0) continue;
+                sb.append(", <").append(1L << i).append('=').append(c);
+            }
+            sb.append('}');
+            return sb.toString();
+        }
+    }
+}
@@ -17,10 +17,7 @@
 package com.github.xfalcon.vhosts.vservice;
 
 import java.io.IOException;
-import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.Iterator;
-import java.util.Map;
 
 /**
  * Transmission Control Block
@@ -28,6 +25,8 @@ import java.util.Map;
 public class TCB
 {
     public String ipAndPort;
+    // Flow key in the TCB table, see FlowTable
+    public long keyHigh, keyLow, keyPorts;
 
     public long mySequenceNum, theirSequenceNum;
     public long myAcknowledgementNum, theirAcknowledgementNum;
@@ -44,42 +43,41 @@ public class TCB
     }
 
     public Packet referencePacket;
+    // Largest segment sent to the device, the smaller of its MSS and what fits in our MTU
+    public int maxSegmentSize;
+    // Receive window from the device's latest ACK
+    public int deviceWindow;
+    // Set by TCPInput when it stopped reading on a full window, cleared by TCPOutput on the ACK that opens it
+    public boolean windowFull;
+
+    // Sent to the device and not acknowledged yet, resent if the device lost them
+    public final SegmentQueue unacknowledged = new SegmentQueue();
+    // Received from the device ahead of a gap, forwarded once the gap is filled
+    public final SegmentQueue outOfOrder = new SegmentQueue();
+    // Retransmission state, times from TimerWheel.now()
+    public long retransmitTimeout;
+    public long lastAckProgress;
+    public int duplicateAcks;
+    public TCPOutput.RetransmitTimer retransmitTimer;
 
     public SocketChannel channel;
     public boolean waitingForNetworkData;
-    public SelectionKey selectionKey;
-
-    private static final int MAX_CACHE_SIZE = 50; // XXX: Is this ideal?
-    private static LRUCache<String, TCB> tcbCache =
-            new LRUCache<>(MAX_CACHE_SIZE, new LRUCache.CleanupCallback<String, TCB>()
-            {
-                @Override
-                public void cleanup(Map.Entry<String, TCB> eldest)
-                {
-                    eldest.getValue().closeChannel();
-                }
-            });
-
-    public static TCB getTCB(String ipAndPort)
-    {
-        synchronized (tcbCache)
-        {
-            return tcbCache.get(ipAndPort);
-        }
-    }
+    // Set by closeTCB() on any thread, the table drops the TCB when TCPOutput next sees it
+    public volatile boolean closed;
 
-    public static void putTCB(String ipAndPort, TCB tcb)
-    {
-        synchronized (tcbCache)
-        {
-            tcbCache.put(ipAndPort, tcb);
-        }
-    }
+    // Written by both relay threads, see TimerWheel.now()
+    public volatile long lastActivity;
+    // Scheduled by TCPOutput, expires the TCB once it has been idle too long for its status
+    public TimerWheel.Timer idleTimer;
 
-    public TCB(String ipAndPort, long mySequenceNum, long theirSequenceNum, long myAcknowledgementNum, long theirAcknowledgementNum,
+    public TCB(String ipAndPort, long keyHigh, long keyLow, long keyPorts,
+               long mySequenceNum, long theirSequenceNum, long myAcknowledgementNum, long theirAcknowledgementNum,
                SocketChannel channel, Packet referencePacket)
     {
         this.ipAndPort = ipAndPort;
+        this.keyHigh = keyHigh;
+        this.keyLow = keyLow;
+        this.keyPorts = keyPorts;
 
         this.mySequenceNum = mySequenceNum;
         this.theirSequenceNum = theirSequenceNum;
@@ -90,26 +88,29 @@ public class TCB
         this.referencePacket = referencePacket;
     }
 
-    public static void closeTCB(TCB tcb)
+    /**
+     * @return bytes sent to the device and not acknowledged yet
+     */
+    public long bytesInFlight()
     {
-        tcb.closeChannel();
-        synchronized (tcbCache)
-        {
-            tcbCache.remove(tcb.ipAndPort);
-        }
+        return (mySequenceNum - theirAcknowledgementNum) & 0xFFFFFFFFL;
     }
 
-    public static void closeAll()
+    /**
+     * @return bytes the device can still take, negative if it shrank its window
+     */
+    public long windowAvailable()
     {
-        synchronized (tcbCache)
-        {
-            Iterator<Map.Entry<String, TCB>> it = tcbCache.entrySet().iterator();
-            while (it.hasNext())
-            {
-                it.next().getValue().closeChannel();
-                it.remove();
-            }
-        }
+        return deviceWindow - bytesInFlight();
+    }
+
+    /**
+     * Any thread.
+     */
+    public static void closeTCB(TCB tcb)
+    {
+        tcb.closed = true;
+        tcb.closeChannel();
     }
 
     private void closeChannel()
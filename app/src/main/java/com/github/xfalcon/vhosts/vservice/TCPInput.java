@@ -26,22 +26,31 @@ import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.Iterator;
 import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.locks.ReentrantLock;
 
 public class TCPInput implements Runnable
 {
     private static final String TAG = TCPInput.class.getSimpleName();
 
-    private ConcurrentLinkedQueue<ByteBuffer> outputQueue;
+    // Segments filled by one read, 8 full IPv4 segments are close to a LARGE buffer
+    private static final int SEGMENTS_PER_READ = 8;
+    private static final Stats.Histogram SEGMENTS = Stats.histogram("tcp.input.segments_per_read");
+    // Sampled per flow after every read
+    private static final Stats.Histogram IN_FLIGHT = Stats.histogram("tcp.window.in_flight_bytes");
+    private static final Stats.Counter PAUSED = Stats.counter("tcp.window.paused");
+
+    private PacketQueue<ByteBuffer> outputQueue;
     private Selector selector;
-    private ReentrantLock tcpSelectorLock;
+    private RegistrationQueue registrations;
+    private final ByteBuffer[] segments = new ByteBuffer[SEGMENTS_PER_READ];
+    private int allocated;
+    private final Stats.Counter reads;
 
-    public TCPInput(ConcurrentLinkedQueue<ByteBuffer> outputQueue, Selector selector,ReentrantLock tcpSelectorLock)
+    public TCPInput(PacketQueue<ByteBuffer> outputQueue, RegistrationQueue registrations, int shard)
     {
+        this.reads = Stats.counter("tcp.shard." + shard + ".reads");
         this.outputQueue = outputQueue;
-        this.selector = selector;
-        this.tcpSelectorLock=tcpSelectorLock;
+        this.selector = registrations.selector();
+        this.registrations = registrations;
     }
 
     @Override
@@ -52,15 +61,11 @@ public class TCPInput implements Runnable
             LogUtils.i(TAG, "Started");
             while (!Thread.interrupted())
             {
-                tcpSelectorLock.lock();
-                tcpSelectorLock.unlock();
-
-                int readyChannels = selector.select();
+                int readyChannels = registrations.select();
 
-                if (readyChannels == 0) {
-                    Thread.sleep(11);
+                // Woken up for a registration, applied by the next select
+                if (readyChannels == 0)
                     continue;
-                }
                 Set<SelectionKey> keys = selector.selectedKeys();
                 Iterator<SelectionKey> keyIterator = keys.iterator();
 
@@ -76,9 +81,6 @@ public class TCPInput implements Runnable
                     }
                 }
             }
-        }
-        catch (InterruptedException e)
-        {
             LogUtils.i(TAG, "Stopping");
         }
         catch (IOException e)
@@ -97,22 +99,24 @@ public class TCPInput implements Runnable
             if (tcb.channel.finishConnect())
             {
                 keyIterator.remove();
-                tcb.status = TCB.TCBStatus.SYN_RECEIVED;
-
-                // TODO: Set MSS for receiving larger packets from the device
-                ByteBuffer responseBuffer = ByteBufferPool.acquire();
-                referencePacket.updateTCPBuffer(responseBuffer, (byte) (Packet.TCPHeader.SYN | Packet.TCPHeader.ACK),
-                        tcb.mySequenceNum, tcb.myAcknowledgementNum, 0);
+                ByteBuffer responseBuffer = ByteBufferPool.acquire(ByteBufferPool.SMALL);
+                // Counted before it goes out, TCPOutput may take the device's ACK right after
+                synchronized (tcb)
+                {
+                    tcb.status = TCB.TCBStatus.SYN_RECEIVED;
+                    tcb.lastActivity = TimerWheel.now();
+                    referencePacket.updateTCPBuffer(responseBuffer, (byte) (Packet.TCPHeader.SYN | Packet.TCPHeader.ACK),
+                            tcb.mySequenceNum, tcb.myAcknowledgementNum, 0, referencePacket.maxSegmentSize());
+                    tcb.mySequenceNum++; // SYN counts as a byte
+                }
                 outputQueue.offer(responseBuffer);
-
-                tcb.mySequenceNum++; // SYN counts as a byte
                 key.interestOps(SelectionKey.OP_READ);
             }
         }
         catch (IOException e)
         {
             LogUtils.e(TAG, "Connection error: " + tcb.ipAndPort, e);
-            ByteBuffer responseBuffer = ByteBufferPool.acquire();
+            ByteBuffer responseBuffer = ByteBufferPool.acquire(ByteBufferPool.SMALL);
             referencePacket.updateTCPBuffer(responseBuffer, (byte) Packet.TCPHeader.RST, 0, tcb.myAcknowledgementNum, 0);
             outputQueue.offer(responseBuffer);
             TCB.closeTCB(tcb);
@@ -122,25 +126,49 @@ public class TCPInput implements Runnable
     private void processInput(SelectionKey key, Iterator<SelectionKey> keyIterator)
     {
         keyIterator.remove();
-        ByteBuffer receiveBuffer = ByteBufferPool.acquire();
-        // Leave space for the header
 
         TCB tcb = (TCB) key.attachment();
         synchronized (tcb)
         {
+            long window = tcb.windowAvailable();
+            if (window <= 0)
+            {
+                // Whatever the server sends waits in the socket until the device ACKs
+                key.interestOps(0);
+                tcb.windowFull = true;
+                PAUSED.inc();
+                return;
+            }
+
             Packet referencePacket = tcb.referencePacket;
-            receiveBuffer.position(referencePacket.IP_TRAN_SIZE);
+            int headerSize = referencePacket.IP_TRAN_SIZE;
+            // Scatter the read straight into MSS sized segments, each after room for its header,
+            // and read no more than the window takes
+            allocated = (int) Math.min(segments.length, (window + tcb.maxSegmentSize - 1) / tcb.maxSegmentSize);
+            for (int i = 0; i < allocated; i++)
+            {
+                ByteBuffer segment = ByteBufferPool.acquire(ByteBufferPool.MTU);
+                segment.position(headerSize);
+                segment.limit(headerSize + (int) Math.min(tcb.maxSegmentSize, window));
+                window -= tcb.maxSegmentSize;
+                segments[i] = segment;
+            }
             SocketChannel inputChannel = (SocketChannel) key.channel();
-            int readBytes;
+            reads.inc();
+            long readBytes;
+            tcb.lastActivity = TimerWheel.now();
             try
             {
-                readBytes = inputChannel.read(receiveBuffer);
+                readBytes = inputChannel.read(segments, 0, allocated);
             }
             catch (IOException e)
             {
                 LogUtils.e(TAG, "Network read error: " + tcb.ipAndPort, e);
-                referencePacket.updateTCPBuffer(receiveBuffer, (byte) Packet.TCPHeader.RST, 0, tcb.myAcknowledgementNum, 0);
-                outputQueue.offer(receiveBuffer);
+                ByteBuffer responseBuffer = segments[0];
+                releaseSegments(1);
+                responseBuffer.clear();
+                referencePacket.updateTCPBuffer(responseBuffer, (byte) Packet.TCPHeader.RST, 0, tcb.myAcknowledgementNum, 0);
+                outputQueue.offer(responseBuffer);
                 TCB.closeTCB(tcb);
                 return;
             }
@@ -153,23 +181,53 @@ public class TCPInput implements Runnable
 
                 if (tcb.status != TCB.TCBStatus.CLOSE_WAIT)
                 {
-                    ByteBufferPool.release(receiveBuffer);
+                    releaseSegments(0);
                     return;
                 }
 
                 tcb.status = TCB.TCBStatus.LAST_ACK;
-                referencePacket.updateTCPBuffer(receiveBuffer, (byte) Packet.TCPHeader.FIN, tcb.mySequenceNum, tcb.myAcknowledgementNum, 0);
+                ByteBuffer responseBuffer = segments[0];
+                releaseSegments(1);
+                responseBuffer.clear();
+                referencePacket.updateTCPBuffer(responseBuffer, (byte) Packet.TCPHeader.FIN, tcb.mySequenceNum, tcb.myAcknowledgementNum, 0);
                 tcb.mySequenceNum++; // FIN counts as a byte
+                outputQueue.offer(responseBuffer);
+                return;
             }
-            else
+
+            // Every segment but the last is full
+            int count = (int) ((readBytes + tcb.maxSegmentSize - 1) / tcb.maxSegmentSize);
+            SEGMENTS.record(count);
+            for (int i = 0; i < count; i++)
             {
-                // XXX: We should ideally be splitting segments by MTU/MSS, but this seems to work without
-                referencePacket.updateTCPBuffer(receiveBuffer, (byte) (Packet.TCPHeader.PSH | Packet.TCPHeader.ACK),
-                        tcb.mySequenceNum, tcb.myAcknowledgementNum, readBytes);
-                tcb.mySequenceNum += readBytes; // Next sequence number
-                receiveBuffer.position(referencePacket.IP_TRAN_SIZE + readBytes);
+                ByteBuffer segment = segments[i];
+                int payloadSize = segment.position() - headerSize;
+                byte flags = (byte) (i == count - 1 ? Packet.TCPHeader.PSH | Packet.TCPHeader.ACK : Packet.TCPHeader.ACK);
+                referencePacket.updateTCPBuffer(segment, flags, tcb.mySequenceNum, tcb.myAcknowledgementNum, payloadSize);
+                // Kept until the device acknowledges it, the retransmission timeout runs from the first one out
+                if (tcb.unacknowledged.isEmpty())
+                {
+                    tcb.lastAckProgress = TimerWheel.now();
+                    if (tcb.retransmitTimer != null) tcb.retransmitTimer.arm();
+                }
+                tcb.unacknowledged.add(tcb.mySequenceNum, segment, headerSize, payloadSize);
+                tcb.mySequenceNum += payloadSize; // Next sequence number
+                segment.limit(segment.capacity());
+                segment.position(headerSize + payloadSize);
+                outputQueue.offer(segment);
+                segments[i] = null;
             }
+            releaseSegments(count);
+            IN_FLIGHT.record(tcb.bytesInFlight());
+        }
+    }
+
+    private void releaseSegments(int from)
+    {
+        for (int i = from; i < allocated; i++)
+        {
+            ByteBufferPool.release(segments[i]);
+            segments[i] = null;
         }
-        outputQueue.offer(receiveBuffer);
     }
 }
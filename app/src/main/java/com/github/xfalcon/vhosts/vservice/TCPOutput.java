@@ -22,13 +22,12 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.Random;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.locks.ReentrantLock;
 
 import com.github.xfalcon.vhosts.util.LogUtils;
+import com.github.xfalcon.vhosts.vservice.Packet.IPHeader;
 import com.github.xfalcon.vhosts.vservice.Packet.TCPHeader;
 import com.github.xfalcon.vhosts.vservice.TCB.TCBStatus;
 
@@ -37,20 +36,116 @@ public class TCPOutput implements Runnable
     private static final String TAG = TCPOutput.class.getSimpleName();
 
     private VhostsService vpnService;
-    private ConcurrentLinkedQueue<Packet> inputQueue;
-    private ConcurrentLinkedQueue<ByteBuffer> outputQueue;
-    private Selector selector;
-    private ReentrantLock tcpSelectorLock;
+    private PacketQueue<Packet> inputQueue;
+    private PacketQueue<ByteBuffer> outputQueue;
+    private RegistrationQueue registrations;
+
+    // Idle timeouts by status, a connection still handshaking or closing gets less time
+    private static final long HANDSHAKE_TIMEOUT = 30 * 1000;
+    private static final long ESTABLISHED_TIMEOUT = 5 * 60 * 1000;
+    private static final long CLOSE_WAIT_TIMEOUT = 60 * 1000;
+    private static final long LAST_ACK_TIMEOUT = 30 * 1000;
+    static final long TICK_MILLIS = 1000;
+    private static final int WHEEL_SLOTS = 64;
+
+    // RFC 6298 initial and upper bound, backed off exponentially in between
+    static final long INITIAL_RETRANSMIT_TIMEOUT = 1000;
+    static final long MAX_RETRANSMIT_TIMEOUT = 60 * 1000;
+    static final int DUPLICATE_ACK_THRESHOLD = 3;
+    // Held per flow ahead of a gap, more is dropped for the device to send again
+    private static final int MAX_OUT_OF_ORDER_BYTES = 64 * 1024;
+
+    // Assumed when the device's SYN carries no MSS option
+    private static final int DEFAULT_MSS_IPV4 = 536;
+    private static final int DEFAULT_MSS_IPV6 = 1220;
+
+    private static final Stats.Counter[] EXPIRED = new Stats.Counter[TCBStatus.values().length];
+    private static final Stats.Counter REFUSED = Stats.counter("tcp.flows.refused_table_full");
+    private static final Stats.Counter EVICTED_CLOSED = Stats.counter("tcp.flows.evicted_closed");
+    private static final Stats.Counter RESUMED = Stats.counter("tcp.window.resumed");
+    private static final Stats.Counter DUPLICATE = Stats.counter("tcp.rx.duplicate");
+    private static final Stats.Counter OUT_OF_ORDER = Stats.counter("tcp.rx.out_of_order");
+    private static final Stats.Counter RETRANSMITTED = Stats.counter("tcp.tx.retransmitted");
+    private static final Stats.Counter FAST_RETRANSMITTED = Stats.counter("tcp.tx.fast_retransmitted");
+
+    static
+    {
+        for (TCBStatus status : TCBStatus.values())
+            EXPIRED[status.ordinal()] = Stats.counter("tcp.flows.expired_" + status.name().toLowerCase());
+    }
+
+    // Both owned by this thread, TCPInput only marks TCBs closed
+    private FlowTable<TCB> tcbTable;
+    private int maxFlows;
+    // Load of this shard
+    private final Stats.Counter packets;
+    private final Stats.Counter peakFlows;
+    private TimerWheel timers = new TimerWheel(TICK_MILLIS, WHEEL_SLOTS, TimerWheel.now());
+    // Retransmit timers armed by TCPInput, scheduled by this thread
+    private final ConcurrentLinkedQueue<RetransmitTimer> armed = new ConcurrentLinkedQueue<>();
 
     private Random random = new Random();
-    public TCPOutput(ConcurrentLinkedQueue<Packet> inputQueue, ConcurrentLinkedQueue<ByteBuffer> outputQueue,
-                     Selector selector,ReentrantLock tcpSelectorLock, VhostsService vpnService)
+    /**
+     * @param shard    index of this relay, the flows of one shard never reach another
+     * @param maxFlows TCBs this shard keeps
+     */
+    public TCPOutput(PacketQueue<Packet> inputQueue, PacketQueue<ByteBuffer> outputQueue,
+                     RegistrationQueue registrations, VhostsService vpnService, int shard, int maxFlows)
     {
         this.inputQueue = inputQueue;
         this.outputQueue = outputQueue;
-        this.selector = selector;
+        this.registrations = registrations;
         this.vpnService = vpnService;
-        this.tcpSelectorLock=tcpSelectorLock;
+        this.maxFlows = maxFlows;
+        this.tcbTable = new FlowTable<>(maxFlows);
+        this.packets = Stats.counter("tcp.shard." + shard + ".packets");
+        this.peakFlows = Stats.counter("tcp.shard." + shard + ".peak_flows");
+    }
+
+    private class IdleTimer extends TimerWheel.Timer
+    {
+        private final TCB tcb;
+
+        IdleTimer(TCB tcb)
+        {
+            this.tcb = tcb;
+        }
+
+        @Override
+        protected void expired(long now)
+        {
+            expire(tcb, now);
+        }
+    }
+
+    /**
+     * Runs only while the device has data to acknowledge
+     */
+    class RetransmitTimer extends TimerWheel.Timer
+    {
+        private final TCB tcb;
+
+        RetransmitTimer(TCB tcb)
+        {
+            this.tcb = tcb;
+        }
+
+        /**
+         * Called by TCPInput, holding the TCB, when the first unacknowledged
+         * segment goes out. The wheel is this thread's, so it is woken up to
+         * schedule the timer.
+         */
+        void arm()
+        {
+            armed.offer(this);
+            inputQueue.wakeup();
+        }
+
+        @Override
+        protected void expired(long now)
+        {
+            retransmit(tcb, now);
+        }
     }
 
     @Override
@@ -63,40 +158,17 @@ public class TCPOutput implements Runnable
             while (!Thread.interrupted()) {
 
                 Packet currentPacket = inputQueue.poll();
-                if (currentPacket == null){
-                    Thread.sleep(11);
-                    continue;
+                if (currentPacket == null)
+                {
+                    // Sleep until the next timer is due, or TCPInput arms one
+                    long wakeUp = timers.nextDeadline();
+                    currentPacket = inputQueue.poll(wakeUp == Long.MAX_VALUE ? Long.MAX_VALUE
+                            : Math.max(0, wakeUp - TimerWheel.now()));
                 }
-
-                ByteBuffer payloadBuffer = currentPacket.backingBuffer;
-                currentPacket.backingBuffer = null;
-                ByteBuffer responseBuffer = ByteBufferPool.acquire();
-
-                InetAddress destinationAddress = currentPacket.ipHeader.destinationAddress;
-
-                TCPHeader tcpHeader = currentPacket.tcpHeader;
-                int destinationPort = tcpHeader.destinationPort;
-                int sourcePort = tcpHeader.sourcePort;
-
-                String ipAndPort = destinationAddress.getHostAddress() + ":" +
-                        destinationPort + ":" + sourcePort;
-                TCB tcb = TCB.getTCB(ipAndPort);
-                if (tcb == null)
-                    initializeConnection(ipAndPort, destinationAddress, destinationPort,
-                            currentPacket, tcpHeader, responseBuffer);
-                else if (tcpHeader.isSYN())
-                    processDuplicateSYN(tcb, tcpHeader, responseBuffer);
-                else if (tcpHeader.isRST())
-                    closeCleanly(tcb, responseBuffer);
-                else if (tcpHeader.isFIN())
-                    processFIN(tcb, tcpHeader, responseBuffer);
-                else if (tcpHeader.isACK())
-                    processACK(tcb, tcpHeader, payloadBuffer, responseBuffer);
-
-                // XXX: cleanup later
-                if (responseBuffer.position() == 0)
-                    ByteBufferPool.release(responseBuffer);
-                ByteBufferPool.release(payloadBuffer);
+                long now = TimerWheel.now();
+                advance(now);
+                if (currentPacket != null)
+                    process(currentPacket, now);
             }
         }
         catch (InterruptedException e)
@@ -109,24 +181,288 @@ public class TCPOutput implements Runnable
         }
         finally
         {
-            TCB.closeAll();
+            closeAll();
+        }
+    }
+
+    /**
+     * Schedules the timers TCPInput armed and fires those that are due
+     */
+    void advance(long now)
+    {
+        scheduleArmed();
+        timers.advance(now);
+    }
+
+    /**
+     * Handles one packet from the device
+     */
+    void process(Packet currentPacket, long now) throws IOException
+    {
+        packets.inc();
+
+        ByteBuffer payloadBuffer = currentPacket.backingBuffer;
+        currentPacket.backingBuffer = null;
+        ByteBuffer responseBuffer = ByteBufferPool.acquire(ByteBufferPool.SMALL);
+
+        IPHeader ipHeader = currentPacket.ipHeader;
+        TCPHeader tcpHeader = currentPacket.tcpHeader;
+
+        long ports = FlowTable.ports(currentPacket);
+        TCB tcb = getTCB(ipHeader.destinationHigh, ipHeader.destinationLow, ports);
+        if (tcb == null)
+            tcb = initializeConnection(ports, currentPacket, tcpHeader, responseBuffer);
+        else if (tcpHeader.isSYN())
+            processDuplicateSYN(tcb, tcpHeader, responseBuffer);
+        else if (tcpHeader.isRST())
+            closeCleanly(tcb, responseBuffer);
+        else if (tcpHeader.isFIN())
+            processFIN(tcb, tcpHeader, responseBuffer);
+        else if (tcpHeader.isACK())
+            processACK(tcb, tcpHeader, payloadBuffer, responseBuffer);
+
+        if (tcb != null)
+        {
+            if (tcb.closed) dropTCB(tcb);
+            else touch(tcb, now);
+        }
+
+        // Responses that were queued have been written to, the rest go back
+        if (responseBuffer.position() == 0)
+            ByteBufferPool.release(responseBuffer);
+        ByteBufferPool.release(payloadBuffer);
+    }
+
+    private TCB getTCB(long keyHigh, long keyLow, long keyPorts)
+    {
+        TCB tcb = tcbTable.get(keyHigh, keyLow, keyPorts);
+        if (tcb != null && tcb.closed)
+        {
+            dropTCB(tcb);
+            return null;
+        }
+        return tcb;
+    }
+
+    /**
+     * @return false if the table is full of live connections
+     */
+    private boolean hasRoom()
+    {
+        if (tcbTable.size() < maxFlows) return true;
+        purgeClosed();
+        return tcbTable.size() < maxFlows;
+    }
+
+    private void dropTCB(TCB tcb)
+    {
+        timers.cancel(tcb.idleTimer);
+        if (tcb.retransmitTimer != null) timers.cancel(tcb.retransmitTimer);
+        releaseSegments(tcb);
+        if (tcbTable.get(tcb.keyHigh, tcb.keyLow, tcb.keyPorts) == tcb)
+            tcbTable.remove(tcb.keyHigh, tcb.keyLow, tcb.keyPorts);
+    }
+
+    private static void releaseSegments(TCB tcb)
+    {
+        synchronized (tcb)
+        {
+            tcb.unacknowledged.clear();
+            tcb.outOfOrder.clear();
+        }
+    }
+
+    private void purgeClosed()
+    {
+        int i = 0;
+        while (i < tcbTable.slots())
+        {
+            TCB tcb = tcbTable.valueAt(i);
+            // A removal can shift the next entry into this slot, so look at it again
+            if (tcb != null && tcb.closed)
+            {
+                dropTCB(tcb);
+                EVICTED_CLOSED.inc();
+            }
+            else
+                i++;
+        }
+    }
+
+    private void closeAll()
+    {
+        for (int i = 0; i < tcbTable.slots(); i++)
+        {
+            TCB tcb = tcbTable.valueAt(i);
+            if (tcb != null)
+            {
+                TCB.closeTCB(tcb);
+                releaseSegments(tcb);
+            }
+        }
+        tcbTable.clear();
+    }
+
+    private static long idleTimeout(TCBStatus status)
+    {
+        switch (status)
+        {
+            case ESTABLISHED:
+                return ESTABLISHED_TIMEOUT;
+            case CLOSE_WAIT:
+                return CLOSE_WAIT_TIMEOUT;
+            case LAST_ACK:
+                return LAST_ACK_TIMEOUT;
+            default:
+                return HANDSHAKE_TIMEOUT;
         }
     }
 
-    private void initializeConnection(String ipAndPort, InetAddress destinationAddress, int destinationPort,
-                                      Packet currentPacket, TCPHeader tcpHeader, ByteBuffer responseBuffer)
+    /**
+     * Records activity. The idle timer is only moved when the new deadline is
+     * earlier, a later one is picked up when the timer fires.
+     */
+    private void touch(TCB tcb, long now)
+    {
+        tcb.lastActivity = now;
+        long deadline = now + idleTimeout(tcb.status);
+        if (!tcb.idleTimer.isScheduled() || deadline < tcb.idleTimer.deadline())
+            timers.schedule(tcb.idleTimer, deadline);
+    }
+
+    private void expire(TCB tcb, long now)
+    {
+        if (tcb.closed)
+        {
+            dropTCB(tcb);
+            return;
+        }
+        ByteBuffer responseBuffer;
+        synchronized (tcb)
+        {
+            long deadline = tcb.lastActivity + idleTimeout(tcb.status);
+            if (deadline > now)
+            {
+                timers.schedule(tcb.idleTimer, deadline);
+                return;
+            }
+            EXPIRED[tcb.status.ordinal()].inc();
+            LogUtils.d(TAG, "Idle " + tcb.status + ": " + tcb.ipAndPort);
+            // Tell the device, or its socket would wait on a connection that is gone
+            responseBuffer = ByteBufferPool.acquire(ByteBufferPool.SMALL);
+            tcb.referencePacket.updateTCPBuffer(responseBuffer, (byte) TCPHeader.RST,
+                    tcb.mySequenceNum, tcb.myAcknowledgementNum, 0);
+        }
+        outputQueue.offer(responseBuffer);
+        TCB.closeTCB(tcb);
+        dropTCB(tcb);
+    }
+
+    private void scheduleArmed()
+    {
+        RetransmitTimer timer;
+        while ((timer = armed.poll()) != null)
+        {
+            TCB tcb = timer.tcb;
+            if (tcb.closed) continue;
+            synchronized (tcb)
+            {
+                // Acknowledged in the meantime, or already running
+                if (tcb.unacknowledged.isEmpty() || timer.isScheduled()) continue;
+                timers.schedule(timer, tcb.lastAckProgress + tcb.retransmitTimeout);
+            }
+        }
+    }
+
+    /**
+     * Resends the oldest unacknowledged segment once the device has acknowledged
+     * nothing new for a timeout. The timer is armed by TCPInput when data goes
+     * out and cancelled when the last of it is acknowledged.
+     */
+    private void retransmit(TCB tcb, long now)
+    {
+        if (tcb.closed)
+        {
+            dropTCB(tcb);
+            return;
+        }
+        synchronized (tcb)
+        {
+            if (tcb.unacknowledged.isEmpty())
+                return;
+            long deadline = tcb.lastAckProgress + tcb.retransmitTimeout;
+            if (deadline > now)
+            {
+                timers.schedule(tcb.retransmitTimer, deadline);
+                return;
+            }
+            RETRANSMITTED.inc();
+            resendFirst(tcb);
+            tcb.retransmitTimeout = Math.min(tcb.retransmitTimeout * 2, MAX_RETRANSMIT_TIMEOUT);
+            tcb.lastAckProgress = now;
+            timers.schedule(tcb.retransmitTimer, now + tcb.retransmitTimeout);
+        }
+    }
+
+    /**
+     * Caller holds the TCB.
+     */
+    private void resendFirst(TCB tcb)
+    {
+        Packet referencePacket = tcb.referencePacket;
+        ByteBuffer payload = tcb.unacknowledged.payloadAt(0);
+        int payloadSize = payload.remaining();
+        ByteBuffer segment = ByteBufferPool.acquire(referencePacket.IP_TRAN_SIZE + payloadSize);
+        segment.position(referencePacket.IP_TRAN_SIZE);
+        segment.put(payload);
+        referencePacket.updateTCPBuffer(segment, (byte) (TCPHeader.PSH | TCPHeader.ACK),
+                tcb.unacknowledged.sequenceAt(0), tcb.myAcknowledgementNum, payloadSize);
+        segment.position(referencePacket.IP_TRAN_SIZE + payloadSize);
+        outputQueue.offer(segment);
+    }
+
+    /**
+     * @return the new TCB, or null if none was created
+     */
+    private TCB initializeConnection(long ports, Packet currentPacket, TCPHeader tcpHeader, ByteBuffer responseBuffer)
             throws IOException
     {
+        IPHeader ipHeader = currentPacket.ipHeader;
+        long keyHigh = ipHeader.destinationHigh;
+        long keyLow = ipHeader.destinationLow;
+        int destinationPort = tcpHeader.destinationPort;
+        int sourcePort = tcpHeader.sourcePort;
+        // Materialized only for connecting, and before the swap
+        InetAddress destinationAddress = tcpHeader.isSYN() ? ipHeader.getDestinationAddress() : null;
         currentPacket.swapSourceAndDestination();
+        TCB tcb = null;
         if (tcpHeader.isSYN())
         {
-            SocketChannel outputChannel = SocketChannel.open();
-            outputChannel.configureBlocking(false);
-            vpnService.protect(outputChannel.socket());
+            if (!hasRoom())
+            {
+                // Refuse the new connection rather than tear down a live one
+                REFUSED.inc();
+                currentPacket.updateTCPBuffer(responseBuffer, (byte) (TCPHeader.RST | TCPHeader.ACK),
+                        0, tcpHeader.sequenceNumber + 1, 0);
+                outputQueue.offer(responseBuffer);
+                return null;
+            }
+
+            SocketChannel outputChannel = openChannel();
 
-            TCB tcb = new TCB(ipAndPort, random.nextInt(Short.MAX_VALUE + 1), tcpHeader.sequenceNumber, tcpHeader.sequenceNumber + 1,
-                    tcpHeader.acknowledgementNumber, outputChannel, currentPacket);
-            TCB.putTCB(ipAndPort, tcb);
+            String ipAndPort = destinationAddress.getHostAddress() + ":" + destinationPort + ":" + sourcePort;
+            // Nothing is in flight until the SYN-ACK goes out with this sequence number
+            long initialSequenceNum = random.nextInt(Short.MAX_VALUE + 1);
+            tcb = new TCB(ipAndPort, keyHigh, keyLow, ports,
+                    initialSequenceNum, tcpHeader.sequenceNumber, tcpHeader.sequenceNumber + 1,
+                    initialSequenceNum, outputChannel, currentPacket);
+            tcb.maxSegmentSize = Math.min(deviceMaxSegmentSize(ipHeader, tcpHeader), currentPacket.maxSegmentSize());
+            tcb.deviceWindow = tcpHeader.window;
+            tcb.idleTimer = new IdleTimer(tcb);
+            tcb.retransmitTimer = new RetransmitTimer(tcb);
+            tcb.retransmitTimeout = INITIAL_RETRANSMIT_TIMEOUT;
+            tcbTable.put(keyHigh, keyLow, ports, tcb);
+            if (tcbTable.size() > peakFlows.get()) peakFlows.set(tcbTable.size());
 
             try
             {
@@ -134,19 +470,15 @@ public class TCPOutput implements Runnable
                 if (outputChannel.finishConnect())
                 {
                     tcb.status = TCBStatus.SYN_RECEIVED;
-                    // TODO: Set MSS for receiving larger packets from the device
                     currentPacket.updateTCPBuffer(responseBuffer, (byte) (TCPHeader.SYN | TCPHeader.ACK),
-                            tcb.mySequenceNum, tcb.myAcknowledgementNum, 0);
+                            tcb.mySequenceNum, tcb.myAcknowledgementNum, 0, currentPacket.maxSegmentSize());
                     tcb.mySequenceNum++; // SYN counts as a byte
                 }
                 else
                 {
                     tcb.status = TCBStatus.SYN_SENT;
-                    tcpSelectorLock.lock();
-                    selector.wakeup();
-                    tcb.selectionKey = outputChannel.register(selector, SelectionKey.OP_CONNECT, tcb);
-                    tcpSelectorLock.unlock();
-                    return;
+                    registrations.interestOps(outputChannel, SelectionKey.OP_CONNECT, tcb);
+                    return tcb;
                 }
             }
             catch (IOException e)
@@ -162,6 +494,35 @@ public class TCPOutput implements Runnable
                     0, tcpHeader.sequenceNumber + 1, 0);
         }
         outputQueue.offer(responseBuffer);
+        return tcb;
+    }
+
+    /**
+     * A non-blocking channel that bypasses the VPN
+     */
+    SocketChannel openChannel() throws IOException
+    {
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        vpnService.protect(channel.socket());
+        return channel;
+    }
+
+    /**
+     * The TCB of a flow, closed or not
+     */
+    TCB flow(long keyHigh, long keyLow, long keyPorts)
+    {
+        return tcbTable.get(keyHigh, keyLow, keyPorts);
+    }
+
+    /**
+     * The MSS option of the SYN, else the default of RFC 879 or RFC 8200
+     */
+    private static int deviceMaxSegmentSize(IPHeader ipHeader, TCPHeader tcpHeader)
+    {
+        if (tcpHeader.maxSegmentSize > 0) return tcpHeader.maxSegmentSize;
+        return ipHeader.version == 6 ? DEFAULT_MSS_IPV6 : DEFAULT_MSS_IPV4;
     }
 
     private void processDuplicateSYN(TCB tcb, TCPHeader tcpHeader, ByteBuffer responseBuffer)
@@ -183,7 +544,7 @@ public class TCPOutput implements Runnable
         {
             Packet referencePacket = tcb.referencePacket;
             tcb.myAcknowledgementNum = tcpHeader.sequenceNumber + 1;
-            tcb.theirAcknowledgementNum = tcpHeader.acknowledgementNumber;
+            processAcknowledgement(tcb, tcpHeader, false);
 
             if (tcb.waitingForNetworkData)
             {
@@ -212,10 +573,7 @@ public class TCPOutput implements Runnable
             if (tcb.status == TCBStatus.SYN_RECEIVED)
             {
                 tcb.status = TCBStatus.ESTABLISHED;
-                tcpSelectorLock.lock();
-                selector.wakeup();
-                tcb.selectionKey = outputChannel.register(selector, SelectionKey.OP_READ, tcb);
-                tcpSelectorLock.unlock();
+                registrations.interestOps(outputChannel, SelectionKey.OP_READ, tcb);
                 tcb.waitingForNetworkData = true;
             }
             else if (tcb.status == TCBStatus.LAST_ACK)
@@ -224,37 +582,124 @@ public class TCPOutput implements Runnable
                 return;
             }
 
-            if (payloadSize == 0) return; // Empty ACK, ignore
+            processAcknowledgement(tcb, tcpHeader, payloadSize == 0);
+            if (tcb.windowFull && tcb.windowAvailable() > 0)
+            {
+                // The device made room, read from the server again
+                tcb.windowFull = false;
+                RESUMED.inc();
+                if (tcb.waitingForNetworkData)
+                    registrations.interestOps(tcb.channel, SelectionKey.OP_READ, null);
+            }
+
+            if (payloadSize == 0) return; // Empty ACK, nothing to forward
 
             if (!tcb.waitingForNetworkData)
             {
-                selector.wakeup();
-                tcb.selectionKey.interestOps(SelectionKey.OP_READ);
+                if (!tcb.windowFull)
+                    registrations.interestOps(outputChannel, SelectionKey.OP_READ, null);
                 tcb.waitingForNetworkData = true;
             }
 
-            // Forward to remote server
-            try
+            int offset = SegmentQueue.distance(tcpHeader.sequenceNumber, tcb.myAcknowledgementNum);
+            if (offset > 0)
             {
-                while (payloadBuffer.hasRemaining())
-                    outputChannel.write(payloadBuffer);
+                // Ahead of a gap, hold it, and the ACK below repeats what the device has to resend
+                OUT_OF_ORDER.inc();
+                if (tcb.outOfOrder.bytes() + payloadSize <= MAX_OUT_OF_ORDER_BYTES)
+                    tcb.outOfOrder.add(tcpHeader.sequenceNumber, payloadBuffer, payloadBuffer.position(), payloadSize);
             }
-            catch (IOException e)
+            else if (offset + payloadSize <= 0)
             {
-                LogUtils.e(TAG, "Network write error: " + tcb.ipAndPort, e);
-                sendRST(tcb, payloadSize, responseBuffer);
-                return;
+                // Forwarded already, the device resent it because it missed our ACK
+                DUPLICATE.inc();
+            }
+            else
+            {
+                // Forward to remote server, without what an earlier segment covered
+                payloadBuffer.position(payloadBuffer.position() - offset);
+                try
+                {
+                    write(outputChannel, payloadBuffer);
+                    long acknowledgementNum = forwardOutOfOrder(tcb, tcpHeader.sequenceNumber + payloadSize);
+                    tcb.myAcknowledgementNum = acknowledgementNum & 0xFFFFFFFFL;
+                }
+                catch (IOException e)
+                {
+                    LogUtils.e(TAG, "Network write error: " + tcb.ipAndPort, e);
+                    sendRST(tcb, payloadSize, responseBuffer);
+                    return;
+                }
             }
 
-            // TODO: We don't expect out-of-order packets, but verify
-            tcb.myAcknowledgementNum = tcpHeader.sequenceNumber + payloadSize;
-            tcb.theirAcknowledgementNum = tcpHeader.acknowledgementNumber;
+            // Cumulative, or a duplicate ACK if nothing new arrived
             Packet referencePacket = tcb.referencePacket;
             referencePacket.updateTCPBuffer(responseBuffer, (byte) TCPHeader.ACK, tcb.mySequenceNum, tcb.myAcknowledgementNum, 0);
         }
         outputQueue.offer(responseBuffer);
     }
 
+    /**
+     * Writes the held segments the acknowledgement number has reached, caller holds the TCB.
+     *
+     * @return the acknowledgement number after them
+     */
+    private static long forwardOutOfOrder(TCB tcb, long acknowledgementNum) throws IOException
+    {
+        SegmentQueue held = tcb.outOfOrder;
+        while (!held.isEmpty())
+        {
+            int offset = SegmentQueue.distance(held.sequenceAt(0), acknowledgementNum);
+            if (offset > 0) break;
+            ByteBuffer payload = held.payloadAt(0);
+            int end = offset + payload.remaining();
+            if (end > 0)
+            {
+                payload.position(-offset);
+                write(tcb.channel, payload);
+                acknowledgementNum += end;
+            }
+            held.removeFirst();
+        }
+        return acknowledgementNum;
+    }
+
+    private static void write(SocketChannel channel, ByteBuffer buffer) throws IOException
+    {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    /**
+     * Takes the acknowledgement and window of an ACK that acknowledges neither
+     * less than an earlier one nor data never sent, and drops what it acknowledges
+     * from the retransmission queue. Caller holds the TCB.
+     *
+     * @param mayBeDuplicate the segment carries neither data nor FIN
+     */
+    private void processAcknowledgement(TCB tcb, TCPHeader tcpHeader, boolean mayBeDuplicate)
+    {
+        long acked = (tcpHeader.acknowledgementNumber - tcb.theirAcknowledgementNum) & 0xFFFFFFFFL;
+        if (acked > tcb.bytesInFlight()) return;
+        if (acked > 0)
+        {
+            tcb.unacknowledged.removeUpTo(tcpHeader.acknowledgementNumber);
+            if (tcb.unacknowledged.isEmpty()) timers.cancel(tcb.retransmitTimer);
+            tcb.lastAckProgress = TimerWheel.now();
+            tcb.retransmitTimeout = INITIAL_RETRANSMIT_TIMEOUT;
+            tcb.duplicateAcks = 0;
+        }
+        else if (mayBeDuplicate && tcpHeader.window == tcb.deviceWindow && !tcb.unacknowledged.isEmpty()
+                && ++tcb.duplicateAcks == DUPLICATE_ACK_THRESHOLD)
+        {
+            // RFC 5681 fast retransmit, the device is missing the segment after its ACK
+            FAST_RETRANSMITTED.inc();
+            resendFirst(tcb);
+        }
+        tcb.theirAcknowledgementNum = tcpHeader.acknowledgementNumber;
+        tcb.deviceWindow = tcpHeader.window;
+    }
+
     private void sendRST(TCB tcb, int prevPayloadSize, ByteBuffer buffer)
     {
         tcb.referencePacket.updateTCPBuffer(buffer, (byte) TCPHeader.RST, 0, tcb.myAcknowledgementNum + prevPayloadSize, 0);
@@ -264,7 +709,7 @@ public class TCPOutput implements Runnable
 
     private void closeCleanly(TCB tcb, ByteBuffer buffer)
     {
-        ByteBufferPool.release(buffer);
+        // The unused buffer is released by run()
         TCB.closeTCB(tcb);
     }
 }
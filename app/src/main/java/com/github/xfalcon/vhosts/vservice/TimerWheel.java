@@ -0,0 +1,152 @@
+/*
+ **Copyright (C) 2017  xfalcon
+ **
+ **This program is free software: you can redistribute it and/or modify
+ **it under the terms of the GNU General Public License as published by
+ **the Free Software Foundation, either version 3 of the License, or
+ **(at your option) any later version.
+ **
+ **This program is distributed in the hope that it will be useful,
+ **but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ **GNU General Public License for more details.
+ **
+ **You should have received a copy of the GNU General Public License
+ **along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **
+ */
+
+package com.github.xfalcon.vhosts.vservice;
+
+/**
+ * Hashed timer wheel: scheduling and cancelling are O(1), and advancing
+ * only visits the slots of the ticks that passed. Deadlines further away
+ * than one turn of the wheel stay in their slot for the later rounds.
+ * Not thread safe, the owner thread schedules and advances.
+ */
+public class TimerWheel {
+
+    public static abstract class Timer {
+        private long deadline;
+        private int slot = -1;
+        private Timer next, prev;
+
+        public long deadline() {
+            return deadline;
+        }
+
+        public boolean isScheduled() {
+            return slot >= 0;
+        }
+
+        /**
+         * Called from {@link #advance(long)}, may schedule the timer again.
+         */
+        protected abstract void expired(long now);
+    }
+
+    private final long tickMillis;
+    private final Timer[] slots;
+    private final int mask;
+    private long currentTick;
+    private int size;
+
+    /**
+     * @param slotCount rounded up to a power of two
+     * @param now       start time, on the clock later passed to {@link #advance(long)}
+     */
+    public TimerWheel(long tickMillis, int slotCount, long now) {
+        this.tickMillis = tickMillis;
+        this.currentTick = now / tickMillis;
+        int capacity = Integer.highestOneBit(Math.max(2, slotCount - 1)) << 1;
+        this.slots = new Timer[capacity];
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * Monotonic clock for deadlines
+     */
+    public static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    public long tickMillis() {
+        return tickMillis;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void schedule(Timer timer, long deadline) {
+        if (timer.isScheduled()) unlink(timer);
+        timer.deadline = deadline;
+        // Round up so that a timer never fires early, and never into a slot already passed
+        long tick = (deadline + tickMillis - 1) / tickMillis;
+        if (tick <= currentTick) tick = currentTick + 1;
+        int slot = (int) (tick & mask);
+        timer.slot = slot;
+        timer.prev = null;
+        timer.next = slots[slot];
+        if (timer.next != null) timer.next.prev = timer;
+        slots[slot] = timer;
+        size++;
+    }
+
+    public void cancel(Timer timer) {
+        if (timer.isScheduled()) unlink(timer);
+    }
+
+    private void unlink(Timer timer) {
+        if (timer.prev != null) timer.prev.next = timer.next;
+        else slots[timer.slot] = timer.next;
+        if (timer.next != null) timer.next.prev = timer.prev;
+        timer.next = timer.prev = null;
+        timer.slot = -1;
+        size--;
+    }
+
+    /**
+     * For the owner to block until then. Walks the slots ahead up to the first
+     * one with a timer due in this turn of the wheel, so at worst one turn.
+     *
+     * @return the earliest time {@link #advance(long)} fires a timer, rounded up
+     * to its tick, or Long.MAX_VALUE if none is scheduled
+     */
+    public long nextDeadline() {
+        if (size == 0) return Long.MAX_VALUE;
+        for (long tick = currentTick + 1; tick <= currentTick + slots.length; tick++) {
+            for (Timer timer = slots[(int) (tick & mask)]; timer != null; timer = timer.next) {
+                // Timers of later turns share the slot
+                if ((timer.deadline + tickMillis - 1) / tickMillis <= tick) return tick * tickMillis;
+            }
+        }
+        // Everything is at least a turn away, look again after this one
+        return (currentTick + slots.length) * tickMillis;
+    }
+
+    /**
+     * Fires every timer whose deadline is not after now.
+     */
+    public void advance(long now) {
+        long targetTick = now / tickMillis;
+        long ticks = Math.min(targetTick - currentTick, slots.length);
+        for (long i = 0; i < ticks; i++) {
+            // Before the callbacks, so that what they schedule goes to a later slot
+            currentTick++;
+            int slot = (int) (currentTick & mask);
+            Timer timer = slots[slot];
+            while (timer != null) {
+                if (timer.deadline > now) {
+                    timer = timer.next;
+                    continue;
+                }
+                unlink(timer);
+                timer.expired(now);
+                // The callback may have cancelled or moved any timer, in this slot too
+                timer = slots[slot];
+            }
+        }
+        if (targetTick > currentTick) currentTick = targetTick;
+    }
+}
@@ -25,22 +25,20 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.util.Iterator;
 import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.locks.ReentrantLock;
 
 public class UDPInput implements Runnable
 {
     private static final String TAG = UDPInput.class.getSimpleName();
 
     private Selector selector;
-    private ReentrantLock udpSelectorLock;
-    private ConcurrentLinkedQueue<ByteBuffer> outputQueue;
+    private RegistrationQueue registrations;
+    private PacketQueue<ByteBuffer> outputQueue;
 
-    public UDPInput(ConcurrentLinkedQueue<ByteBuffer> outputQueue, Selector selector, ReentrantLock udpSelectorLock)
+    public UDPInput(PacketQueue<ByteBuffer> outputQueue, RegistrationQueue registrations)
     {
         this.outputQueue = outputQueue;
-        this.selector = selector;
-        this.udpSelectorLock=udpSelectorLock;
+        this.selector = registrations.selector();
+        this.registrations = registrations;
     }
 
     @Override
@@ -51,13 +49,10 @@ public class UDPInput implements Runnable
             LogUtils.i(TAG, "Started");
             while (!Thread.interrupted())
             {
-                udpSelectorLock.lock();
-                udpSelectorLock.unlock();
-                int readyChannels = selector.select();
-                if (readyChannels == 0) {
-                    Thread.sleep(11);
+                int readyChannels = registrations.select();
+                // Woken up for a registration, applied by the next select
+                if (readyChannels == 0)
                     continue;
-                }
                 Set<SelectionKey> keys = selector.selectedKeys();
                 Iterator<SelectionKey> keyIterator = keys.iterator();
 
@@ -67,6 +62,11 @@ public class UDPInput implements Runnable
                     if (key.isValid() && key.isReadable())
                     {
                         keyIterator.remove();
+                        if (key.attachment() instanceof DnsForwarder)
+                        {
+                            ((DnsForwarder) key.attachment()).read((DatagramChannel) key.channel(), outputQueue);
+                            continue;
+                        }
 
                         ByteBuffer receiveBuffer = ByteBufferPool.acquire();
                         // Leave space for the header
@@ -88,9 +88,6 @@ public class UDPInput implements Runnable
                     }
                 }
             }
-        }
-        catch (InterruptedException e)
-        {
             LogUtils.i(TAG, "Stopping");
         }
         catch (IOException e)
@@ -25,71 +25,76 @@ import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.locks.ReentrantLock;
 
 public class UDPOutput implements Runnable
 {
     private static final String TAG = UDPOutput.class.getSimpleName();
 
     private VhostsService vpnService;
-    private ConcurrentLinkedQueue<Packet> inputQueue;
-    private ConcurrentLinkedQueue<ByteBuffer> outputQueue;
-    private Selector selector;
-    private ReentrantLock udpSelectorLock;
-    private StringBuilder stringBuild;
+    private PacketQueue<Packet> inputQueue;
+    private PacketQueue<ByteBuffer> outputQueue;
+    private RegistrationQueue registrations;
+    private DnsQuery dnsQuery = new DnsQuery();
+    private DnsForwarder forwarder;
+    private DnsCache dnsCache;
+    private DnsUpstreams upstreams;
 
 
     private static final int MAX_CACHE_SIZE = 50;
-    private LRUCache<String, DatagramChannel> channelCache =
-            new LRUCache<>(MAX_CACHE_SIZE, new LRUCache.CleanupCallback<String, DatagramChannel>()
-            {
-                @Override
-                public void cleanup(Map.Entry<String, DatagramChannel> eldest)
-                {
-                    closeChannel(eldest.getValue());
-                }
-            });
+    private FlowTable<DatagramChannel> channelTable = new FlowTable<>(MAX_CACHE_SIZE);
 
-    public UDPOutput(ConcurrentLinkedQueue<Packet> inputQueue,ConcurrentLinkedQueue<ByteBuffer> outputQueue, Selector selector,ReentrantLock udpSelectorLock, VhostsService vpnService)
+    public UDPOutput(PacketQueue<Packet> inputQueue,PacketQueue<ByteBuffer> outputQueue, RegistrationQueue registrations, VhostsService vpnService, DnsUpstreams upstreams, DnsCache dnsCache)
     {
+        this.upstreams = upstreams;
+        this.dnsCache = dnsCache;
         this.inputQueue = inputQueue;
-        this.selector = selector;
+        this.registrations = registrations;
         this.vpnService = vpnService;
         this.outputQueue=outputQueue;
-        this.udpSelectorLock=udpSelectorLock;
-        this.stringBuild=new StringBuilder(32);
     }
 
     @Override
     public void run() {
         LogUtils.i(TAG, "Started");
         try {
+            forwarder = DnsForwarder.open(vpnService, registrations, upstreams, dnsCache, inputQueue);
 
             while (!Thread.interrupted()) {
 
-                Packet currentPacket = inputQueue.poll();
-                if (currentPacket == null){
-                    Thread.sleep(11);
+                // Sleep until the next race, timeout or refresh is due, or until
+                // UDPInput hands back an answered query to cancel its timer
+                long wakeUp = Math.min(forwarder.nextDeadline(), dnsCache.nextRefresh());
+                Packet currentPacket = inputQueue.poll(wakeUp == Long.MAX_VALUE ? Long.MAX_VALUE
+                        : Math.max(0, wakeUp - TimerWheel.now()));
+                long now = TimerWheel.now();
+                forwarder.advance(now);
+                refresh(now);
+                if (currentPacket == null)
                     continue;
-                }
                 // hook dns packet
                 if(currentPacket.udpHeader.destinationPort==53){
-                    ByteBuffer packet_buffer= DnsChange.handle_dns_packet(currentPacket);
+                    ByteBuffer queryBuffer = currentPacket.backingBuffer;
+                    boolean parsed = dnsQuery.parse(queryBuffer, queryBuffer.position(), queryBuffer.limit());
+                    ByteBuffer packet_buffer= DnsChange.handle_dns_packet(currentPacket, parsed ? dnsQuery : null);
                     if(packet_buffer!=null){
                         this.outputQueue.offer(packet_buffer);
                         continue;
                     }
+                    if (parsed && dnsCache.answer(currentPacket, dnsQuery, now)) {
+                        this.outputQueue.offer(queryBuffer);
+                        continue;
+                    }
+                    forwarder.forward(currentPacket, parsed ? dnsQuery : null, now);
+                    continue;
                 }
-                InetAddress destinationAddress = currentPacket.ipHeader.destinationAddress;
-                int destinationPort = currentPacket.udpHeader.destinationPort;
-                int sourcePort = currentPacket.udpHeader.sourcePort;
-                String ipAndPort= String.format("%s:%s:%s",destinationAddress.getHostAddress(),destinationPort,sourcePort);
-                DatagramChannel outputChannel = channelCache.get(ipAndPort);
+                Packet.IPHeader ipHeader = currentPacket.ipHeader;
+                long keyHigh = ipHeader.destinationHigh;
+                long keyLow = ipHeader.destinationLow;
+                long ports = FlowTable.ports(currentPacket);
+                DatagramChannel outputChannel = channelTable.get(keyHigh, keyLow, ports);
                 if (outputChannel == null) {
+                    InetAddress destinationAddress = ipHeader.getDestinationAddress();
+                    int destinationPort = currentPacket.udpHeader.destinationPort;
                     outputChannel = DatagramChannel.open();
                     vpnService.protect(outputChannel.socket());
                     try
@@ -98,18 +103,17 @@ public class UDPOutput implements Runnable
                     }
                     catch (IOException e)
                     {
-                        LogUtils.e(TAG, "Connection error: " + ipAndPort, e);
+                        LogUtils.e(TAG, "Connection error: " + currentPacket, e);
                         closeChannel(outputChannel);
                         ByteBufferPool.release(currentPacket.backingBuffer);
                         continue;
                     }
                     outputChannel.configureBlocking(false);
                     currentPacket.swapSourceAndDestination();
-                    udpSelectorLock.lock();
-                    selector.wakeup();
-                    outputChannel.register(selector, SelectionKey.OP_READ, currentPacket);
-                    udpSelectorLock.unlock();
-                    channelCache.put(ipAndPort, outputChannel);
+                    registrations.interestOps(outputChannel, SelectionKey.OP_READ, currentPacket);
+                    if (channelTable.size() >= MAX_CACHE_SIZE)
+                        closeChannel(channelTable.evictEldest());
+                    channelTable.put(keyHigh, keyLow, ports, outputChannel);
                 }
 
                 try
@@ -120,8 +124,8 @@ public class UDPOutput implements Runnable
                 }
                 catch (IOException e)
                 {
-                    LogUtils.e(TAG, "Network write error: " + ipAndPort, e);
-                    channelCache.remove(ipAndPort);
+                    LogUtils.e(TAG, "Network write error: " + currentPacket, e);
+                    channelTable.remove(keyHigh, keyLow, ports);
                     closeChannel(outputChannel);
                 }
                 ByteBufferPool.release(currentPacket.backingBuffer);
@@ -141,14 +145,33 @@ public class UDPOutput implements Runnable
         }
     }
 
+    /**
+     * Sends the cache's prefetches and stale refreshes that are due.
+     */
+    private void refresh(long now)
+    {
+        if (dnsCache.nextRefresh() > now) return;
+        while (true)
+        {
+            ByteBuffer buffer = ByteBufferPool.acquire(ByteBufferPool.MTU);
+            if (!dnsCache.refresh(buffer, now))
+            {
+                ByteBufferPool.release(buffer);
+                return;
+            }
+            forwarder.refresh(buffer, now);
+        }
+    }
+
     private void closeAll()
     {
-        Iterator<Map.Entry<String, DatagramChannel>> it = channelCache.entrySet().iterator();
-        while (it.hasNext())
+        if (forwarder != null) forwarder.close();
+        for (int i = 0; i < channelTable.slots(); i++)
         {
-            closeChannel(it.next().getValue());
-            it.remove();
+            DatagramChannel channel = channelTable.valueAt(i);
+            if (channel != null) closeChannel(channel);
         }
+        channelTable.clear();
     }
 
     private void closeChannel(DatagramChannel channel)
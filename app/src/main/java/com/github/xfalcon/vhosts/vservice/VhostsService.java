@@ -29,6 +29,10 @@ import android.net.VpnService;
 import android.os.Build;
 import android.os.Looper;
 import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
 import android.widget.Toast;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import com.github.xfalcon.vhosts.NetworkReceiver;
@@ -39,13 +43,17 @@ import com.github.xfalcon.vhosts.util.LogUtils;
 import org.xbill.DNS.Address;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
 import java.nio.channels.FileChannel;
 import java.nio.channels.Selector;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.TimeUnit;
 
 
 public class VhostsService extends VpnService {
@@ -56,6 +64,18 @@ public class VhostsService extends VpnService {
     private static final String VPN_ROUTE6 = "::"; // Intercept everything
     private static String VPN_DNS4 = "8.8.8.8";
     private static String VPN_DNS6 = "2001:4860:4860::8888";
+    private static final int DEFAULT_QUEUE_CAPACITY = 256;
+    // Batched reads are opt-in, by default the reader blocks in read()
+    private static final int DEFAULT_TUN_BATCH_SIZE = 1;
+    // The writer blocks in take() either way, and then writes what else is queued
+    private static final int TUN_WRITE_BATCH_SIZE = 32;
+    private static final int MIN_TCP_FLOWS = 64;
+    private static final int MAX_TCP_FLOWS = 512;
+    // One TCP relay unless configured, at most one per core
+    private static final int DEFAULT_TCP_SHARDS = 1;
+    private static final int DEFAULT_DNS_CACHE_KB = 1024;
+    // Every packet read from the tun device fits a ByteBufferPool.MTU buffer
+    static final int VPN_MTU = 1500;
 
     public static final String BROADCAST_VPN_STATE = VhostsService.class.getName() + ".VPN_STATE";
     public static final String ACTION_CONNECT = VhostsService.class.getName() + ".START";
@@ -67,17 +87,21 @@ public class VhostsService extends VpnService {
 
     private PendingIntent pendingIntent;
 
-    private ConcurrentLinkedQueue<Packet> deviceToNetworkUDPQueue;
-    private ConcurrentLinkedQueue<Packet> deviceToNetworkTCPQueue;
-    private ConcurrentLinkedQueue<ByteBuffer> networkToDeviceQueue;
+    private PacketQueue<Packet> deviceToNetworkUDPQueue;
+    // One queue and selector per TCP shard
+    private PacketQueue<Packet>[] deviceToNetworkTCPQueues;
+    private PacketQueue<ByteBuffer> networkToDeviceQueue;
     private ExecutorService executorService;
 
     private Selector udpSelector;
-    private Selector tcpSelector;
-    private ReentrantLock udpSelectorLock;
-    private ReentrantLock tcpSelectorLock;
+    private Selector[] tcpSelectors;
+    private int tcpShards = 1;
     private NetworkReceiver netStateReceiver;
     private static boolean isOAndBoot = false;
+    private boolean isBlocking = false;
+    private int tunBatchSize = 1;
+    private VPNReader vpnReader;
+    private boolean leakDetection = false;
 
 
     @Override
@@ -108,19 +132,30 @@ public class VhostsService extends VpnService {
         isRunning = true;
         try {
             udpSelector = Selector.open();
-            tcpSelector = Selector.open();
-            deviceToNetworkUDPQueue = new ConcurrentLinkedQueue<>();
-            deviceToNetworkTCPQueue = new ConcurrentLinkedQueue<>();
-            networkToDeviceQueue = new ConcurrentLinkedQueue<>();
-            udpSelectorLock = new ReentrantLock();
-            tcpSelectorLock = new ReentrantLock();
-            executorService = Executors.newFixedThreadPool(5);
-            executorService.submit(new UDPInput(networkToDeviceQueue, udpSelector, udpSelectorLock));
-            executorService.submit(new UDPOutput(deviceToNetworkUDPQueue, networkToDeviceQueue, udpSelector, udpSelectorLock, this));
-            executorService.submit(new TCPInput(networkToDeviceQueue, tcpSelector, tcpSelectorLock));
-            executorService.submit(new TCPOutput(deviceToNetworkTCPQueue, networkToDeviceQueue, tcpSelector, tcpSelectorLock, this));
-            executorService.submit(new VPNRunnable(vpnInterface.getFileDescriptor(),
-                    deviceToNetworkUDPQueue, deviceToNetworkTCPQueue, networkToDeviceQueue));
+            setupQueues();
+            executorService = Executors.newFixedThreadPool(4 + 2 * tcpShards);
+            RegistrationQueue udpRegistrations = new RegistrationQueue(udpSelector, "udp");
+            executorService.submit(new UDPInput(networkToDeviceQueue, udpRegistrations));
+            SharedPreferences settings = androidx.preference.PreferenceManager.getDefaultSharedPreferences(this);
+            DnsCache dnsCache = new DnsCache(1024L * Math.max(0,
+                    getIntSetting(settings, SettingsFragment.DNS_CACHE_KB, DEFAULT_DNS_CACHE_KB)),
+                    settings.getBoolean(SettingsFragment.DNS_SERVE_STALE, true));
+            executorService.submit(new UDPOutput(deviceToNetworkUDPQueue, networkToDeviceQueue, udpRegistrations,
+                    this, setupUpstreams(settings), dnsCache));
+            int maxFlows = getIntSetting(settings, SettingsFragment.TCP_MAX_FLOWS, defaultMaxFlows());
+            // Each shard is a TCPInput/TCPOutput pair with its own selector and TCB table
+            tcpSelectors = new Selector[tcpShards];
+            for (int i = 0; i < tcpShards; i++) {
+                tcpSelectors[i] = Selector.open();
+                RegistrationQueue tcpRegistrations = new RegistrationQueue(tcpSelectors[i], "tcp." + i);
+                executorService.submit(new TCPInput(networkToDeviceQueue, tcpRegistrations, i));
+                executorService.submit(new TCPOutput(deviceToNetworkTCPQueues[i], networkToDeviceQueue,
+                        tcpRegistrations, this, i, (maxFlows + tcpShards - 1) / tcpShards));
+            }
+            vpnReader = new VPNReader(vpnInterface.getFileDescriptor(), isBlocking, tunBatchSize,
+                    deviceToNetworkUDPQueue, deviceToNetworkTCPQueues);
+            executorService.submit(vpnReader);
+            executorService.submit(new VPNWriter(vpnInterface.getFileDescriptor(), TUN_WRITE_BATCH_SIZE, networkToDeviceQueue));
             LocalBroadcastManager.getInstance(this).sendBroadcast(new Intent(BROADCAST_VPN_STATE).putExtra("running", true));
             LogUtils.i(TAG, "Started");
         } catch (Exception e) {
@@ -136,6 +171,9 @@ public class VhostsService extends VpnService {
         SharedPreferences settings = androidx.preference.PreferenceManager.getDefaultSharedPreferences(this);
         final boolean is_net = settings.getBoolean(SettingsFragment.IS_NET, false);
         String uri_path = settings.getString(SettingsFragment.HOSTS_URI, null);
+        DnsChange.NODATA_OTHER_TYPES = settings.getBoolean(SettingsFragment.HOSTS_NODATA, true);
+        DnsChange.HOSTS_PARALLELISM = Math.max(1, getIntSetting(settings, SettingsFragment.HOSTS_PARALLELISM,
+                Runtime.getRuntime().availableProcessors()));
         try {
             final InputStream inputStream;
             if (is_net)
@@ -166,26 +204,69 @@ public class VhostsService extends VpnService {
         }
     }
 
+    private void setupQueues() {
+        SharedPreferences settings = androidx.preference.PreferenceManager.getDefaultSharedPreferences(this);
+        int capacity = getIntSetting(settings, SettingsFragment.QUEUE_CAPACITY, DEFAULT_QUEUE_CAPACITY);
+        leakDetection = settings.getBoolean(SettingsFragment.POOL_LEAK_DETECTION, false);
+        ByteBufferPool.setLeakDetection(leakDetection);
+        PacketQueue.DropCallback<Packet> releasePacket = new PacketQueue.DropCallback<Packet>() {
+            @Override
+            public void dropped(Packet packet) {
+                ByteBufferPool.release(packet.backingBuffer);
+            }
+        };
+        // A full UDP queue drops rather than stall the tun reader, and with it
+        // every TCP flow. Nothing resends the dropped datagram but the app that
+        // sent it: resolvers retry after their timeout, most other UDP does not.
+        deviceToNetworkUDPQueue = new PacketQueue<>("udp_out", capacity, PacketQueue.Policy.DROP, releasePacket);
+        tcpShards = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(),
+                getIntSetting(settings, SettingsFragment.TCP_SHARDS, DEFAULT_TCP_SHARDS)));
+        @SuppressWarnings("unchecked")
+        PacketQueue<Packet>[] tcpQueues = new PacketQueue[tcpShards];
+        // The device's TCP stack retransmits what the relay drops, while the
+        // network side is throttled instead so that no received data is lost
+        for (int i = 0; i < tcpShards; i++)
+            tcpQueues[i] = new PacketQueue<>(tcpShards == 1 ? "tcp_out" : "tcp_out." + i, capacity,
+                    PacketQueue.Policy.DROP, releasePacket);
+        deviceToNetworkTCPQueues = tcpQueues;
+        networkToDeviceQueue = new PacketQueue<>("tun_out", capacity, PacketQueue.Policy.BLOCK,
+                new PacketQueue.DropCallback<ByteBuffer>() {
+                    @Override
+                    public void dropped(ByteBuffer buffer) {
+                        ByteBufferPool.release(buffer);
+                    }
+                });
+    }
+
+    /**
+     * About one flow per 256 KiB of heap, each may hold a few 16 KiB buffers in the queues
+     */
+    private static int defaultMaxFlows() {
+        long flows = Runtime.getRuntime().maxMemory() / (256 * 1024);
+        return (int) Math.max(MIN_TCP_FLOWS, Math.min(MAX_TCP_FLOWS, flows));
+    }
+
+    private static int getIntSetting(SharedPreferences settings, String key, int defaultValue) {
+        try {
+            // Left empty in the settings screen for the default
+            String value = settings.getString(key, "").trim();
+            return value.isEmpty() ? defaultValue : Integer.parseInt(value);
+        } catch (Exception e) {
+            LogUtils.e(TAG, "bad setting " + key, e);
+            return defaultValue;
+        }
+    }
+
     private void setupVPN() {
         if (vpnInterface == null) {
             Builder builder = new Builder();
             builder.addAddress(VPN_ADDRESS, 32);
             builder.addAddress(VPN_ADDRESS6, 128);
+            builder.setMtu(VPN_MTU);
 
 
             SharedPreferences settings = androidx.preference.PreferenceManager.getDefaultSharedPreferences(this);
-            String VPN_DNS4_DEFAULT = getString(R.string.dns_server);
-            boolean is_cus_dns = settings.getBoolean(SettingsFragment.IS_CUS_DNS, false);
-            String VPN_DNS4 = VPN_DNS4_DEFAULT;
-            if (is_cus_dns) {
-                VPN_DNS4 = settings.getString(SettingsFragment.IPV4_DNS, VPN_DNS4_DEFAULT);
-                try {
-                    Address.getByAddress(VPN_DNS4);
-                } catch (Exception e) {
-                    VPN_DNS4 = VPN_DNS4_DEFAULT;
-                    LogUtils.e(TAG, e.getMessage(), e);
-                }
-            }
+            String VPN_DNS4 = getDns4(settings);
 
             LogUtils.d(TAG, "use dns:" + VPN_DNS4);
             builder.addRoute(VPN_DNS4, 32);
@@ -204,11 +285,56 @@ public class VhostsService extends VpnService {
                     }
 
                 }
+                // Without batching the tun reader simply sleeps in read(),
+                // with batching it drains a non-blocking fd and then poll()s it
+                tunBatchSize = getIntSetting(settings, SettingsFragment.TUN_BATCH_SIZE, DEFAULT_TUN_BATCH_SIZE);
+                if (tunBatchSize <= 1) {
+                    builder.setBlocking(true);
+                    isBlocking = true;
+                }
             }
             vpnInterface = builder.setSession(getString(R.string.app_name)).setConfigureIntent(pendingIntent).establish();
         }
     }
 
+    private String getDns4(SharedPreferences settings) {
+        String VPN_DNS4_DEFAULT = getString(R.string.dns_server);
+        boolean is_cus_dns = settings.getBoolean(SettingsFragment.IS_CUS_DNS, false);
+        String VPN_DNS4 = VPN_DNS4_DEFAULT;
+        if (is_cus_dns) {
+            VPN_DNS4 = settings.getString(SettingsFragment.IPV4_DNS, VPN_DNS4_DEFAULT);
+            try {
+                Address.getByAddress(VPN_DNS4);
+            } catch (Exception e) {
+                VPN_DNS4 = VPN_DNS4_DEFAULT;
+                LogUtils.e(TAG, e.getMessage(), e);
+            }
+        }
+        return VPN_DNS4;
+    }
+
+    /**
+     * The servers the device is given, then any listed in UPSTREAM_DNS, comma or space separated
+     */
+    private DnsUpstreams setupUpstreams(SharedPreferences settings) {
+        List<InetSocketAddress> upstreams = new ArrayList<>();
+        List<String> servers = new ArrayList<>();
+        servers.add(getDns4(settings));
+        servers.add(VPN_DNS6);
+        servers.addAll(Arrays.asList(settings.getString(SettingsFragment.UPSTREAM_DNS, "").split("[,\\s]+")));
+        for (String server : servers) {
+            if (server.isEmpty()) continue;
+            try {
+                InetSocketAddress upstream = new InetSocketAddress(Address.getByAddress(server), 53);
+                if (!upstreams.contains(upstream)) upstreams.add(upstream);
+            } catch (Exception e) {
+                LogUtils.e(TAG, "bad upstream dns " + server, e);
+            }
+        }
+        LogUtils.d(TAG, "upstream dns: " + upstreams);
+        return new DnsUpstreams(upstreams.toArray(new InetSocketAddress[0]));
+    }
+
     private void registerNetReceiver() {
         //wifi 4G state
 //        IntentFilter filter = new IntentFilter();
@@ -270,7 +396,12 @@ public class VhostsService extends VpnService {
     private void stopVService() {
         if (threadHandleHosts != null) threadHandleHosts.interrupt();
 //        unregisterNetReceiver();
+        if (vpnReader != null) vpnReader.stop();
         if (executorService != null) executorService.shutdownNow();
+        if (isRunning) {
+            reportLeaks();
+            Stats.dump(TAG);
+        }
         isRunning = false;
         cleanup();
         stopSelf();
@@ -289,14 +420,41 @@ public class VhostsService extends VpnService {
         super.onDestroy();
     }
 
+    /**
+     * With leak detection on, waits for the relay threads and returns what is
+     * still queued, so that only buffers really lost get reported.
+     */
+    private void reportLeaks() {
+        if (!leakDetection || executorService == null) return;
+        try {
+            executorService.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            return;
+        }
+        Packet packet;
+        while ((packet = deviceToNetworkUDPQueue.poll()) != null)
+            ByteBufferPool.release(packet.backingBuffer);
+        for (PacketQueue<Packet> queue : deviceToNetworkTCPQueues)
+            while ((packet = queue.poll()) != null)
+                ByteBufferPool.release(packet.backingBuffer);
+        ByteBuffer buffer;
+        while ((buffer = networkToDeviceQueue.poll()) != null)
+            ByteBufferPool.release(buffer);
+        int leaks = ByteBufferPool.reportLeaks();
+        if (leaks > 0) LogUtils.w(TAG, leaks + " buffers never released");
+    }
+
     private void cleanup() {
-        udpSelectorLock = null;
-        tcpSelectorLock = null;
-        deviceToNetworkTCPQueue = null;
+        deviceToNetworkTCPQueues = null;
         deviceToNetworkUDPQueue = null;
         networkToDeviceQueue = null;
         ByteBufferPool.clear();
-        closeResources(udpSelector, tcpSelector, vpnInterface);
+        closeResources(udpSelector, vpnInterface);
+        if (tcpSelectors != null) {
+            for (Selector selector : tcpSelectors)
+                if (selector != null) closeResources(selector);
+            tcpSelectors = null;
+        }
     }
 
     // TODO: Move this to a "utils" class for reuse
@@ -310,23 +468,52 @@ public class VhostsService extends VpnService {
         }
     }
 
-    private static class VPNRunnable implements Runnable {
-        private static final String TAG = VPNRunnable.class.getSimpleName();
+    private static class VPNReader implements Runnable {
+        private static final String TAG = VPNReader.class.getSimpleName();
+        private static final Stats.Counter WAKEUPS = Stats.counter("tun.reader.wakeups");
+        private static final Stats.Histogram BATCH_SIZES = Stats.histogram("tun.reader.batch");
 
         private FileDescriptor vpnFileDescriptor;
-
-        private ConcurrentLinkedQueue<Packet> deviceToNetworkUDPQueue;
-        private ConcurrentLinkedQueue<Packet> deviceToNetworkTCPQueue;
-        private ConcurrentLinkedQueue<ByteBuffer> networkToDeviceQueue;
-
-        public VPNRunnable(FileDescriptor vpnFileDescriptor,
-                           ConcurrentLinkedQueue<Packet> deviceToNetworkUDPQueue,
-                           ConcurrentLinkedQueue<Packet> deviceToNetworkTCPQueue,
-                           ConcurrentLinkedQueue<ByteBuffer> networkToDeviceQueue) {
+        private boolean blocking;
+        private int batchSize;
+        private FileDescriptor[] wakeupPipe;
+
+        private PacketQueue<Packet> deviceToNetworkUDPQueue;
+        private PacketQueue<Packet>[] deviceToNetworkTCPQueues;
+
+        /**
+         * @param blocking  the fd blocks in read(), so every wakeup reads a single packet
+         * @param batchSize packets read per wakeup from a non-blocking fd, which is
+         *                  then polled for the next burst (API 21+) or slept on
+         * @param deviceToNetworkTCPQueues one per TCP shard, a flow always goes to the same one
+         */
+        public VPNReader(FileDescriptor vpnFileDescriptor, boolean blocking, int batchSize,
+                         PacketQueue<Packet> deviceToNetworkUDPQueue,
+                         PacketQueue<Packet>[] deviceToNetworkTCPQueues) {
             this.vpnFileDescriptor = vpnFileDescriptor;
+            this.blocking = blocking;
+            this.batchSize = blocking ? 1 : Math.max(1, batchSize);
             this.deviceToNetworkUDPQueue = deviceToNetworkUDPQueue;
-            this.deviceToNetworkTCPQueue = deviceToNetworkTCPQueue;
-            this.networkToDeviceQueue = networkToDeviceQueue;
+            this.deviceToNetworkTCPQueues = deviceToNetworkTCPQueues;
+            if (!blocking && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                try {
+                    wakeupPipe = Os.pipe();
+                } catch (ErrnoException e) {
+                    LogUtils.e(TAG, e.toString(), e);
+                }
+            }
+        }
+
+        /**
+         * Interrupting the thread does not end poll(), this does
+         */
+        public void stop() {
+            if (wakeupPipe == null) return;
+            try {
+                Os.write(wakeupPipe[1], new byte[1], 0, 1);
+            } catch (Exception e) {
+                LogUtils.e(TAG, e.toString(), e);
+            }
         }
 
         @Override
@@ -334,36 +521,116 @@ public class VhostsService extends VpnService {
             LogUtils.i(TAG, "Started");
 
             FileChannel vpnInput = new FileInputStream(vpnFileDescriptor).getChannel();
-            FileChannel vpnOutput = new FileOutputStream(vpnFileDescriptor).getChannel();
             try {
-                ByteBuffer bufferToNetwork = null;
-                boolean dataSent = true;
-                boolean dataReceived;
+                ByteBuffer bufferToNetwork = ByteBufferPool.acquire(ByteBufferPool.MTU);
                 while (!Thread.interrupted()) {
-                    if (dataSent)
-                        bufferToNetwork = ByteBufferPool.acquire();
-                    else
-                        bufferToNetwork.clear();
-
-                    // TODO: Block when not connected
-                    int readBytes = vpnInput.read(bufferToNetwork);
-                    if (readBytes > 0) {
-                        dataSent = true;
+                    int batch = 0;
+                    // Drain the burst, a non-blocking fd returns 0 once it is empty
+                    while (batch < batchSize) {
+                        int readBytes = vpnInput.read(bufferToNetwork);
+                        if (readBytes <= 0) break;
+                        batch++;
                         bufferToNetwork.flip();
-                        Packet packet = new Packet(bufferToNetwork);
-                        if (packet.isUDP()) {
-                            deviceToNetworkUDPQueue.offer(packet);
-                        } else if (packet.isTCP()) {
-                            deviceToNetworkTCPQueue.offer(packet);
-                        } else {
-                            LogUtils.w(TAG, "Unknown packet type");
-                            dataSent = false;
-                        }
-                    } else {
-                        dataSent = false;
+                        if (dispatch(bufferToNetwork))
+                            bufferToNetwork = ByteBufferPool.acquire(ByteBufferPool.MTU);
+                        else
+                            bufferToNetwork.clear();
+                    }
+                    WAKEUPS.inc();
+                    if (batch > 0) BATCH_SIZES.record(batch);
+                    if (blocking || batch == batchSize) continue;
+                    if (wakeupPipe == null)
+                        Thread.sleep(11);
+                    else if (!waitReadable())
+                        break;
+                }
+            } catch (InterruptedException | ClosedByInterruptException e) {
+                LogUtils.i(TAG, "Stopping");
+            } catch (IOException e) {
+                LogUtils.w(TAG, e.toString(), e);
+            } finally {
+                closeResources(vpnInput);
+                if (wakeupPipe != null) {
+                    try {
+                        Os.close(wakeupPipe[0]);
+                        Os.close(wakeupPipe[1]);
+                    } catch (ErrnoException e) {
+                        // Ignore
                     }
-                    ByteBuffer bufferFromNetwork = networkToDeviceQueue.poll();
-                    if (bufferFromNetwork != null) {
+                }
+            }
+        }
+
+        /**
+         * @return false if the packet was not queued and its buffer can be reused
+         */
+        private boolean dispatch(ByteBuffer bufferToNetwork) throws IOException {
+            Packet packet = new Packet(bufferToNetwork);
+            if (packet.isUDP()) {
+                DnsLatency.queried(packet, System.nanoTime());
+                deviceToNetworkUDPQueue.offer(packet);
+            } else if (packet.isTCP()) {
+                int shard = deviceToNetworkTCPQueues.length == 1 ? 0 : FlowTable.shard(packet, deviceToNetworkTCPQueues.length);
+                deviceToNetworkTCPQueues[shard].offer(packet);
+            } else {
+                LogUtils.w(TAG, "Unknown packet type");
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * @return false if woken up by {@link #stop()}
+         */
+        private boolean waitReadable() throws IOException {
+            StructPollfd tun = new StructPollfd();
+            tun.fd = vpnFileDescriptor;
+            tun.events = (short) OsConstants.POLLIN;
+            StructPollfd wakeup = new StructPollfd();
+            wakeup.fd = wakeupPipe[0];
+            wakeup.events = (short) OsConstants.POLLIN;
+            StructPollfd[] pollfds = {tun, wakeup};
+            while (true) {
+                try {
+                    Os.poll(pollfds, -1);
+                    return wakeup.revents == 0;
+                } catch (ErrnoException e) {
+                    if (e.errno != OsConstants.EINTR) throw new IOException(e.toString());
+                }
+            }
+        }
+    }
+
+    private static class VPNWriter implements Runnable {
+        private static final String TAG = VPNWriter.class.getSimpleName();
+        private static final Stats.Counter WAKEUPS = Stats.counter("tun.writer.wakeups");
+        private static final Stats.Histogram BATCH_SIZES = Stats.histogram("tun.writer.batch");
+
+        private FileDescriptor vpnFileDescriptor;
+        private int batchSize;
+
+        private PacketQueue<ByteBuffer> networkToDeviceQueue;
+
+        public VPNWriter(FileDescriptor vpnFileDescriptor, int batchSize, PacketQueue<ByteBuffer> networkToDeviceQueue) {
+            this.vpnFileDescriptor = vpnFileDescriptor;
+            this.batchSize = Math.max(1, batchSize);
+            this.networkToDeviceQueue = networkToDeviceQueue;
+        }
+
+        @Override
+        public void run() {
+            LogUtils.i(TAG, "Started");
+
+            FileChannel vpnOutput = new FileOutputStream(vpnFileDescriptor).getChannel();
+            try {
+                while (!Thread.interrupted()) {
+                    // UDPInput, TCPInput, TCPOutput and the DNS hook unpark us by enqueueing
+                    ByteBuffer bufferFromNetwork = networkToDeviceQueue.take();
+                    WAKEUPS.inc();
+                    // Write whatever else is ready back to back before parking again
+                    int batch = 0;
+                    do {
+                        batch++;
                         bufferFromNetwork.flip();
                         while (bufferFromNetwork.hasRemaining())
                             try {
@@ -372,23 +639,15 @@ public class VhostsService extends VpnService {
                                 LogUtils.e(TAG, e.toString(), e);
                                 break;
                             }
-                        dataReceived = true;
+                        DnsLatency.answered(bufferFromNetwork, System.nanoTime());
                         ByteBufferPool.release(bufferFromNetwork);
-                    } else {
-                        dataReceived = false;
-                    }
-
-                    // TODO: Sleep-looping is not very battery-friendly, consider blocking instead
-                    // Confirm if throughput with ConcurrentQueue is really higher compared to BlockingQueue
-                    if (!dataSent && !dataReceived)
-                        Thread.sleep(11);
+                    } while (batch < batchSize && (bufferFromNetwork = networkToDeviceQueue.poll()) != null);
+                    BATCH_SIZES.record(batch);
                 }
             } catch (InterruptedException e) {
                 LogUtils.i(TAG, "Stopping");
-            } catch (IOException e) {
-                LogUtils.w(TAG, e.toString(), e);
             } finally {
-                closeResources(vpnInput, vpnOutput);
+                closeResources(vpnOutput);
             }
         }
     }
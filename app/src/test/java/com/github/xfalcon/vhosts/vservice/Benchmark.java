@@ -0,0 +1,69 @@
+/*
+ **Copyright (C) 2017  xfalcon
+ **
+ **This program is free software: you can redistribute it and/or modify
+ **it under the terms of the GNU General Public License as published by
+ **the Free Software Foundation, either version 3 of the License, or
+ **(at your option) any later version.
+ **
+ **This program is distributed in the hope that it will be useful,
+ **but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ **GNU General Public License for more details.
+ **
+ **You should have received a copy of the GNU General Public License
+ **along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **
+ */
+
+
+package com.github.xfalcon.vhosts.vservice;
+
+import org.junit.Assume;
+
+import java.util.logging.Logger;
+
+/**
+ * Timing shared by the *Benchmark classes. They are skipped unless the tests
+ * run with -Dbenchmark=true, which ./gradlew test -Pbenchmark sets, and
+ * their results are logged rather than printed.
+ */
+class Benchmark {
+    private static final Logger LOG = Logger.getLogger(Benchmark.class.getName());
+
+    // Whatever the timed code computed, kept so that it is not optimized away
+    private static volatile long sink;
+
+    interface Body {
+        /**
+         * @return anything derived from the work done
+         */
+        long run(int iterations) throws Exception;
+    }
+
+    /**
+     * Skips the calling benchmark unless benchmarks were asked for.
+     */
+    static void assumeEnabled() {
+        Assume.assumeTrue("benchmarks run with -Dbenchmark=true", Boolean.getBoolean("benchmark"));
+    }
+
+    /**
+     * Runs body for warmup iterations, then times one run of iterations.
+     *
+     * @return elapsed nanoseconds of the timed run
+     */
+    static long time(int warmup, int iterations, Body body) throws Exception {
+        long result = 0;
+        if (warmup > 0) result += body.run(warmup);
+        long start = System.nanoTime();
+        result += body.run(iterations);
+        long elapsed = System.nanoTime() - start;
+        sink += result;
+        return elapsed;
+    }
+
+    static void report(String result) {
+        LOG.info(result);
+    }
+}
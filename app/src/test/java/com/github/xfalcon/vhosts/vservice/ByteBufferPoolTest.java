@@ -0,0 +1,149 @@
+/*
+ **Copyright (C) 2017  xfalcon
+ **
+ **This program is free software: you can redistribute it and/or modify
+ **it under the terms of the GNU General Public License as published by
+ **the Free Software Foundation, either version 3 of the License, or
+ **(at your option) any later version.
+ **
+ **This program is distributed in the hope that it will be useful,
+ **but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ **GNU General Public License for more details.
+ **
+ **You should have received a copy of the GNU General Public License
+ **along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **
+ */
+
+package com.github.xfalcon.vhosts.vservice;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ByteBufferPoolTest {
+    /**
+     * Runs body on a thread of its own, with a thread cache of its own.
+     */
+    private static void onOtherThread(final Runnable body) throws Exception {
+        final Throwable[] failure = new Throwable[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    body.run();
+                } catch (Throwable t) {
+                    failure[0] = t;
+                }
+            }
+        });
+        thread.start();
+        thread.join();
+        if (failure[0] instanceof Error) throw (Error) failure[0];
+        if (failure[0] != null) throw new AssertionError(failure[0]);
+    }
+
+    @Test
+    public void picksTheSmallestClassThatFits() {
+        assertEquals(ByteBufferPool.SMALL, capacity(1));
+        assertEquals(ByteBufferPool.SMALL, capacity(ByteBufferPool.SMALL));
+        assertEquals(ByteBufferPool.MTU, capacity(ByteBufferPool.SMALL + 1));
+        assertEquals(ByteBufferPool.MTU, capacity(ByteBufferPool.MTU));
+        assertEquals(ByteBufferPool.LARGE, capacity(ByteBufferPool.MTU + 1));
+        assertEquals(ByteBufferPool.LARGE, capacity(ByteBufferPool.LARGE));
+        ByteBuffer buffer = ByteBufferPool.acquire();
+        assertEquals(ByteBufferPool.LARGE, buffer.capacity());
+        assertTrue(buffer.isDirect());
+        ByteBufferPool.release(buffer);
+        try {
+            ByteBufferPool.acquire(ByteBufferPool.LARGE + 1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    private static int capacity(int minCapacity) {
+        ByteBuffer buffer = ByteBufferPool.acquire(minCapacity);
+        int capacity = buffer.capacity();
+        ByteBufferPool.release(buffer);
+        return capacity;
+    }
+
+    @Test
+    public void reusesWhatTheThreadReleased() {
+        ByteBuffer buffer = ByteBufferPool.acquire(ByteBufferPool.MTU);
+        buffer.putInt(42);
+        buffer.flip();
+        ByteBufferPool.release(buffer);
+        ByteBuffer again = ByteBufferPool.acquire(ByteBufferPool.MTU);
+        assertSame(buffer, again);
+        // Cleared on release
+        assertEquals(0, again.position());
+        assertEquals(again.capacity(), again.limit());
+        ByteBufferPool.release(again);
+        // Not from the pool, and not kept
+        ByteBufferPool.release(ByteBuffer.allocateDirect(100));
+    }
+
+    @Test
+    public void dropsReleasesPastTheCap() throws Exception {
+        ByteBufferPool.clear();
+        final Stats.Counter discards = Stats.counter("pool." + ByteBufferPool.SMALL + ".discards");
+        onOtherThread(new Runnable() {
+            @Override
+            public void run() {
+                int kept = ByteBufferPool.LOCAL_CACHE_SIZE + ByteBufferPool.RETAINED[0];
+                List<ByteBuffer> buffers = new ArrayList<>();
+                for (int i = 0; i < kept + 5; i++) buffers.add(ByteBuffer.allocateDirect(ByteBufferPool.SMALL));
+                long before = discards.get();
+                for (int i = 0; i < kept; i++) ByteBufferPool.release(buffers.get(i));
+                assertEquals(before, discards.get());
+                for (int i = kept; i < buffers.size(); i++) ByteBufferPool.release(buffers.get(i));
+                assertEquals(before + 5, discards.get());
+            }
+        });
+        ByteBufferPool.clear();
+    }
+
+    @Test
+    public void returnsBuffersReleasedOnAnotherThread() throws Exception {
+        ByteBufferPool.clear();
+        final ByteBuffer buffer = ByteBufferPool.acquire(ByteBufferPool.LARGE);
+        onOtherThread(new Runnable() {
+            @Override
+            public void run() {
+                // Fills this thread's cache, so the next release goes to the shared list
+                for (int i = 0; i < ByteBufferPool.LOCAL_CACHE_SIZE; i++)
+                    ByteBufferPool.release(ByteBuffer.allocateDirect(ByteBufferPool.LARGE));
+                ByteBufferPool.release(buffer);
+            }
+        });
+        assertSame(buffer, ByteBufferPool.acquire(ByteBufferPool.LARGE));
+        ByteBufferPool.release(buffer);
+        ByteBufferPool.clear();
+    }
+
+    @Test
+    public void reportsBuffersNeverReleased() {
+        ByteBufferPool.setLeakDetection(true);
+        try {
+            ByteBuffer released = ByteBufferPool.acquire(ByteBufferPool.SMALL);
+            ByteBuffer leaked = ByteBufferPool.acquire(ByteBufferPool.SMALL);
+            ByteBufferPool.release(released);
+            assertEquals(1, ByteBufferPool.reportLeaks());
+            // Reported once
+            assertEquals(0, ByteBufferPool.reportLeaks());
+            ByteBufferPool.release(leaked);
+        } finally {
+            ByteBufferPool.setLeakDetection(false);
+        }
+        ByteBufferPool.acquire(ByteBufferPool.SMALL);
+        assertEquals(0, ByteBufferPool.reportLeaks());
+    }
+}
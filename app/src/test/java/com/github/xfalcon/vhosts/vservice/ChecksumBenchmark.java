@@ -0,0 +1,61 @@
+/*
+ **Copyright (C) 2017  xfalcon
+ **
+ **This program is free software: you can redistribute it and/or modify
+ **it under the terms of the GNU General Public License as published by
+ **the Free Software Foundation, either version 3 of the License, or
+ **(at your option) any later version.
+ **
+ **This program is distributed in the hope that it will be useful,
+ **but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ **GNU General Public License for more details.
+ **
+ **You should have received a copy of the GNU General Public License
+ **along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **
+ */
+
+package com.github.xfalcon.vhosts.vservice;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * {@link Checksum#sum} against the 16 bit loop Packet used before.
+ */
+public class ChecksumBenchmark {
+    private static final int WARMUP = 20000;
+    private static final int ITERATIONS = 200000;
+
+    @Test
+    public void compareWithLegacyLoop() throws Exception {
+        Benchmark.assumeEnabled();
+        final ByteBuffer buffer = ChecksumTest.randomBuffer(new Random(3), ByteBufferPool.LARGE);
+        for (final int size : new int[]{40, 1460, 16384}) {
+            int iterations = ITERATIONS * 40 / size + 1000;
+            long legacy = Benchmark.time(WARMUP, iterations, new Benchmark.Body() {
+                @Override
+                public long run(int iterations) {
+                    long sum = 0;
+                    for (int i = 0; i < iterations; i++)
+                        sum += ChecksumTest.legacySum(buffer, 0, size);
+                    return sum;
+                }
+            });
+            long wordAtATime = Benchmark.time(WARMUP, iterations, new Benchmark.Body() {
+                @Override
+                public long run(int iterations) {
+                    long sum = 0;
+                    for (int i = 0; i < iterations; i++)
+                        sum += Checksum.sum(buffer, 0, size);
+                    return sum;
+                }
+            });
+            Benchmark.report("checksum " + size + " bytes: legacy " + legacy / iterations
+                    + " ns, word at a time " + wordAtATime / iterations + " ns");
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ **Copyright (C) 2017  xfalcon
+ **
+ **This program is free software: you can redistribute it and/or modify
+ **it under the terms of the GNU General Public License as published by
+ **the Free Software Foundation, either version 3 of the License, or
+ **(at your option) any later version.
+ **
+ **This program is distributed in the hope that it will be useful,
+ **but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ **GNU General Public License for more details.
+ **
+ **You should have received a copy of the GNU General Public License
+ **along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **
+ */
+
+package com.github.xfalcon.vhosts.vservice;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ChecksumTest {
+
+    /**
+     * The loop Packet.checksum used to run over a segment
+     */
+    static int legacySum(ByteBuffer backingBuffer, int offset, int length) {
+        ByteBuffer buffer = backingBuffer.duplicate();
+        buffer.position(offset);
+        int sum = 0;
+        while (length > 1) {
+            sum += buffer.getShort() & 0xFFFF;
+            length -= 2;
+        }
+        if (length > 0)
+            sum += (buffer.get() & 0xFF) << 8;
+        while (sum >> 16 > 0)
+            sum = (sum & 0xFFFF) + (sum >> 16);
+        return sum;
+    }
+
+    static ByteBuffer randomBuffer(Random random, int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        buffer.put(bytes);
+        buffer.clear();
+        return buffer;
+    }
+
+    @Test
+    public void sumMatchesLegacyLoop() {
+        Random random = new Random(1);
+        ByteBuffer buffer = randomBuffer(random, 2048);
+        for (int i = 0; i < 2000; i++) {
+            int offset = random.nextInt(512) * 2;
+            int length = random.nextInt(buffer.capacity() - offset);
+            assertEquals(legacySum(buffer, offset, length), Checksum.fold(Checksum.sum(buffer, offset, length)));
+        }
+    }
+}
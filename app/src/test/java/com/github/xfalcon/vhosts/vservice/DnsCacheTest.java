@@ -0,0 +1,387 @@
+/*
+ **Copyright (C) 2017  xfalcon
+ **
+ **This program is free software: you can redistribute it and/or modify
+ **it under the terms of the GNU General Public License as published by
+ **the Free Software Foundation, either version 3 of the License, or
+ **(at your option) any later version.
+ **
+ **This program is distributed in the hope that it will be useful,
+ **but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ **GNU General Public License for more details.
+ **
+ **You should have received a copy of the GNU General Public License
+ **along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **
+ */
+
+package com.github.xfalcon.vhosts.vservice;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class DnsCacheTest {
+    private static void putQuestion(ByteBuffer buffer, String name, int type) {
+        for (String label : name.split("\\.")) {
+            buffer.put((byte) label.length());
+            for (int i = 0; i < label.length(); i++) buffer.put((byte) label.charAt(i));
+        }
+        buffer.put((byte) 0);
+        buffer.putShort((short) type);
+        buffer.putShort((short) DnsQuery.CLASS_IN);
+    }
+
+    private static void putOpt(ByteBuffer buffer) {
+        putOpt(buffer, 1232, false);
+    }
+
+    private static void putOpt(ByteBuffer buffer, int payloadSize, boolean dnssecOk) {
+        buffer.put((byte) 0);
+        buffer.putShort((short) 41);
+        buffer.putShort((short) payloadSize);
+        buffer.putInt(dnssecOk ? 0x8000 : 0);
+        buffer.putShort((short) 0);
+    }
+
+    /**
+     * A query from the device to 8.8.8.8, parsed into query.
+     */
+    private static Packet query(DnsQuery query, String name, int id, boolean edns) throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(ByteBufferPool.MTU);
+        buffer.position(28);
+        buffer.putShort((short) id);
+        buffer.putShort((short) 0x0100);
+        buffer.putShort((short) 1);
+        buffer.putInt(0);
+        buffer.putShort((short) (edns ? 1 : 0));
+        putQuestion(buffer, name, DnsQuery.TYPE_A);
+        if (edns) putOpt(buffer);
+        int length = buffer.position() - 28;
+        buffer.position(0);
+        buffer.put((byte) 0x45);
+        buffer.put((byte) 0);
+        buffer.putShort((short) (28 + length));
+        buffer.putInt(0);
+        buffer.put((byte) 64);
+        buffer.put((byte) 17);
+        buffer.putShort((short) 0);
+        buffer.put(InetAddress.getByName("10.0.0.2").getAddress());
+        buffer.put(InetAddress.getByName("8.8.8.8").getAddress());
+        buffer.putShort((short) 40000);
+        buffer.putShort((short) 53);
+        buffer.putShort((short) (8 + length));
+        buffer.putShort((short) 0);
+        buffer.limit(28 + length);
+        buffer.position(0);
+        Packet packet = new Packet(buffer);
+        assertTrue(query.parse(buffer, buffer.position(), buffer.limit()));
+        return packet;
+    }
+
+    /**
+     * An answer with one A record, or an NXDOMAIN with an SOA when ttl is negative.
+     */
+    private static ByteBuffer response(String name, int ttl, boolean edns) {
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        buffer.putShort((short) 0x4242);
+        buffer.putShort((short) (ttl < 0 ? 0x8183 : 0x8180));
+        buffer.putShort((short) 1);
+        buffer.putShort((short) (ttl < 0 ? 0 : 1));
+        buffer.putShort((short) (ttl < 0 ? 1 : 0));
+        buffer.putShort((short) (edns ? 1 : 0));
+        putQuestion(buffer, name, DnsQuery.TYPE_A);
+        buffer.putShort((short) (0xC000 | DnsQuery.HEADER_SIZE));
+        if (ttl < 0) {
+            buffer.putShort((short) 6);
+            buffer.putShort((short) DnsQuery.CLASS_IN);
+            buffer.putInt(3600);
+            buffer.putShort((short) 22);
+            buffer.put((byte) 0);
+            buffer.put((byte) 0);
+            buffer.putInt(1);
+            buffer.putInt(7200);
+            buffer.putInt(900);
+            buffer.putInt(86400);
+            buffer.putInt(-ttl);
+        } else {
+            buffer.putShort((short) DnsQuery.TYPE_A);
+            buffer.putShort((short) DnsQuery.CLASS_IN);
+            buffer.putInt(ttl);
+            buffer.putShort((short) 4);
+            buffer.put(new byte[]{93, (byte) 184, (byte) 216, 34});
+        }
+        if (edns) putOpt(buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Sets CD in a query or a response, and DO in its OPT record.
+     */
+    private static void setDnssec(ByteBuffer buffer, int offset, boolean dnssecOk, boolean checkingDisabled) {
+        if (checkingDisabled) buffer.putShort(offset + 2, (short) (buffer.getShort(offset + 2) | 0x0010));
+        if (dnssecOk) buffer.putShort(buffer.limit() - 4, (short) 0x8000);
+    }
+
+    /**
+     * The question of the query a response answers, as the forwarder passes
+     * it: with OPT if the response has one, and the DO and CD bits it repeats.
+     */
+    private static DnsQuestion asked(ByteBuffer response) {
+        int flags = (response.getShort(2) & 0x0010) != 0 ? DnsQuestion.CHECKING_DISABLED : 0;
+        if (response.getShort(10) != 0) {
+            flags |= DnsQuestion.EDNS;
+            if ((response.getShort(response.limit() - 4) & 0x8000) != 0) flags |= DnsQuestion.DNSSEC_OK;
+        }
+        DnsQuestion question = new DnsQuestion();
+        question.set(response, response.position(), response.limit(), flags);
+        return question;
+    }
+
+    private static void store(DnsCache cache, ByteBuffer response, long now) {
+        cache.store(response, asked(response), now);
+    }
+
+    @Test
+    public void answersWithTheTtlCountedDown() throws Exception {
+        DnsCache cache = new DnsCache(64 * 1024, false);
+        DnsQuery dnsQuery = new DnsQuery();
+        ByteBuffer response = response("example.com", 300, false);
+        int length = response.limit();
+        store(cache, response, 1000);
+        assertEquals(1, cache.size());
+        assertEquals(0, response.position());
+
+        Packet packet = query(dnsQuery, "ExAmple.COM", 0x1234, false);
+        assertTrue(cache.answer(packet, dnsQuery, 11000));
+        ByteBuffer buffer = packet.backingBuffer;
+        assertEquals(28 + length, buffer.position());
+        assertEquals(InetAddress.getByName("8.8.8.8"), packet.ipHeader.getSourceAddress());
+        assertEquals(40000, packet.udpHeader.destinationPort);
+        assertEquals(8 + length, buffer.getShort(24));
+        assertEquals(0x1234, buffer.getShort(28) & 0xFFFF);
+        assertEquals(0x8180, buffer.getShort(30) & 0xFFFF);
+        // The device's spelling of the name is kept
+        assertEquals('E', buffer.get(28 + 13));
+        assertEquals('C', buffer.get(28 + 21));
+        int ttlOffset = 28 + length - 10;
+        assertEquals(290, buffer.getInt(ttlOffset));
+        assertEquals(93, buffer.get(28 + length - 4));
+
+        assertFalse(cache.answer(query(dnsQuery, "example.com", 1, false), dnsQuery, 301000));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void keepsNegativeAnswersForTheSoaMinimum() throws Exception {
+        DnsCache cache = new DnsCache(64 * 1024, false);
+        DnsQuery dnsQuery = new DnsQuery();
+        store(cache, response("nx.example.com", -60, true), 0);
+        // A response to a query with OPT only answers such queries
+        assertFalse(cache.answer(query(dnsQuery, "nx.example.com", 1, false), dnsQuery, 1000));
+        Packet packet = query(dnsQuery, "nx.example.com", 2, true);
+        assertTrue(cache.answer(packet, dnsQuery, 59000));
+        assertEquals(0x8183, packet.backingBuffer.getShort(30) & 0xFFFF);
+        assertFalse(cache.answer(query(dnsQuery, "nx.example.com", 3, true), dnsQuery, 60000));
+    }
+
+    @Test
+    public void storesOnlyForTheQuestionAsked() throws Exception {
+        DnsCache cache = new DnsCache(64 * 1024, false);
+        DnsQuery dnsQuery = new DnsQuery();
+        query(dnsQuery, "Example.COM", 1, false);
+        // Spelled as asked, as the forwarder keeps it
+        DnsQuestion asked = new DnsQuestion();
+        asked.set(dnsQuery, false);
+
+        cache.store(response("other.example.com", 300, false), asked, 0);
+        assertEquals(0, cache.size());
+        assertFalse(cache.answer(query(dnsQuery, "other.example.com", 2, false), dnsQuery, 1000));
+
+        cache.store(response("example.com", 300, false), asked, 0);
+        assertEquals(1, cache.size());
+        assertTrue(cache.answer(query(dnsQuery, "example.Com", 3, false), dnsQuery, 1000));
+    }
+
+    @Test
+    public void skipsWhatCannotBeCached() throws Exception {
+        DnsCache cache = new DnsCache(64 * 1024, false);
+        store(cache, response("zero.example.com", 0, false), 0);
+        ByteBuffer truncated = response("tc.example.com", 300, false);
+        truncated.putShort(2, (short) 0x8380);
+        store(cache, truncated, 0);
+        ByteBuffer failure = response("fail.example.com", 300, false);
+        failure.putShort(2, (short) 0x8182);
+        store(cache, failure, 0);
+        ByteBuffer cut = response("cut.example.com", 300, false);
+        cut.limit(cut.limit() - 2);
+        store(cache, cut, 0);
+        assertEquals(0, cache.size());
+        assertFalse(new DnsCache(0, false).answer(query(new DnsQuery(), "example.com", 1, false), new DnsQuery(), 0));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedOverTheCap() throws Exception {
+        DnsCache probe = new DnsCache(64 * 1024, false);
+        store(probe, response("a.example.com", 300, false), 0);
+        long entrySize = probe.bytes();
+
+        DnsCache cache = new DnsCache(entrySize * 2, false);
+        DnsQuery dnsQuery = new DnsQuery();
+        store(cache, response("a.example.com", 300, false), 0);
+        store(cache, response("b.example.com", 300, false), 0);
+        assertTrue(cache.answer(query(dnsQuery, "a.example.com", 1, false), dnsQuery, 0));
+        store(cache, response("c.example.com", 300, false), 0);
+        assertEquals(2, cache.size());
+        assertTrue(cache.bytes() <= entrySize * 2);
+        assertFalse(cache.answer(query(dnsQuery, "b.example.com", 1, false), dnsQuery, 0));
+        assertTrue(cache.answer(query(dnsQuery, "a.example.com", 1, false), dnsQuery, 0));
+        assertTrue(cache.answer(query(dnsQuery, "c.example.com", 1, false), dnsQuery, 0));
+    }
+
+    @Test
+    public void servesStaleWhileRefreshing() throws Exception {
+        DnsCache cache = new DnsCache(64 * 1024, true);
+        DnsQuery dnsQuery = new DnsQuery();
+        long staleServed = Stats.counter("dns.cache.stale_served").get();
+        long staleRefreshes = Stats.counter("dns.cache.stale_refreshes").get();
+        ByteBuffer response = response("example.com", 300, true);
+        int length = response.limit();
+        store(cache, response, 0);
+        assertEquals(Long.MAX_VALUE, cache.nextRefresh());
+
+        Packet packet = query(dnsQuery, "example.com", 1, true);
+        assertTrue(cache.answer(packet, dnsQuery, 301000));
+        // The A record's TTL, before the OPT record
+        assertEquals(DnsCache.STALE_TTL, packet.backingBuffer.getInt(28 + length - 21));
+        assertEquals(staleServed + 1, Stats.counter("dns.cache.stale_served").get());
+        assertEquals(301000, cache.nextRefresh());
+
+        ByteBuffer refresh = ByteBuffer.allocate(512);
+        assertTrue(cache.refresh(refresh, 301000));
+        assertFalse(cache.refresh(ByteBuffer.allocate(512), 301000));
+        assertEquals(staleRefreshes + 1, Stats.counter("dns.cache.stale_refreshes").get());
+        assertTrue(dnsQuery.parse(refresh, refresh.position(), refresh.limit()));
+        assertEquals(DnsQuery.TYPE_A, dnsQuery.type());
+        assertEquals(1, refresh.getShort(10));
+
+        // Not refreshed again before the recheck
+        assertTrue(cache.answer(query(dnsQuery, "example.com", 2, true), dnsQuery, 302000));
+        assertEquals(Long.MAX_VALUE, cache.nextRefresh());
+        assertTrue(cache.answer(query(dnsQuery, "example.com", 3, true), dnsQuery,
+                301000 + DnsCache.FAILURE_RECHECK));
+        assertEquals(301000 + DnsCache.FAILURE_RECHECK, cache.nextRefresh());
+
+        long gone = 300000 + DnsCache.MAX_STALE * 1000L;
+        assertFalse(cache.answer(query(dnsQuery, "example.com", 4, true), dnsQuery, gone));
+        assertEquals(0, cache.size());
+        assertEquals(Long.MAX_VALUE, cache.nextRefresh());
+    }
+
+    @Test
+    public void prefetchesHotNames() throws Exception {
+        DnsCache cache = new DnsCache(64 * 1024, true);
+        DnsQuery dnsQuery = new DnsQuery();
+        long prefetches = Stats.counter("dns.cache.prefetches").get();
+        long wasted = Stats.counter("dns.cache.prefetches_wasted").get();
+        store(cache, response("example.com", 300, false), 0);
+        assertTrue(cache.answer(query(dnsQuery, "example.com", 1, false), dnsQuery, 1000));
+        assertEquals(Long.MAX_VALUE, cache.nextRefresh());
+        assertTrue(cache.answer(query(dnsQuery, "example.com", 2, false), dnsQuery, 2000));
+        assertEquals(270000, cache.nextRefresh());
+
+        assertFalse(cache.refresh(ByteBuffer.allocate(512), 269999));
+        ByteBuffer refresh = ByteBuffer.allocate(512);
+        assertTrue(cache.refresh(refresh, 270000));
+        assertEquals(prefetches + 1, Stats.counter("dns.cache.prefetches").get());
+        assertTrue(dnsQuery.parse(refresh, refresh.position(), refresh.limit()));
+        assertEquals(0, refresh.getShort(10));
+
+        // Half as popular once refreshed, so not prefetched again without asking
+        store(cache, response("example.com", 300, false), 270100);
+        assertEquals(Long.MAX_VALUE, cache.nextRefresh());
+        assertTrue(cache.answer(query(dnsQuery, "example.com", 3, false), dnsQuery, 280000));
+        assertEquals(270100 + 270000, cache.nextRefresh());
+        assertTrue(cache.refresh(ByteBuffer.allocate(512), 270100 + 270000));
+        store(cache, response("example.com", 300, false), 540200);
+        assertEquals(wasted, Stats.counter("dns.cache.prefetches_wasted").get());
+
+        // Nobody asked for this one
+        store(cache, response("example.com", 300, false), 600000);
+        assertEquals(wasted + 1, Stats.counter("dns.cache.prefetches_wasted").get());
+    }
+
+    @Test
+    public void keysOnTheDnssecBits() throws Exception {
+        DnsCache cache = new DnsCache(64 * 1024, false);
+        DnsQuery dnsQuery = new DnsQuery();
+        ByteBuffer dnssec = response("example.com", 300, true);
+        setDnssec(dnssec, 0, true, false);
+        store(cache, dnssec, 0);
+        ByteBuffer checking = response("example.com", 300, true);
+        setDnssec(checking, 0, false, true);
+        store(cache, checking, 0);
+        assertEquals(2, cache.size());
+
+        assertFalse(cache.answer(query(dnsQuery, "example.com", 1, true), dnsQuery, 1000));
+        Packet packet = query(dnsQuery, "example.com", 2, true);
+        setDnssec(packet.backingBuffer, 28, true, false);
+        assertTrue(dnsQuery.parse(packet.backingBuffer, 28, packet.backingBuffer.limit()));
+        assertTrue(cache.answer(packet, dnsQuery, 1000));
+        packet = query(dnsQuery, "example.com", 3, true);
+        setDnssec(packet.backingBuffer, 28, false, true);
+        assertTrue(dnsQuery.parse(packet.backingBuffer, 28, packet.backingBuffer.limit()));
+        assertTrue(cache.answer(packet, dnsQuery, 1000));
+        assertEquals(0x8190, packet.backingBuffer.getShort(30) & 0xFFFF);
+
+        // A refresh asks as the query did
+        packet = query(dnsQuery, "example.com", 4, true);
+        setDnssec(packet.backingBuffer, 28, true, false);
+        assertTrue(dnsQuery.parse(packet.backingBuffer, 28, packet.backingBuffer.limit()));
+        assertTrue(cache.answer(packet, dnsQuery, 2000));
+        ByteBuffer refresh = ByteBuffer.allocate(512);
+        assertTrue(cache.refresh(refresh, 270000));
+        assertTrue(dnsQuery.parse(refresh, refresh.position(), refresh.limit()));
+        assertTrue(dnsQuery.dnssecOk());
+        assertFalse(dnsQuery.checkingDisabled());
+    }
+
+    @Test
+    public void leavesLargeResponsesToUpstream() throws Exception {
+        DnsCache cache = new DnsCache(64 * 1024, false);
+        DnsQuery dnsQuery = new DnsQuery();
+        // Padded past 512 with a TXT record, as for a query with a 1232 byte payload
+        ByteBuffer response = ByteBuffer.allocate(1024);
+        response.putShort((short) 0x4242);
+        response.putShort((short) 0x8180);
+        response.putShort((short) 1);
+        response.putShort((short) 1);
+        response.putShort((short) 0);
+        response.putShort((short) 1);
+        putQuestion(response, "example.com", DnsQuery.TYPE_A);
+        response.putShort((short) (0xC000 | DnsQuery.HEADER_SIZE));
+        response.putShort((short) 16);
+        response.putShort((short) DnsQuery.CLASS_IN);
+        response.putInt(300);
+        response.putShort((short) 601);
+        response.put((byte) 600);
+        response.put(new byte[600]);
+        putOpt(response);
+        response.flip();
+        store(cache, response, 0);
+        assertEquals(1, cache.size());
+
+        long misses = Stats.counter("dns.cache.misses").get();
+        Packet packet = query(dnsQuery, "example.com", 1, true);
+        packet.backingBuffer.putShort(packet.backingBuffer.limit() - 8, (short) 512);
+        assertTrue(dnsQuery.parse(packet.backingBuffer, 28, packet.backingBuffer.limit()));
+        assertFalse(cache.answer(packet, dnsQuery, 1000));
+        assertEquals(misses + 1, Stats.counter("dns.cache.misses").get());
+        assertTrue(cache.answer(query(dnsQuery, "example.com", 2, true), dnsQuery, 1000));
+    }
+}
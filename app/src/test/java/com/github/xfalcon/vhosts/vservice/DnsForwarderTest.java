@@ -0,0 +1,436 @@
+/*
+ **Copyright (C) 2017  xfalcon
+ **
+ **This program is free software: you can redistribute it and/or modify
+ **it under the terms of the GNU General Public License as published by
+ **the Free Software Foundation, either version 3 of the License, or
+ **(at your option) any later version.
+ **
+ **This program is distributed in the hope that it will be useful,
+ **but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ **GNU General Public License for more details.
+ **
+ **You should have received a copy of the GNU General Public License
+ **along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **
+ */
+
+package com.github.xfalcon.vhosts.vservice;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+import static org.junit.Assert.*;
+
+public class DnsForwarderTest {
+    private DatagramChannel upstream;
+    // Listed first when racing, and never answers
+    private DatagramChannel silent;
+    private Selector selector;
+    private RegistrationQueue registrations;
+    private DnsUpstreams upstreams;
+    private DnsForwarder forwarder;
+    private PacketQueue<ByteBuffer> queue;
+    // Stands in for UDPOutput's
+    private PacketQueue<Packet> timerQueue;
+    private final DnsQuery dnsQuery = new DnsQuery();
+
+    private void open() throws Exception {
+        open(false);
+    }
+
+    private void open(boolean race) throws Exception {
+        upstream = DatagramChannel.open();
+        upstream.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        silent = DatagramChannel.open();
+        silent.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        InetSocketAddress address = (InetSocketAddress) upstream.socket().getLocalSocketAddress();
+        InetSocketAddress silentAddress = (InetSocketAddress) silent.socket().getLocalSocketAddress();
+        upstreams = new DnsUpstreams(race
+                ? new InetSocketAddress[]{silentAddress, address} : new InetSocketAddress[]{address});
+        selector = Selector.open();
+        registrations = new RegistrationQueue(selector, "test");
+        DatagramChannel[] sockets = new DatagramChannel[DnsForwarder.SOCKETS];
+        for (int i = 0; i < sockets.length; i++) sockets[i] = DatagramChannel.open();
+        timerQueue = new PacketQueue<>("timers", 16, PacketQueue.Policy.DROP, null);
+        forwarder = new DnsForwarder(sockets, registrations, upstreams, null, timerQueue);
+        queue = new PacketQueue<>("test", 16, PacketQueue.Policy.DROP,
+                new PacketQueue.DropCallback<ByteBuffer>() {
+                    @Override
+                    public void dropped(ByteBuffer buffer) {
+                        ByteBufferPool.release(buffer);
+                    }
+                });
+    }
+
+    private void close() throws Exception {
+        forwarder.close();
+        selector.close();
+        upstream.close();
+        silent.close();
+    }
+
+    // example.com A IN
+    private static final byte[] QUESTION = {7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 3, 'c', 'o', 'm', 0, 0, 1, 0, 1};
+    private static final int QUERY_SIZE = DnsQuery.HEADER_SIZE + QUESTION.length;
+
+    private Packet query(int id) throws Exception {
+        return query(id, 40000);
+    }
+
+    /**
+     * A query for example.com from a device port to the upstream, as VPNReader hands it on.
+     */
+    private Packet query(int id, int sourcePort) throws Exception {
+        return query(id, sourcePort, 0, false);
+    }
+
+    /**
+     * @param payloadSize advertised in an OPT record, or 0 for none
+     */
+    private Packet query(int id, int sourcePort, int payloadSize, boolean dnssecOk) throws Exception {
+        int size = QUERY_SIZE + (payloadSize != 0 ? 11 : 0);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(ByteBufferPool.MTU);
+        buffer.put((byte) 0x45);
+        buffer.put((byte) 0);
+        buffer.putShort((short) (28 + size));
+        buffer.putInt(0);
+        buffer.put((byte) 64);
+        buffer.put((byte) 17);
+        buffer.putShort((short) 0);
+        buffer.put(InetAddress.getByName("10.0.0.2").getAddress());
+        buffer.put(InetAddress.getByName("127.0.0.1").getAddress());
+        buffer.putShort((short) sourcePort);
+        buffer.putShort((short) upstream.socket().getLocalPort());
+        buffer.putShort((short) (8 + size));
+        buffer.putShort((short) 0);
+        buffer.putShort((short) id);
+        buffer.putShort((short) 0x0100);
+        buffer.putShort((short) 1);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) (payloadSize != 0 ? 1 : 0));
+        buffer.put(QUESTION);
+        if (payloadSize != 0) {
+            buffer.put((byte) 0);
+            buffer.putShort((short) DnsQuery.TYPE_OPT);
+            buffer.putShort((short) payloadSize);
+            buffer.putInt(dnssecOk ? 0x8000 : 0);
+            buffer.putShort((short) 0);
+        }
+        buffer.flip();
+        Packet packet = new Packet(buffer);
+        assertTrue(dnsQuery.parse(buffer, buffer.position(), buffer.limit()));
+        return packet;
+    }
+
+    /**
+     * Receives a query at the upstream and answers it, echoing its ID.
+     */
+    private void answer() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        SocketAddress from = upstream.receive(buffer);
+        buffer.flip();
+        buffer.putShort(2, (short) 0x8180);
+        upstream.send(buffer, from);
+    }
+
+    /**
+     * Receives a query at the upstream and answers it with a response of size
+     * bytes, whatever the records past the question hold.
+     */
+    private void answer(int size) throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        SocketAddress from = upstream.receive(buffer);
+        buffer.putShort(2, (short) 0x8180);
+        buffer.putShort(6, (short) 1);
+        buffer.position(size);
+        buffer.flip();
+        upstream.send(buffer, from);
+    }
+
+    /**
+     * Plays UDPInput's part once a datagram is on its way.
+     */
+    private ByteBuffer read(long timeout) throws Exception {
+        ByteBuffer response = queue.poll();
+        if (response != null) return response;
+        // Applies the registrations, then waits for the datagram
+        registrations.select();
+        long deadline = TimerWheel.now() + timeout;
+        while ((response = queue.poll()) == null && TimerWheel.now() < deadline) {
+            for (SelectionKey key : selector.selectedKeys())
+                forwarder.read((DatagramChannel) key.channel(), queue);
+            selector.selectedKeys().clear();
+            selector.select(50);
+        }
+        return response;
+    }
+
+    @Test
+    public void mapsResponsesBackToTheDevice() throws Exception {
+        open();
+        try {
+            for (int id : new int[]{0x1234, 0x1234, 0xBEEF}) {
+                Packet packet = query(id);
+                assertTrue(forwarder.forward(packet, dnsQuery, TimerWheel.now()));
+                assertEquals(1, forwarder.pending());
+                answer();
+
+                ByteBuffer response = read(5000);
+                assertNotNull(response);
+                response.flip();
+                Packet parsed = new Packet(response);
+                assertEquals(InetAddress.getByName("127.0.0.1"), parsed.ipHeader.getSourceAddress());
+                assertEquals(InetAddress.getByName("10.0.0.2"), parsed.ipHeader.getDestinationAddress());
+                assertEquals(upstream.socket().getLocalPort(), parsed.udpHeader.sourcePort);
+                assertEquals(40000, parsed.udpHeader.destinationPort);
+                assertEquals(8 + QUERY_SIZE, response.getShort(24));
+                assertEquals(id, response.getShort(28) & 0xFFFF);
+                assertEquals(0x8180, response.getShort(30) & 0xFFFF);
+                assertEquals(0, forwarder.pending());
+                ByteBufferPool.release(response);
+            }
+        } finally {
+            close();
+        }
+    }
+
+    @Test
+    public void dropsLateResponses() throws Exception {
+        open();
+        try {
+            long now = TimerWheel.now();
+            // Not coalesced either way
+            assertTrue(forwarder.forward(query(7), null, now));
+            forwarder.advance(now + DnsForwarder.QUERY_TIMEOUT - 1);
+            assertEquals(1, forwarder.pending());
+            // Timers fire on the tick after their deadline
+            forwarder.advance(now + DnsForwarder.QUERY_TIMEOUT + DnsForwarder.TICK);
+            assertEquals(0, forwarder.pending());
+
+            long unmatched = Stats.counter("dns.forward.unmatched").get();
+            answer();
+            assertNull(read(200));
+            assertEquals(unmatched + 1, Stats.counter("dns.forward.unmatched").get());
+        } finally {
+            close();
+        }
+    }
+
+    @Test
+    public void dropsResponsesToAnotherQuestion() throws Exception {
+        open();
+        try {
+            Stats.Counter unmatched = Stats.counter("dns.forward.unmatched");
+            long before = unmatched.get();
+            assertTrue(forwarder.forward(query(0x1234), dnsQuery, TimerWheel.now()));
+            ByteBuffer buffer = ByteBuffer.allocate(512);
+            SocketAddress from = upstream.receive(buffer);
+            buffer.flip();
+            buffer.putShort(2, (short) 0x8180);
+
+            // Right ID and address, but xxample.com, then example.com AAAA
+            buffer.put(DnsQuery.HEADER_SIZE + 1, (byte) 'x');
+            upstream.send(buffer.duplicate(), from);
+            assertNull(read(200));
+            buffer.put(DnsQuery.HEADER_SIZE + 1, (byte) 'e');
+            buffer.putShort(DnsQuery.HEADER_SIZE + 13, (short) 28);
+            upstream.send(buffer.duplicate(), from);
+            assertNull(read(200));
+            assertEquals(before + 2, unmatched.get());
+            assertEquals(1, forwarder.pending());
+
+            // Names compare without case
+            buffer.put(DnsQuery.HEADER_SIZE + 1, (byte) 'E');
+            buffer.putShort(DnsQuery.HEADER_SIZE + 13, (short) 1);
+            upstream.send(buffer.duplicate(), from);
+            ByteBuffer response = read(5000);
+            assertNotNull(response);
+            assertEquals(0x1234, response.getShort(28) & 0xFFFF);
+            assertEquals(0, forwarder.pending());
+            assertEquals(before + 2, unmatched.get());
+            ByteBufferPool.release(response);
+        } finally {
+            close();
+        }
+    }
+
+    @Test
+    public void coalescesRepeatedQuestions() throws Exception {
+        open();
+        try {
+            long coalesced = Stats.counter("dns.forward.coalesced").get();
+            long now = TimerWheel.now();
+            assertTrue(forwarder.forward(query(1, 40001), dnsQuery, now));
+            assertTrue(forwarder.forward(query(2, 40002), dnsQuery, now));
+            assertTrue(forwarder.forward(query(3, 40003), dnsQuery, now));
+            assertEquals(1, forwarder.pending());
+            assertEquals(coalesced + 2, Stats.counter("dns.forward.coalesced").get());
+            answer();
+
+            boolean[] seen = new boolean[4];
+            for (int i = 0; i < 3; i++) {
+                ByteBuffer response = read(5000);
+                assertNotNull(response);
+                int id = response.getShort(28) & 0xFFFF;
+                assertEquals(40000 + id, response.getShort(22) & 0xFFFF);
+                assertEquals(0x8180, response.getShort(30) & 0xFFFF);
+                seen[id] = true;
+                ByteBufferPool.release(response);
+            }
+            assertTrue(seen[1] && seen[2] && seen[3]);
+            assertEquals(0, forwarder.pending());
+
+            // Answered, so the next one goes upstream again
+            assertTrue(forwarder.forward(query(4), dnsQuery, now));
+            assertEquals(coalesced + 2, Stats.counter("dns.forward.coalesced").get());
+            answer();
+            ByteBuffer response = read(5000);
+            assertNotNull(response);
+            ByteBufferPool.release(response);
+        } finally {
+            close();
+        }
+    }
+
+    @Test
+    public void racesTheNextResolverAfterItsRto() throws Exception {
+        open(true);
+        try {
+            long raced = Stats.counter("dns.upstream.raced").get();
+            long won = Stats.counter("dns.upstream.races_won").get();
+            long now = TimerWheel.now();
+            assertTrue(forwarder.forward(query(9), dnsQuery, now));
+            ByteBuffer first = ByteBuffer.allocate(512);
+            silent.receive(first);
+            assertEquals(QUERY_SIZE, first.position());
+
+            long delay = upstreams.raceDelay(0);
+            forwarder.advance(now + delay - DnsForwarder.TICK);
+            assertEquals(raced, Stats.counter("dns.upstream.raced").get());
+            forwarder.advance(now + delay + DnsForwarder.TICK);
+            assertEquals(raced + 1, Stats.counter("dns.upstream.raced").get());
+            answer();
+
+            ByteBuffer response = read(5000);
+            assertNotNull(response);
+            assertEquals(9, response.getShort(28) & 0xFFFF);
+            ByteBufferPool.release(response);
+            assertEquals(won + 1, Stats.counter("dns.upstream.races_won").get());
+            assertEquals(0, forwarder.pending());
+            // The timeout is still ahead until UDPOutput, woken up, cancels it
+            assertTrue(forwarder.nextDeadline() <= now + DnsForwarder.QUERY_TIMEOUT + DnsForwarder.TICK);
+            long polled = TimerWheel.now();
+            assertNull(timerQueue.poll(5000));
+            assertTrue(TimerWheel.now() - polled < 1000);
+            forwarder.advance(now + delay + 2 * DnsForwarder.TICK);
+            assertEquals(Long.MAX_VALUE, forwarder.nextDeadline());
+        } finally {
+            close();
+        }
+    }
+
+    @Test
+    public void refreshesOnlyForTheFlowsThatJoin() throws Exception {
+        open();
+        try {
+            long coalesced = Stats.counter("dns.forward.coalesced").get();
+            long now = TimerWheel.now();
+            ByteBuffer refresh = ByteBufferPool.acquire(ByteBufferPool.MTU);
+            refresh.putShort((short) 0);
+            refresh.putShort((short) 0x0100);
+            refresh.putShort((short) 1);
+            refresh.putShort((short) 0);
+            refresh.putInt(0);
+            refresh.put(QUESTION);
+            refresh.flip();
+            assertTrue(forwarder.refresh(refresh, now));
+            assertEquals(1, forwarder.pending());
+            assertTrue(forwarder.forward(query(6), dnsQuery, now));
+            assertEquals(coalesced + 1, Stats.counter("dns.forward.coalesced").get());
+            answer();
+
+            ByteBuffer response = read(5000);
+            assertNotNull(response);
+            assertEquals(6, response.getShort(28) & 0xFFFF);
+            ByteBufferPool.release(response);
+            // Read with it, nothing went to the refresh
+            assertNull(queue.poll());
+            assertEquals(0, forwarder.pending());
+        } finally {
+            close();
+        }
+    }
+
+    @Test
+    public void truncatesResponsesThatDoNotFit() throws Exception {
+        open();
+        try {
+            long truncated = Stats.counter("dns.forward.truncated").get();
+            assertTrue(forwarder.forward(query(5), dnsQuery, TimerWheel.now()));
+            // Does not fit the forwarder's receive buffer
+            answer(DnsForwarder.MAX_RESPONSE + 100);
+
+            ByteBuffer response = read(5000);
+            assertNotNull(response);
+            // Header and question only, with TC
+            assertEquals(28 + QUERY_SIZE, response.position());
+            assertEquals(8 + QUERY_SIZE, response.getShort(24));
+            assertEquals(5, response.getShort(28) & 0xFFFF);
+            assertEquals(0x8380, response.getShort(30) & 0xFFFF);
+            assertEquals(1, response.getShort(32));
+            assertEquals(0, response.getShort(34));
+            assertEquals(0, response.getShort(36));
+            assertEquals(0, response.getShort(38));
+            assertEquals(truncated + 1, Stats.counter("dns.forward.truncated").get());
+            ByteBufferPool.release(response);
+        } finally {
+            close();
+        }
+    }
+
+    @Test
+    public void capsEachWaiterToItsPayloadSize() throws Exception {
+        open();
+        try {
+            long now = TimerWheel.now();
+            assertTrue(forwarder.forward(query(1, 40001, 4096, false), dnsQuery, now));
+            assertTrue(forwarder.forward(query(2, 40002, 600, false), dnsQuery, now));
+            assertEquals(1, forwarder.pending());
+            // Not the same question to upstream
+            assertTrue(forwarder.forward(query(3, 40003, 4096, true), dnsQuery, now));
+            assertTrue(forwarder.forward(query(4, 40004), dnsQuery, now));
+            assertEquals(3, forwarder.pending());
+            for (int i = 0; i < 3; i++) answer(1000);
+
+            for (int i = 0; i < 4; i++) {
+                ByteBuffer response = read(5000);
+                assertNotNull(response);
+                int id = response.getShort(28) & 0xFFFF;
+                if (id == 2 || id == 4) {
+                    // Header and question with TC
+                    assertEquals(28 + QUERY_SIZE, response.position());
+                    assertEquals(0x8380, response.getShort(30) & 0xFFFF);
+                    assertEquals(0, response.getShort(34));
+                    assertEquals(0, response.getShort(38));
+                } else {
+                    assertEquals(28 + 1000, response.position());
+                    assertEquals(0x8180, response.getShort(30) & 0xFFFF);
+                }
+                ByteBufferPool.release(response);
+            }
+            assertEquals(0, forwarder.pending());
+        } finally {
+            close();
+        }
+    }
+}
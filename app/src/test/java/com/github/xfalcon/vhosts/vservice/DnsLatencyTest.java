@@ -0,0 +1,79 @@
+/*
+ **Copyright (C) 2017  xfalcon
+ **
+ **This program is free software: you can redistribute it and/or modify
+ **it under the terms of the GNU General Public License as published by
+ **the Free Software Foundation, either version 3 of the License, or
+ **(at your option) any later version.
+ **
+ **This program is distributed in the hope that it will be useful,
+ **but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ **GNU General Public License for more details.
+ **
+ **You should have received a copy of the GNU General Public License
+ **along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **
+ */
+
+package com.github.xfalcon.vhosts.vservice;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class DnsLatencyTest {
+
+    private static ByteBuffer datagram(int sourcePort, int destinationPort, int id) throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(ByteBufferPool.MTU);
+        buffer.put((byte) 0x45);
+        buffer.put((byte) 0);
+        buffer.putShort((short) (28 + DnsQuery.HEADER_SIZE));
+        buffer.putInt(0);
+        buffer.put((byte) 64);
+        buffer.put((byte) 17);
+        buffer.putShort((short) 0);
+        buffer.put(InetAddress.getByName("10.0.0.2").getAddress());
+        buffer.put(InetAddress.getByName("10.0.0.1").getAddress());
+        buffer.putShort((short) sourcePort);
+        buffer.putShort((short) destinationPort);
+        buffer.putShort((short) (8 + DnsQuery.HEADER_SIZE));
+        buffer.putShort((short) 0);
+        buffer.putShort((short) id);
+        buffer.put(new byte[DnsQuery.HEADER_SIZE - 2]);
+        buffer.flip();
+        return buffer;
+    }
+
+    @Test
+    public void timesEachQueryToItsFirstAnswer() throws Exception {
+        Stats.Histogram roundTrip = Stats.histogram("dns.round_trip_us");
+        long count = roundTrip.count();
+        // 5 ms falls in [4096, 8192) microseconds
+        long bucket = roundTrip.bucket(13);
+        DnsLatency.queried(new Packet(datagram(40000, 53, 0x1234)), 0);
+        // Another flow, or another query of the same flow
+        DnsLatency.answered(datagram(53, 40001, 0x1234), 5000000);
+        DnsLatency.answered(datagram(53, 40000, 0x4321), 5000000);
+        assertEquals(count, roundTrip.count());
+
+        DnsLatency.answered(datagram(53, 40000, 0x1234), 5000000);
+        assertEquals(count + 1, roundTrip.count());
+        assertEquals(bucket + 1, roundTrip.bucket(13));
+        DnsLatency.answered(datagram(53, 40000, 0x1234), 6000000);
+        assertEquals(count + 1, roundTrip.count());
+    }
+
+    @Test
+    public void ignoresOtherTraffic() throws Exception {
+        Stats.Histogram roundTrip = Stats.histogram("dns.round_trip_us");
+        long count = roundTrip.count();
+        DnsLatency.queried(new Packet(datagram(40000, 443, 7)), 0);
+        DnsLatency.answered(datagram(443, 40000, 7), 1000);
+        DnsLatency.answered(datagram(53, 40000, 7), 1000);
+        assertEquals(count, roundTrip.count());
+    }
+}
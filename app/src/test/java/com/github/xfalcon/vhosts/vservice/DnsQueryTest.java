@@ -0,0 +1,176 @@
+/*
+ **Copyright (C) 2017  xfalcon
+ **
+ **This program is free software: you can redistribute it and/or modify
+ **it under the terms of the GNU General Public License as published by
+ **the Free Software Foundation, either version 3 of the License, or
+ **(at your option) any later version.
+ **
+ **This program is distributed in the hope that it will be useful,
+ **but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ **GNU General Public License for more details.
+ **
+ **You should have received a copy of the GNU General Public License
+ **along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **
+ */
+
+package com.github.xfalcon.vhosts.vservice;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class DnsQueryTest {
+    // example.com A IN
+    private static final byte[] QUESTION = {7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 3, 'c', 'o', 'm', 0, 0, 1, 0, 1};
+    // Root name, UDP payload 1232, no options
+    private static final byte[] OPT = {0, 0, 41, 0x04, (byte) 0xD0, 0, 0, 0, 0, 0, 0};
+    private static final int OFFSET = 28;
+
+    private final DnsQuery dnsQuery = new DnsQuery();
+
+    /**
+     * A query placed after room for the IP and UDP headers, as it sits in a packet.
+     */
+    private static ByteBuffer query(int qdcount, int arcount, byte[] question, byte[]... additional) {
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        buffer.position(OFFSET);
+        buffer.putShort((short) 0x1234);
+        buffer.putShort((short) 0x0100);
+        buffer.putShort((short) qdcount);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) arcount);
+        buffer.put(question);
+        for (byte[] record : additional) buffer.put(record);
+        buffer.flip();
+        buffer.position(OFFSET);
+        return buffer;
+    }
+
+    private boolean parse(ByteBuffer buffer) {
+        return dnsQuery.parse(buffer, buffer.position(), buffer.limit());
+    }
+
+    @Test
+    public void parsesTheQuestionInPlace() {
+        ByteBuffer buffer = query(1, 0, QUESTION);
+        assertTrue(parse(buffer));
+        assertEquals(0x1234, dnsQuery.id());
+        assertEquals(0x0100, dnsQuery.flags());
+        assertEquals(DnsQuery.TYPE_A, dnsQuery.type());
+        assertEquals(DnsQuery.CLASS_IN, dnsQuery.dclass());
+        assertEquals(2, dnsQuery.labelCount());
+        assertEquals(OFFSET + DnsQuery.HEADER_SIZE + 1, dnsQuery.labelStart(0));
+        assertEquals(7, dnsQuery.labelLength(0));
+        assertEquals(3, dnsQuery.labelLength(1));
+        assertEquals(OFFSET + DnsQuery.HEADER_SIZE + QUESTION.length, dnsQuery.questionEnd());
+        assertEquals("example.com.", dnsQuery.toString());
+        // Left untouched
+        assertEquals(OFFSET, buffer.position());
+    }
+
+    @Test
+    public void rejectsTruncatedMessages() {
+        ByteBuffer buffer = query(1, 0, QUESTION);
+        // Short of a header
+        assertFalse(dnsQuery.parse(buffer, OFFSET, OFFSET + DnsQuery.HEADER_SIZE - 1));
+        // A header with no room for even the root name and QTYPE/QCLASS
+        assertFalse(dnsQuery.parse(buffer, OFFSET, OFFSET + DnsQuery.HEADER_SIZE + 4));
+        // Cut inside QCLASS
+        assertFalse(dnsQuery.parse(buffer, OFFSET, buffer.limit() - 1));
+    }
+
+    @Test
+    public void rejectsAnythingButOneQuestion() {
+        assertFalse(parse(query(0, 0, QUESTION)));
+        assertFalse(parse(query(2, 0, QUESTION)));
+
+        ByteBuffer response = query(1, 0, QUESTION);
+        response.putShort(OFFSET + 2, (short) 0x8180);
+        assertFalse(parse(response));
+        ByteBuffer notify = query(1, 0, QUESTION);
+        notify.putShort(OFFSET + 2, (short) 0x2000);
+        assertFalse(parse(notify));
+    }
+
+    @Test
+    public void rejectsCompressionPointersInTheQuestion() {
+        byte[] pointer = {7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', (byte) 0xC0, 12, 0, 1, 0, 1};
+        assertFalse(parse(query(1, 0, pointer)));
+        // Extended label types as well
+        byte[] extended = {0x41, 0, 0, 1, 0, 1};
+        assertFalse(parse(query(1, 0, extended)));
+    }
+
+    @Test
+    public void rejectsLabelsPastTheEnd() {
+        // The second label claims more bytes than the message has
+        byte[] overrun = {7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 60, 'c', 'o', 'm'};
+        assertFalse(parse(query(1, 0, overrun)));
+
+        // A name longer than 255 bytes
+        ByteBuffer name = ByteBuffer.allocate(512);
+        for (int i = 0; i < 5; i++) {
+            name.put((byte) 63);
+            name.put(new byte[63]);
+        }
+        name.put(new byte[]{0, 0, 1, 0, 1});
+        byte[] tooLong = new byte[name.position()];
+        name.flip();
+        name.get(tooLong);
+        assertFalse(parse(query(1, 0, tooLong)));
+    }
+
+    @Test
+    public void acceptsOnlyAnOptRecord() {
+        assertTrue(parse(query(1, 1, QUESTION, OPT)));
+        assertEquals("example.com.", dnsQuery.toString());
+        assertFalse(parse(query(1, 2, QUESTION, OPT, OPT)));
+
+        // Anything else in its place, here an A record for the root
+        byte[] other = {0, 0, 1, 0, 1, 0, 0, 0, 60, 0, 0};
+        assertFalse(parse(query(1, 1, QUESTION, other)));
+        // Cut short
+        assertFalse(parse(query(1, 1, QUESTION, new byte[]{0, 0, 41, 0x04})));
+
+        ByteBuffer answers = query(1, 0, QUESTION);
+        answers.putShort(OFFSET + 6, (short) 1);
+        assertFalse(parse(answers));
+        ByteBuffer authority = query(1, 0, QUESTION);
+        authority.putShort(OFFSET + 8, (short) 1);
+        assertFalse(parse(authority));
+    }
+
+    @Test
+    public void readsThePayloadSizeAndDnssecBits() {
+        assertTrue(parse(query(1, 0, QUESTION)));
+        assertFalse(dnsQuery.edns());
+        assertEquals(DnsQuery.MIN_PAYLOAD_SIZE, dnsQuery.payloadSize());
+        assertFalse(dnsQuery.dnssecOk());
+        assertFalse(dnsQuery.checkingDisabled());
+
+        assertTrue(parse(query(1, 1, QUESTION, OPT)));
+        assertTrue(dnsQuery.edns());
+        assertEquals(1232, dnsQuery.payloadSize());
+        assertFalse(dnsQuery.dnssecOk());
+
+        // Payload 4096 with DO, and CD in the header
+        byte[] dnssec = {0, 0, 41, 0x10, 0, 0, 0, (byte) 0x80, 0, 0, 0};
+        ByteBuffer buffer = query(1, 1, QUESTION, dnssec);
+        buffer.putShort(OFFSET + 2, (short) 0x0110);
+        assertTrue(parse(buffer));
+        assertEquals(4096, dnsQuery.payloadSize());
+        assertTrue(dnsQuery.dnssecOk());
+        assertTrue(dnsQuery.checkingDisabled());
+
+        // Less than 512 counts as 512
+        byte[] small = {0, 0, 41, 0, 100, 0, 0, 0, 0, 0, 0};
+        assertTrue(parse(query(1, 1, QUESTION, small)));
+        assertEquals(DnsQuery.MIN_PAYLOAD_SIZE, dnsQuery.payloadSize());
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ **Copyright (C) 2017  xfalcon
+ **
+ **This program is free software: you can redistribute it and/or modify
+ **it under the terms of the GNU General Public License as published by
+ **the Free Software Foundation, either version 3 of the License, or
+ **(at your option) any later version.
+ **
+ **This program is distributed in the hope that it will be useful,
+ **but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ **GNU General Public License for more details.
+ **
+ **You should have received a copy of the GNU General Public License
+ **along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **
+ */
+
+package com.github.xfalcon.vhosts.vservice;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class DnsResponseTest {
+    // example.com
+    private static final byte[] NAME = {7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 3, 'c', 'o', 'm', 0};
+    // Root name, UDP payload 1232, no options
+    private static final byte[] OPT = {0, 0, 41, 0x04, (byte) 0xD0, 0, 0, 0, 0, 0, 0};
+
+    private final DnsQuery dnsQuery = new DnsQuery();
+
+    /**
+     * A query from the device as VPNReader hands it on, with a valid IPv4 header
+     * checksum or an IPv6 header.
+     */
+    private Packet query(boolean ipv6, int type, boolean edns) throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(ByteBufferPool.MTU);
+        int dnsSize = DnsQuery.HEADER_SIZE + NAME.length + 4 + (edns ? OPT.length : 0);
+        if (ipv6) {
+            buffer.putInt(0x60000000);
+            buffer.putShort((short) (8 + dnsSize));
+            buffer.put((byte) 17);
+            buffer.put((byte) 64);
+            buffer.put(InetAddress.getByName("fd00::2").getAddress());
+            buffer.put(InetAddress.getByName("fd00::1").getAddress());
+        } else {
+            buffer.put((byte) 0x45);
+            buffer.put((byte) 0);
+            buffer.putShort((short) (28 + dnsSize));
+            buffer.putInt(0x12344000);
+            buffer.put((byte) 64);
+            buffer.put((byte) 17);
+            buffer.putShort((short) 0);
+            buffer.put(InetAddress.getByName("10.0.0.2").getAddress());
+            buffer.put(InetAddress.getByName("10.0.0.1").getAddress());
+            buffer.putShort(10, (short) Checksum.finish(Checksum.sum(buffer, 0, 20)));
+        }
+        buffer.putShort((short) 40000);
+        buffer.putShort((short) 53);
+        buffer.putShort((short) (8 + dnsSize));
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0xBEEF);
+        buffer.putShort((short) 0x0100);
+        buffer.putShort((short) 1);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) (edns ? 1 : 0));
+        buffer.put(NAME);
+        buffer.putShort((short) type);
+        buffer.putShort((short) DnsQuery.CLASS_IN);
+        if (edns) buffer.put(OPT);
+        buffer.flip();
+        Packet packet = new Packet(buffer);
+        assertTrue(dnsQuery.parse(buffer, buffer.position(), buffer.limit()));
+        return packet;
+    }
+
+    /**
+     * Writes the answer and rewrites the headers, as DnsChange does.
+     */
+    private int answer(Packet packet, byte[] rdata) {
+        int length = DnsResponse.writeAnswer(dnsQuery, rdata);
+        assertTrue(length > 0);
+        packet.swapSourceAndDestination();
+        packet.updateUDPBuffer(packet.backingBuffer, length);
+        return length;
+    }
+
+    private static void assertAnswer(ByteBuffer buffer, int offset, int type, byte[] rdata) {
+        assertEquals(0xBEEF, buffer.getShort(offset) & 0xFFFF);
+        // QR and RD, NOERROR
+        assertEquals(0x8100, buffer.getShort(offset + 2) & 0xFFFF);
+        assertEquals(1, buffer.getShort(offset + 4));
+        assertEquals(1, buffer.getShort(offset + 6));
+        assertEquals(0, buffer.getShort(offset + 8));
+        assertEquals(0, buffer.getShort(offset + 10));
+        int pos = offset + DnsQuery.HEADER_SIZE + NAME.length + 4;
+        assertEquals(0xC00C, buffer.getShort(pos) & 0xFFFF);
+        assertEquals(type, buffer.getShort(pos + 2));
+        assertEquals(DnsQuery.CLASS_IN, buffer.getShort(pos + 4));
+        assertEquals(DnsResponse.ANSWER_TTL, buffer.getInt(pos + 6));
+        assertEquals(rdata.length, buffer.getShort(pos + 10));
+        byte[] written = new byte[rdata.length];
+        for (int i = 0; i < written.length; i++) written[i] = buffer.get(pos + 12 + i);
+        assertArrayEquals(rdata, written);
+    }
+
+    @Test
+    public void answersAWithAPointerToTheQuestion() throws Exception {
+        Packet packet = query(false, DnsQuery.TYPE_A, false);
+        byte[] rdata = InetAddress.getByName("192.0.2.7").getAddress();
+        int length = answer(packet, rdata);
+        ByteBuffer buffer = packet.backingBuffer;
+        assertEquals(DnsQuery.HEADER_SIZE + NAME.length + 4 + 12 + 4, length);
+        assertEquals(28 + length, buffer.limit());
+        assertAnswer(buffer, 28, DnsQuery.TYPE_A, rdata);
+
+        // Back to the device
+        assertEquals(InetAddress.getByName("10.0.0.1"), InetAddress.getByAddress(address(buffer, 12, 4)));
+        assertEquals(InetAddress.getByName("10.0.0.2"), InetAddress.getByAddress(address(buffer, 16, 4)));
+        assertEquals(53, buffer.getShort(20));
+        assertEquals(40000, buffer.getShort(22) & 0xFFFF);
+        assertEquals(28 + length, buffer.getShort(2));
+        assertEquals(8 + length, buffer.getShort(24));
+        // The header checksum holds, and no UDP checksum over IPv4
+        assertEquals(0xFFFF, Checksum.fold(Checksum.sum(buffer, 0, 20)));
+        assertEquals(0, buffer.getShort(26));
+    }
+
+    @Test
+    public void answersAaaaWithAValidUdpChecksum() throws Exception {
+        Packet packet = query(true, DnsQuery.TYPE_AAAA, false);
+        byte[] rdata = InetAddress.getByName("2001:db8::7").getAddress();
+        int length = answer(packet, rdata);
+        ByteBuffer buffer = packet.backingBuffer;
+        assertEquals(DnsQuery.HEADER_SIZE + NAME.length + 4 + 12 + 16, length);
+        assertAnswer(buffer, 48, DnsQuery.TYPE_AAAA, rdata);
+
+        assertEquals(8 + length, buffer.getShort(4));
+        assertEquals(8 + length, buffer.getShort(44));
+        assertEquals(InetAddress.getByName("fd00::1"), InetAddress.getByAddress(address(buffer, 8, 16)));
+        // Pseudo-header with the UDP length and next header, then the datagram
+        long sum = Checksum.sum(buffer, 8, 32) + 8 + length + 17 + Checksum.sum(buffer, 40, 8 + length);
+        assertEquals(0xFFFF, Checksum.fold(sum));
+        assertTrue(buffer.getShort(46) != 0);
+    }
+
+    @Test
+    public void overwritesTheOptRecord() throws Exception {
+        Packet packet = query(false, DnsQuery.TYPE_A, true);
+        byte[] rdata = InetAddress.getByName("192.0.2.7").getAddress();
+        int length = answer(packet, rdata);
+        ByteBuffer buffer = packet.backingBuffer;
+        assertEquals(DnsQuery.HEADER_SIZE + NAME.length + 4 + 12 + 4, length);
+        assertAnswer(buffer, 28, DnsQuery.TYPE_A, rdata);
+        assertEquals(0xFFFF, Checksum.fold(Checksum.sum(buffer, 0, 20)));
+    }
+
+    @Test
+    public void writesNoDataWithAnSoa() throws Exception {
+        Packet packet = query(false, 65, true);
+        int length = DnsResponse.writeNoData(dnsQuery);
+        ByteBuffer buffer = packet.backingBuffer;
+        assertEquals(DnsQuery.HEADER_SIZE + NAME.length + 4 + 12 + 22, length);
+        assertEquals(28 + length, buffer.limit());
+        assertEquals(0xBEEF, buffer.getShort(28) & 0xFFFF);
+        // QR and RD, NOERROR
+        assertEquals(0x8100, buffer.getShort(30) & 0xFFFF);
+        assertEquals(1, buffer.getShort(32));
+        assertEquals(0, buffer.getShort(34));
+        assertEquals(1, buffer.getShort(36));
+        // The OPT record is overwritten
+        assertEquals(0, buffer.getShort(38));
+
+        int pos = 28 + DnsQuery.HEADER_SIZE + NAME.length + 4;
+        assertEquals(0xC00C, buffer.getShort(pos) & 0xFFFF);
+        assertEquals(6, buffer.getShort(pos + 2));
+        assertEquals(DnsQuery.CLASS_IN, buffer.getShort(pos + 4));
+        assertEquals(86400, buffer.getInt(pos + 6));
+        assertEquals(22, buffer.getShort(pos + 10));
+        // Root MNAME and RNAME, serial 1, then refresh, retry, expire and minimum
+        pos += 12;
+        assertEquals(0, buffer.get(pos));
+        assertEquals(0, buffer.get(pos + 1));
+        assertEquals(1, buffer.getInt(pos + 2));
+        for (int i = 0; i < 4; i++) assertEquals(86400, buffer.getInt(pos + 6 + 4 * i));
+    }
+
+    @Test
+    public void answersNoDataOnlyWhileTheSettingIsOn() throws Exception {
+        HostsIndex.Builder builder = new HostsIndex.Builder();
+        assertTrue(builder.add("example.com", InetAddress.getByName("192.0.2.7").getAddress()));
+        HostsIndex previous = DnsChange.HOSTS_INDEX;
+        DnsChange.HOSTS_INDEX = builder.build();
+        try {
+            long nodata = Stats.counter("dns.hosts.nodata").get();
+            DnsChange.NODATA_OTHER_TYPES = true;
+            ByteBuffer buffer = DnsChange.handle_dns_packet(query(false, DnsQuery.TYPE_AAAA, false), dnsQuery);
+            assertNotNull(buffer);
+            assertEquals(0, buffer.getShort(34));
+            assertEquals(1, buffer.getShort(36));
+            assertNotNull(DnsChange.handle_dns_packet(query(false, 65, false), dnsQuery));
+            assertEquals(nodata + 2, Stats.counter("dns.hosts.nodata").get());
+
+            // Off, both go upstream as before, left as they were
+            DnsChange.NODATA_OTHER_TYPES = false;
+            Packet packet = query(false, DnsQuery.TYPE_AAAA, false);
+            int limit = packet.backingBuffer.limit();
+            assertNull(DnsChange.handle_dns_packet(packet, dnsQuery));
+            assertEquals(limit, packet.backingBuffer.limit());
+            assertEquals(0x0100, packet.backingBuffer.getShort(30));
+            assertNull(DnsChange.handle_dns_packet(query(false, 65, false), dnsQuery));
+            assertEquals(nodata + 2, Stats.counter("dns.hosts.nodata").get());
+            // The mapped family is answered either way
+            assertNotNull(DnsChange.handle_dns_packet(query(false, DnsQuery.TYPE_A, false), dnsQuery));
+        } finally {
+            DnsChange.NODATA_OTHER_TYPES = true;
+            DnsChange.HOSTS_INDEX = previous;
+        }
+    }
+
+    private static byte[] address(ByteBuffer buffer, int offset, int length) {
+        byte[] address = new byte[length];
+        for (int i = 0; i < length; i++) address[i] = buffer.get(offset + i);
+        return address;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ **Copyright (C) 2017  xfalcon
+ **
+ **This program is free software: you can redistribute it and/or modify
+ **it under the terms of the GNU General Public License as published by
+ **the Free Software Foundation, either version 3 of the License, or
+ **(at your option) any later version.
+ **
+ **This program is distributed in the hope that it will be useful,
+ **but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ **GNU General Public License for more details.
+ **
+ **You should have received a copy of the GNU General Public License
+ **along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **
+ */
+
+package com.github.xfalcon.vhosts.vservice;
+
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+
+import static org.junit.Assert.*;
+
+public class DnsUpstreamsTest {
+    private static DnsUpstreams upstreams(int count) {
+        InetSocketAddress[] addresses = new InetSocketAddress[count];
+        for (int i = 0; i < count; i++)
+            addresses[i] = new InetSocketAddress("10.0.0." + (i + 1), 53);
+        return new DnsUpstreams(addresses);
+    }
+
+    @Test
+    public void ranksByTheSmoothedRtt() {
+        DnsUpstreams upstreams = upstreams(3);
+        upstreams.answered(0, 80);
+        upstreams.answered(1, 20);
+        upstreams.answered(2, 40);
+        assertEquals(1, upstreams.first(0));
+        assertEquals(2, upstreams.second(1, 0));
+        assertEquals(-1, upstreams(1).second(0, 0));
+        assertEquals(1, upstreams.indexOf(new InetSocketAddress("10.0.0.2", 53)));
+        assertEquals(-1, upstreams.indexOf(new InetSocketAddress("10.0.0.2", 54)));
+
+        // Losing a race only ever makes a resolver look slower
+        upstreams.lost(1, 10);
+        assertEquals(20, upstreams.smoothedRtt(1));
+        for (int i = 0; i < 8; i++) upstreams.lost(1, 200);
+        assertEquals(2, upstreams.first(0));
+    }
+
+    @Test
+    public void clampsTheRaceDelay() {
+        DnsUpstreams upstreams = upstreams(2);
+        upstreams.answered(0, 1);
+        assertEquals(DnsUpstreams.MIN_RACE_DELAY, upstreams.raceDelay(0));
+        upstreams.answered(1, 5000);
+        assertEquals(DnsUpstreams.MAX_RACE_DELAY, upstreams.raceDelay(1));
+    }
+
+    @Test
+    public void passesOverAFailingResolver() {
+        DnsUpstreams upstreams = upstreams(2);
+        upstreams.answered(0, 10);
+        upstreams.answered(1, 50);
+        long breakerOpened = Stats.counter("dns.upstream.breaker_opened").get();
+        for (int i = 0; i < DnsUpstreams.FAILURE_THRESHOLD - 1; i++) upstreams.failed(0, 0);
+        assertEquals(0, upstreams.first(0));
+        upstreams.failed(0, 0);
+        assertEquals(breakerOpened + 1, Stats.counter("dns.upstream.breaker_opened").get());
+        assertEquals(1, upstreams.first(0));
+        assertEquals(1, upstreams.first(DnsUpstreams.INITIAL_OPEN_TIME - 1));
+
+        // Back for one try, and passed over twice as long when it fails it
+        long now = DnsUpstreams.INITIAL_OPEN_TIME;
+        assertEquals(0, upstreams.first(now));
+        upstreams.failed(0, now);
+        assertEquals(1, upstreams.first(now + 2 * DnsUpstreams.INITIAL_OPEN_TIME - 1));
+        now += 2 * DnsUpstreams.INITIAL_OPEN_TIME;
+        assertEquals(0, upstreams.first(now));
+        upstreams.answered(0, 10);
+        upstreams.failed(0, now);
+        assertEquals(0, upstreams.first(now));
+
+    }
+
+    @Test
+    public void triesTheFirstBackWhenAllFail() {
+        DnsUpstreams upstreams = upstreams(2);
+        for (int i = 0; i < DnsUpstreams.FAILURE_THRESHOLD; i++) {
+            upstreams.failed(1, 0);
+            upstreams.failed(0, 1);
+        }
+        assertEquals(1, upstreams.first(2));
+        assertEquals(0, upstreams.second(1, 2));
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ **Copyright (C) 2017  xfalcon
+ **
+ **This program is free software: you can redistribute it and/or modify
+ **it under the terms of the GNU General Public License as published by
+ **the Free Software Foundation, either version 3 of the License, or
+ **(at your option) any later version.
+ **
+ **This program is distributed in the hope that it will be useful,
+ **but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ **GNU General Public License for more details.
+ **
+ **You should have received a copy of the GNU General Public License
+ **along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **
+ */
+
+package com.github.xfalcon.vhosts.vservice;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FlowTableTest {
+
+    @Test
+    public void matchesHashMap() {
+        Random random = new Random(1);
+        FlowTable<String> table = new FlowTable<>(8);
+        Map<String, String> reference = new HashMap<>();
+        for (int i = 0; i < 200000; i++) {
+            // Few distinct keys, so that puts, hits and removals all collide
+            long high = random.nextInt(2) * 0x20014860L;
+            long low = random.nextInt(16);
+            long ports = FlowTable.ports(high == 0 ? 4 : 6, 53, 40000 + random.nextInt(16));
+            String key = high + ":" + low + ":" + ports;
+            if (random.nextInt(3) == 0) {
+                assertEquals(reference.remove(key), table.remove(high, low, ports));
+            } else if (random.nextBoolean()) {
+                assertEquals(reference.put(key, key + i), table.put(high, low, ports, key + i));
+            } else {
+                assertEquals(reference.get(key), table.get(high, low, ports));
+            }
+            assertEquals(reference.size(), table.size());
+        }
+    }
+
+    @Test
+    public void versionIsPartOfTheKey() {
+        FlowTable<String> table = new FlowTable<>(4);
+        // ::8.8.8.8 and 8.8.8.8 share the address words
+        table.put(0, 0x08080808L, FlowTable.ports(4, 53, 1000), "v4");
+        table.put(0, 0x08080808L, FlowTable.ports(6, 53, 1000), "v6");
+        assertEquals("v4", table.get(0, 0x08080808L, FlowTable.ports(4, 53, 1000)));
+        assertEquals("v6", table.get(0, 0x08080808L, FlowTable.ports(6, 53, 1000)));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        FlowTable<String> table = new FlowTable<>(4);
+        for (int port = 0; port < 4; port++)
+            table.put(0, 1, FlowTable.ports(4, 53, port), "flow" + port);
+        table.get(0, 1, FlowTable.ports(4, 53, 0));
+        assertEquals("flow1", table.evictEldest());
+        assertEquals("flow2", table.evictEldest());
+        assertEquals(2, table.size());
+        assertNotNull(table.get(0, 1, FlowTable.ports(4, 53, 0)));
+    }
+
+    @Test
+    public void spreadsFlowsOverShards() throws Exception {
+        int shards = 4;
+        int[] load = new int[shards];
+        ByteBuffer buffer = PacketTest.tcpPacket(false, 0);
+        for (int port = 10000; port < 14000; port++) {
+            buffer.putShort(20, (short) port);
+            buffer.position(0);
+            int shard = FlowTable.shard(new Packet(buffer), shards);
+            buffer.position(0);
+            assertEquals(shard, FlowTable.shard(new Packet(buffer), shards));
+            load[shard]++;
+        }
+        for (int flows : load)
+            assertTrue("uneven shards: " + flows, flows > 800 && flows < 1200);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ **Copyright (C) 2017  xfalcon
+ **
+ **This program is free software: you can redistribute it and/or modify
+ **it under the terms of the GNU General Public License as published by
+ **the Free Software Foundation, either version 3 of the License, or
+ **(at your option) any later version.
+ **
+ **This program is distributed in the hope that it will be useful,
+ **but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ **GNU General Public License for more details.
+ **
+ **You should have received a copy of the GNU General Public License
+ **along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **
+ */
+
+package com.github.xfalcon.vhosts.vservice;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class HostsIndexTest {
+    private static final byte[] V4 = {10, 0, 0, 1};
+    private static final byte[] SUFFIX_V4 = {10, 0, 0, 2};
+    private static final byte[] V6 = new byte[16];
+
+    private static HostsIndex index() {
+        HostsIndex.Builder builder = new HostsIndex.Builder();
+        assertTrue(builder.add("Example.COM", V4));
+        assertTrue(builder.add(".Ads.Example.org.", SUFFIX_V4));
+        assertTrue(builder.add("ipv6.EXAMPLE.net", V6));
+        return builder.build();
+    }
+
+    /**
+     * Parses a query for the name, as the packet path does.
+     */
+    private static DnsQuery query(String name, int type) {
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        buffer.putShort((short) 0x1234);
+        buffer.putShort((short) 0x0100);
+        buffer.putShort((short) 1);
+        buffer.putShort((short) 0);
+        buffer.putInt(0);
+        for (String label : name.split("\\.")) {
+            buffer.put((byte) label.length());
+            for (int i = 0; i < label.length(); i++) buffer.put((byte) label.charAt(i));
+        }
+        buffer.put((byte) 0);
+        buffer.putShort((short) type);
+        buffer.putShort((short) DnsQuery.CLASS_IN);
+        buffer.flip();
+        DnsQuery query = new DnsQuery();
+        assertTrue(query.parse(buffer, 0, buffer.limit()));
+        return query;
+    }
+
+    private static byte[] lookup(HostsIndex index, String name, boolean ipv6) {
+        byte[] fromString = index.lookup(name, ipv6);
+        byte[] fromQuery = index.lookup(query(name, ipv6 ? DnsQuery.TYPE_AAAA : DnsQuery.TYPE_A), ipv6);
+        assertSame(name, fromString, fromQuery);
+        return fromString;
+    }
+
+    @Test
+    public void matchesAnyCase() {
+        HostsIndex index = index();
+        // As written, lower case, upper case and 0x20-randomised
+        String[] names = {"example.com", "EXAMPLE.COM", "eXaMpLe.CoM", "ExAmPlE.cOm.", "Example.Com"};
+        for (String name : names)
+            assertArrayEquals(name, V4, lookup(index, name, false));
+        String[] suffixed = {"ads.example.org", "ADS.example.ORG", "x.Ads.Example.Org", "TRACK.aDs.eXaMpLe.OrG"};
+        for (String name : suffixed)
+            assertArrayEquals(name, SUFFIX_V4, lookup(index, name, false));
+        assertArrayEquals(V6, lookup(index, "IPv6.Example.NET", true));
+        assertTrue(index.contains(query("IPV6.example.net", 65)));
+    }
+
+    @Test
+    public void foldsOnlyAsciiLetters() {
+        HostsIndex index = index();
+        String[] misses = {"example.co", "xample.com", "example.com.evil", "ads.example.com",
+                "ex@mple.com", "example.c0m", "examplE.cOM.org", "ipv6.example.net"};
+        for (String name : misses)
+            assertNull(name, lookup(index, name, false));
+        // Bytes just outside A..Z are not letters to fold
+        assertNull(lookup(index, "example.coM".replace('M', '@'), false));
+        assertNull(lookup(index, "example.co[", false));
+
+        HostsIndex.Builder builder = new HostsIndex.Builder();
+        builder.add("caf\u00e9.example", V4);
+        HostsIndex latin = builder.build();
+        assertArrayEquals(V4, lookup(latin, "CAF\u00e9.example", false));
+        assertNull(lookup(latin, "CAF\u00c9.example", false));
+    }
+
+    @Test
+    public void countsEntriesOncePerSpelling() {
+        HostsIndex.Builder builder = new HostsIndex.Builder();
+        assertTrue(builder.add("example.com", V4));
+        assertTrue(builder.add("EXAMPLE.com", SUFFIX_V4));
+        assertTrue(builder.add("Example.Com", V6));
+        assertEquals(2, builder.size());
+        // The last one added wins
+        assertArrayEquals(SUFFIX_V4, builder.build().lookup("example.COM", false));
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ **Copyright (C) 2017  xfalcon
+ **
+ **This program is free software: you can redistribute it and/or modify
+ **it under the terms of the GNU General Public License as published by
+ **the Free Software Foundation, either version 3 of the License, or
+ **(at your option) any later version.
+ **
+ **This program is distributed in the hope that it will be useful,
+ **but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ **GNU General Public License for more details.
+ **
+ **You should have received a copy of the GNU General Public License
+ **along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **
+ */
+
+package com.github.xfalcon.vhosts.vservice;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Hosts index build time for 1 up to as many threads as there are cores.
+ */
+public class HostsLoaderBenchmark {
+    private static final int LINES = 1000000;
+
+    @Test
+    public void scaling() throws Exception {
+        Benchmark.assumeEnabled();
+        final ByteBuffer hosts = ByteBuffer.wrap(HostsParserTest.hostsFile(LINES));
+        int cores = Runtime.getRuntime().availableProcessors();
+        int size = new HostsLoader(1).load(hosts).size();
+        long single = 0;
+        for (int threads = 1; threads <= cores; threads++) {
+            final HostsLoader loader = new HostsLoader(threads);
+            long elapsed = Benchmark.time(1, 1, new Benchmark.Body() {
+                @Override
+                public long run(int iterations) throws Exception {
+                    return loader.load(hosts).size();
+                }
+            });
+            if (threads == 1) single = elapsed;
+            assertEquals(size, loader.load(hosts).size());
+            Benchmark.report("Hosts " + LINES + " lines, " + threads + " threads: " + elapsed / 1000000
+                    + " ms, " + single * 10 / elapsed / 10.0 + "x");
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ **Copyright (C) 2017  xfalcon
+ **
+ **This program is free software: you can redistribute it and/or modify
+ **it under the terms of the GNU General Public License as published by
+ **the Free Software Foundation, either version 3 of the License, or
+ **(at your option) any later version.
+ **
+ **This program is distributed in the hope that it will be useful,
+ **but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ **GNU General Public License for more details.
+ **
+ **You should have received a copy of the GNU General Public License
+ **along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **
+ */
+
+package com.github.xfalcon.vhosts.vservice;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class HostsLoaderTest {
+    @Test
+    public void matchesASinglePass() throws Exception {
+        byte[] hosts = HostsParserTest.hostsFile(20000);
+        HostsLoader single = new HostsLoader(1);
+        HostsIndex expected = single.load(new ByteArrayInputStream(hosts));
+        // A chunk per thread, each split off mid-line
+        HostsLoader parallel = new HostsLoader(4, 1000);
+        HostsIndex index = parallel.load(new ByteArrayInputStream(hosts));
+        assertEquals(expected.size(), index.size());
+        assertEquals(single.lines(), parallel.lines());
+        assertEquals(single.skipped(), parallel.skipped());
+        for (int i = 0; i < 20000; i++) {
+            String[] names = {"host" + i + ".example.com", "v6-" + i + ".example.net",
+                    "ads" + i + ".tracker" + i % 97 + ".example.org"};
+            for (String name : names) {
+                assertArrayEquals(name, expected.lookup(name, false), index.lookup(name, false));
+                assertArrayEquals(name, expected.lookup(name, true), index.lookup(name, true));
+            }
+        }
+    }
+
+    @Test
+    public void laterLinesWin() throws Exception {
+        StringBuilder hosts = new StringBuilder();
+        for (int i = 0; i < 100; i++)
+            hosts.append("10.0.0.").append(i).append(" same.example .wild.example host").append(i % 10).append(".example\n");
+        hosts.append("::1 same.example");
+        HostsLoader loader = new HostsLoader(3, 64);
+        HostsIndex index = loader.load(ByteBuffer.wrap(hosts.toString().getBytes("UTF-8")));
+        assertArrayEquals(new byte[]{10, 0, 0, 99}, index.lookup("same.example", false));
+        assertArrayEquals(new byte[]{10, 0, 0, 99}, index.lookup("x.wild.example", false));
+        assertArrayEquals(new byte[]{10, 0, 0, 95}, index.lookup("host5.example", false));
+        assertEquals(16, index.lookup("same.example", true).length);
+        // same.example for both families, the wildcard and ten hosts
+        assertEquals(13, index.size());
+        assertEquals(101, loader.lines());
+
+        assertEquals(0, new HostsLoader(2, 64).load(ByteBuffer.allocate(0)).size());
+    }
+
+    @Test
+    public void mapsOnlyRegularFiles() throws Exception {
+        File file = File.createTempFile("hosts", null);
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            out.write("# skipped by the mapping\n10.0.0.1 a.example\n10.0.0.2 b.example\n".getBytes("UTF-8"));
+            out.close();
+            FileInputStream in = new FileInputStream(file);
+            try {
+                // Mapped from where the stream is
+                assertEquals(25, in.skip(25));
+                HostsLoader loader = new HostsLoader(2, 16);
+                HostsIndex index = loader.load(in);
+                assertEquals(2, index.size());
+                assertEquals(2, loader.lines());
+            } finally {
+                in.close();
+            }
+        } finally {
+            assertTrue(file.delete());
+        }
+
+        // Reports a size of 0, so it is read instead
+        File proc = new File("/proc/self/status");
+        assumeTrue(proc.exists());
+        FileInputStream in = new FileInputStream(proc);
+        try {
+            HostsLoader loader = new HostsLoader(2, 16);
+            assertEquals(0, loader.load(in).size());
+            assertTrue(loader.lines() > 0);
+        } finally {
+            in.close();
+        }
+    }
+}
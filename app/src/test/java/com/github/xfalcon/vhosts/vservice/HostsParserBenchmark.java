@@ -0,0 +1,91 @@
+/*
+ **Copyright (C) 2017  xfalcon
+ **
+ **This program is free software: you can redistribute it and/or modify
+ **it under the terms of the GNU General Public License as published by
+ **the Free Software Foundation, either version 3 of the License, or
+ **(at your option) any later version.
+ **
+ **This program is distributed in the hope that it will be useful,
+ **but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ **GNU General Public License for more details.
+ **
+ **You should have received a copy of the GNU General Public License
+ **along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **
+ */
+
+package com.github.xfalcon.vhosts.vservice;
+
+import org.junit.Test;
+import org.xbill.DNS.Address;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+/**
+ * Hosts file load time against the per-line regex it replaced.
+ */
+public class HostsParserBenchmark {
+    /**
+     * What DnsChange.handle_hosts did before HostsParser.
+     */
+    private static HostsIndex regexLoad(byte[] hosts) throws Exception {
+        String STR_COMMENT = "#";
+        Pattern HOST_PATTERN = Pattern.compile("^\\s*(" + STR_COMMENT + "?)\\s*(\\S*)\\s*([^" + STR_COMMENT + "]*)" + STR_COMMENT + "?(.*)$");
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(hosts)));
+        HostsIndex.Builder builder = new HostsIndex.Builder();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.length() > 1000 || line.startsWith(STR_COMMENT)) continue;
+            Matcher matcher = HOST_PATTERN.matcher(line);
+            if (matcher.find()) {
+                String ip = matcher.group(2).trim();
+                byte[] address = Address.toByteArray(ip, ip.contains(":") ? Address.IPv6 : Address.IPv4);
+                if (address == null) continue;
+                builder.add(matcher.group(3).trim(), address);
+            }
+        }
+        return builder.build();
+    }
+
+    private static HostsIndex parserLoad(byte[] hosts) throws Exception {
+        HostsIndex.Builder builder = new HostsIndex.Builder();
+        new HostsParser(builder).parse(new ByteArrayInputStream(hosts));
+        return builder.build();
+    }
+
+    @Test
+    public void load() throws Exception {
+        Benchmark.assumeEnabled();
+        for (int lines : new int[]{100000, 1000000}) {
+            final byte[] hosts = HostsParserTest.hostsFile(lines);
+            long regexTime = Benchmark.time(1, 1, new Benchmark.Body() {
+                @Override
+                public long run(int iterations) throws Exception {
+                    return regexLoad(hosts).size();
+                }
+            });
+            long parserTime = Benchmark.time(1, 1, new Benchmark.Body() {
+                @Override
+                public long run(int iterations) throws Exception {
+                    return parserLoad(hosts).size();
+                }
+            });
+
+            HostsIndex regex = regexLoad(hosts);
+            HostsIndex parsed = parserLoad(hosts);
+            assertEquals(regex.size(), parsed.size());
+            assertArrayEquals(regex.lookup("host10.example.com", false), parsed.lookup("host10.example.com", false));
+            assertArrayEquals(regex.lookup("v6-11.example.net", true), parsed.lookup("v6-11.example.net", true));
+            Benchmark.report("Hosts " + lines + " lines: regex " + regexTime / 1000000 + " ms, parser "
+                    + parserTime / 1000000 + " ms");
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ **Copyright (C) 2017  xfalcon
+ **
+ **This program is free software: you can redistribute it and/or modify
+ **it under the terms of the GNU General Public License as published by
+ **the Free Software Foundation, either version 3 of the License, or
+ **(at your option) any later version.
+ **
+ **This program is distributed in the hope that it will be useful,
+ **but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ **GNU General Public License for more details.
+ **
+ **You should have received a copy of the GNU General Public License
+ **along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **
+ */
+
+package com.github.xfalcon.vhosts.vservice;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+
+import static org.junit.Assert.*;
+
+public class HostsParserTest {
+    // A blocklist: mostly one address, some comments, a few mapped entries
+    static byte[] hostsFile(int lines) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(lines * 32);
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            line.setLength(0);
+            if (i % 50 == 0) line.append("# section ").append(i);
+            else if (i % 10 == 0) line.append("10.").append(i >> 16 & 0xFF).append('.').append(i >> 8 & 0xFF)
+                    .append('.').append(i & 0xFF).append(" host").append(i).append(".example.com");
+            else if (i % 10 == 1) line.append("2001:db8::").append(Integer.toHexString(i & 0xFFFF))
+                    .append(" v6-").append(i).append(".example.net");
+            else line.append("0.0.0.0 ads").append(i).append(".tracker").append(i % 97).append(".example.org");
+            out.write(line.append('\n').toString().getBytes("UTF-8"));
+        }
+        return out.toByteArray();
+    }
+
+    private static HostsIndex parse(String hosts, HostsParser[] parser) throws Exception {
+        HostsIndex.Builder builder = new HostsIndex.Builder();
+        parser[0] = new HostsParser(builder);
+        parser[0].parse(new ByteArrayInputStream(hosts.getBytes("UTF-8")));
+        return builder.build();
+    }
+
+    private static byte[] ipv6(String address) {
+        byte[] bytes = address.getBytes();
+        byte[] out = new byte[16];
+        return HostsParser.parseIPv6(bytes, 0, bytes.length, out) ? out : null;
+    }
+
+    @Test
+    public void readsAddressesAndNames() throws Exception {
+        StringBuilder longLine = new StringBuilder("10.0.0.9 long.example");
+        while (longLine.length() <= HostsParser.MAX_LINE) longLine.append(" x.example");
+        String hosts = "# comment\n"
+                + "127.0.0.1\tlocalhost\n"
+                + "  10.0.0.1   a.example   b.example # trailing\r\n"
+                + "\n"
+                + "   # 10.0.0.2 commented.example\n"
+                + "10.0.0.3 .wild.example\n"
+                + "::1 ip6-localhost\n"
+                + "fe80::1%lo0 zone.example\n"
+                + "300.0.0.1 bad.example\n"
+                + "not-an-address bad.example\n"
+                + longLine + "\n"
+                + "10.0.0.4 last.example";
+        HostsParser[] parser = new HostsParser[1];
+        HostsIndex index = parse(hosts, parser);
+        assertArrayEquals(new byte[]{127, 0, 0, 1}, index.lookup("localhost", false));
+        assertArrayEquals(new byte[]{10, 0, 0, 1}, index.lookup("a.example", false));
+        assertArrayEquals(new byte[]{10, 0, 0, 1}, index.lookup("b.example", false));
+        assertNull(index.lookup("trailing", false));
+        assertNull(index.lookup("commented.example", false));
+        assertArrayEquals(new byte[]{10, 0, 0, 3}, index.lookup("x.wild.example", false));
+        assertArrayEquals(InetAddress.getByName("::1").getAddress(), index.lookup("ip6-localhost", true));
+        assertNull(index.lookup("zone.example", true));
+        assertNull(index.lookup("bad.example", false));
+        assertNull(index.lookup("long.example", false));
+        assertArrayEquals(new byte[]{10, 0, 0, 4}, index.lookup("last.example", false));
+        assertEquals(6, index.size());
+        assertEquals(12, parser[0].lines());
+        assertEquals(4, parser[0].skipped());
+    }
+
+    @Test
+    public void sharesTheAddressOfConsecutiveLines() throws Exception {
+        HostsIndex index = parse("0.0.0.0 a.example\n0.0.0.0 b.example\n", new HostsParser[1]);
+        assertSame(index.lookup("a.example", false), index.lookup("b.example", false));
+    }
+
+    @Test
+    public void parsesIPv6LikeInetAddress() throws Exception {
+        String[] valid = {"::", "::1", "1::", "2001:db8::8:800:200c:417a", "fe80::", "1:2:3:4:5:6:7:8",
+                "1:2:3:4:5:6::8", "1::3:4:5:6:7:8", "64:ff9b::1.2.3.4",
+                "1:2:3:4:5:6:1.2.3.4", "FFFF:abcd::0", "0:0:0:0:0:0:0:1"};
+        for (String address : valid)
+            assertArrayEquals(address, InetAddress.getByName(address).getAddress(), ipv6(address));
+        // InetAddress turns mapped addresses into IPv4 ones
+        assertArrayEquals(ipv6("::ffff:c000:280"), ipv6("::ffff:192.0.2.128"));
+        String[] invalid = {"", ":", ":::", "1:", ":1", "1::2::3", "12345::", "1:2:3:4:5:6:7:8:9",
+                "1:2:3:4:5:6:7::8", "g::1", "::1.2.3", "::1.2.3.4.5", "1:2:3:4:5:6:7:1.2.3.4", "::256.0.0.1",
+                "fe80::1%lo0", "1.2.3.4"};
+        for (String address : invalid)
+            assertNull(address, ipv6(address));
+    }
+
+    @Test
+    public void parsesIPv4Strictly() {
+        String[] invalid = {"", "1.2.3", "1.2.3.4.5", "256.0.0.1", "1..2.3", ".1.2.3", "1.2.3.", "0001.2.3.4", "1.2.3.a"};
+        for (String address : invalid) {
+            byte[] bytes = address.getBytes();
+            assertFalse(address, HostsParser.parseIPv4(bytes, 0, bytes.length, new byte[4], 0));
+        }
+        byte[] out = new byte[4];
+        assertTrue(HostsParser.parseIPv4("255.0.10.99".getBytes(), 0, 11, out, 0));
+        assertArrayEquals(new byte[]{(byte) 255, 0, 10, 99}, out);
+    }
+}
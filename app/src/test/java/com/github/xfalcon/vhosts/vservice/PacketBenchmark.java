@@ -0,0 +1,60 @@
+/*
+ **Copyright (C) 2017  xfalcon
+ **
+ **This program is free software: you can redistribute it and/or modify
+ **it under the terms of the GNU General Public License as published by
+ **the Free Software Foundation, either version 3 of the License, or
+ **(at your option) any later version.
+ **
+ **This program is distributed in the hope that it will be useful,
+ **but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ **GNU General Public License for more details.
+ **
+ **You should have received a copy of the GNU General Public License
+ **along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **
+ */
+
+package com.github.xfalcon.vhosts.vservice;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Parse + checksum cost per packet.
+ */
+public class PacketBenchmark {
+    private static final int WARMUP = 200000;
+    private static final int ITERATIONS = 1000000;
+
+    @Test
+    public void parseAndChecksum() throws Exception {
+        Benchmark.assumeEnabled();
+        for (boolean ipv6 : new boolean[]{false, true}) {
+            final ByteBuffer request = PacketTest.tcpPacket(ipv6, 0);
+            final ByteBuffer response = ByteBuffer.allocateDirect(ByteBufferPool.SMALL);
+            long elapsed = Benchmark.time(WARMUP, ITERATIONS, new Benchmark.Body() {
+                @Override
+                public long run(int iterations) {
+                    return PacketBenchmark.run(request, response, iterations);
+                }
+            });
+            Benchmark.report((ipv6 ? "IPv6" : "IPv4") + " parse + checksum: "
+                    + elapsed / ITERATIONS + " ns/packet");
+        }
+    }
+
+    private static long run(ByteBuffer request, ByteBuffer response, int iterations) {
+        long checksums = 0;
+        for (int i = 0; i < iterations; i++) {
+            request.position(0);
+            Packet packet = new Packet(request);
+            packet.swapSourceAndDestination();
+            packet.updateTCPBuffer(response, (byte) Packet.TCPHeader.ACK, i, i, 0);
+            checksums += response.getShort(packet.IP_TRAN_SIZE - 4);
+        }
+        return checksums;
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ **Copyright (C) 2017  xfalcon
+ **
+ **This program is free software: you can redistribute it and/or modify
+ **it under the terms of the GNU General Public License as published by
+ **the Free Software Foundation, either version 3 of the License, or
+ **(at your option) any later version.
+ **
+ **This program is distributed in the hope that it will be useful,
+ **but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ **GNU General Public License for more details.
+ **
+ **You should have received a copy of the GNU General Public License
+ **along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **
+ */
+
+
+package com.github.xfalcon.vhosts.vservice;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PacketQueueTest {
+
+    private static PacketQueue<Integer> queue(String name) {
+        return new PacketQueue<>(name, 4, PacketQueue.Policy.DROP, new PacketQueue.DropCallback<Integer>() {
+            @Override
+            public void dropped(Integer element) {
+            }
+        });
+    }
+
+    @Test
+    public void wakeupEndsAPendingPoll() throws Exception {
+        final PacketQueue<Integer> queue = queue("test.wakeup");
+        Thread waker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                queue.wakeup();
+            }
+        });
+        waker.start();
+        long start = System.nanoTime();
+        assertNull(queue.poll(Long.MAX_VALUE));
+        assertTrue(System.nanoTime() - start < 5000L * 1000000);
+        waker.join();
+
+        // Woken before it polled, and only once
+        queue.wakeup();
+        assertNull(queue.poll(5000));
+        assertTrue(queue.offer(1));
+        assertEquals(1, (int) queue.poll(5000));
+        assertNull(queue.poll(10));
+    }
+
+    @Test
+    public void dropsWhenFullAndKeepsTheHighWaterMark() {
+        PacketQueue<Integer> queue = queue("test.depth");
+        for (int i = 0; i < 4; i++) assertTrue(queue.offer(i));
+        assertFalse(queue.offer(4));
+        assertEquals(1, Stats.counter("queue.test.depth.drops").get());
+        assertEquals(0, (int) queue.poll());
+        assertTrue(queue.offer(5));
+        assertEquals(4, Stats.counter("queue.test.depth.max_depth").get());
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ **Copyright (C) 2017  xfalcon
+ **
+ **This program is free software: you can redistribute it and/or modify
+ **it under the terms of the GNU General Public License as published by
+ **the Free Software Foundation, either version 3 of the License, or
+ **(at your option) any later version.
+ **
+ **This program is distributed in the hope that it will be useful,
+ **but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ **GNU General Public License for more details.
+ **
+ **You should have received a copy of the GNU General Public License
+ **along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **
+ */
+
+package com.github.xfalcon.vhosts.vservice;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class PacketTest {
+
+    static ByteBuffer tcpPacket(boolean ipv6, int payloadSize) throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(ByteBufferPool.MTU);
+        if (ipv6) {
+            buffer.putInt(0x60000000);
+            buffer.putShort((short) (20 + payloadSize));
+            buffer.put((byte) 6);
+            buffer.put((byte) 64);
+            buffer.put(InetAddress.getByName("fd00:1:fd00:1:fd00:1:fd00:1").getAddress());
+            buffer.put(InetAddress.getByName("2001:4860:4860::8888").getAddress());
+        } else {
+            buffer.put((byte) 0x45);
+            buffer.put((byte) 0);
+            buffer.putShort((short) (40 + payloadSize));
+            buffer.putInt(0);
+            buffer.put((byte) 64);
+            buffer.put((byte) 6);
+            buffer.putShort((short) 0);
+            buffer.put(InetAddress.getByName("192.168.0.1").getAddress());
+            buffer.put(InetAddress.getByName("8.8.8.8").getAddress());
+        }
+        buffer.putShort((short) 40000);
+        buffer.putShort((short) 53);
+        buffer.putInt(1);
+        buffer.putInt(0);
+        buffer.put((byte) 0x50);
+        buffer.put((byte) Packet.TCPHeader.ACK);
+        buffer.putShort((short) 65535);
+        buffer.putInt(0);
+        for (int i = 0; i < payloadSize; i++)
+            buffer.put((byte) i);
+        buffer.flip();
+        if (!ipv6)
+            buffer.putShort(10, (short) Checksum.finish(Checksum.sum(buffer, 0, 20)));
+        return buffer;
+    }
+
+    /**
+     * One's complement sum over the pseudo-header and the segment, 0xFFFF when the checksum is right.
+     */
+    static int verify(ByteBuffer buffer, boolean ipv6) {
+        int ipHeaderSize = ipv6 ? 40 : 20;
+        int segmentLength = buffer.limit() - ipHeaderSize;
+        long sum = 6 + segmentLength;
+        int addressStart = ipv6 ? 8 : 12;
+        int addressEnd = ipv6 ? 40 : 20;
+        for (int i = addressStart; i < addressEnd; i += 2)
+            sum += buffer.getShort(i) & 0xFFFF;
+        for (int i = ipHeaderSize; i + 1 < buffer.limit(); i += 2)
+            sum += buffer.getShort(i) & 0xFFFF;
+        if ((segmentLength & 1) != 0)
+            sum += (buffer.get(buffer.limit() - 1) & 0xFF) << 8;
+        while (sum >> 16 != 0)
+            sum = (sum & 0xFFFF) + (sum >> 16);
+        return (int) sum;
+    }
+
+    @Test
+    public void addressesRoundTrip() throws Exception {
+        Packet packet = new Packet(tcpPacket(false, 0));
+        assertEquals(InetAddress.getByName("8.8.8.8"), packet.ipHeader.getDestinationAddress());
+        packet = new Packet(tcpPacket(true, 0));
+        assertEquals(InetAddress.getByName("2001:4860:4860::8888"), packet.ipHeader.getDestinationAddress());
+        packet.swapSourceAndDestination();
+        assertEquals(InetAddress.getByName("fd00:1:fd00:1:fd00:1:fd00:1"), packet.ipHeader.getDestinationAddress());
+    }
+
+    @Test
+    public void checksumIsValid() throws Exception {
+        for (boolean ipv6 : new boolean[]{false, true}) {
+            Packet packet = new Packet(tcpPacket(ipv6, 3));
+            packet.swapSourceAndDestination();
+            // Responses built one after another from the same reference packet
+            for (int payloadSize : new int[]{0, 1, 7, 100, 1001}) {
+                ByteBuffer response = ByteBuffer.allocateDirect(ByteBufferPool.MTU);
+                response.position(packet.IP_TRAN_SIZE);
+                for (int i = 0; i < payloadSize; i++)
+                    response.put((byte) (i * 7));
+                packet.updateTCPBuffer(response, (byte) Packet.TCPHeader.ACK, 5, 6, payloadSize);
+                response.limit(packet.IP_TRAN_SIZE + payloadSize);
+                assertEquals(0xFFFF, verify(response, ipv6));
+                if (!ipv6)
+                    assertEquals(0, Checksum.finish(Checksum.sum(response, 0, 20)));
+            }
+        }
+    }
+
+    @Test
+    public void ipv4ChecksumDoesNotTrustTheTemplate() throws Exception {
+        ByteBuffer request = tcpPacket(false, 0);
+        // Whatever checksum the device sent is not carried into responses
+        request.putShort(10, (short) 0x1234);
+        Packet packet = new Packet(request);
+        packet.swapSourceAndDestination();
+        for (int payloadSize : new int[]{0, 1460, 7, 0}) {
+            ByteBuffer response = ByteBuffer.allocateDirect(ByteBufferPool.MTU);
+            packet.updateTCPBuffer(response, (byte) Packet.TCPHeader.ACK, 5, 6, payloadSize);
+            assertEquals(0, Checksum.finish(Checksum.sum(response, 0, 20)));
+            // The template turned around between uses, as for a reset sent back
+            packet.swapSourceAndDestination();
+        }
+
+        // And a UDP template reused for responses of changing size
+        ByteBuffer query = tcpPacket(false, 0);
+        query.put(9, (byte) 17);
+        query.putShort(10, (short) 0);
+        Packet udp = new Packet(query);
+        for (int payloadSize : new int[]{30, 500, 12}) {
+            ByteBuffer response = ByteBuffer.allocateDirect(ByteBufferPool.MTU);
+            udp.updateUDPBuffer(response, payloadSize);
+            assertEquals(20 + 8 + payloadSize, response.getShort(2));
+            assertEquals(0, Checksum.finish(Checksum.sum(response, 0, 20)));
+        }
+    }
+}
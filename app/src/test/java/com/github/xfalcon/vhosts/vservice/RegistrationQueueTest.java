@@ -0,0 +1,86 @@
+/*
+ **Copyright (C) 2017  xfalcon
+ **
+ **This program is free software: you can redistribute it and/or modify
+ **it under the terms of the GNU General Public License as published by
+ **the Free Software Foundation, either version 3 of the License, or
+ **(at your option) any later version.
+ **
+ **This program is distributed in the hope that it will be useful,
+ **but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ **GNU General Public License for more details.
+ **
+ **You should have received a copy of the GNU General Public License
+ **along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **
+ */
+
+package com.github.xfalcon.vhosts.vservice;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class RegistrationQueueTest {
+
+    @Test
+    public void registersFromAnotherThread() throws Exception {
+        final Selector selector = Selector.open();
+        final RegistrationQueue registrations = new RegistrationQueue(selector, "test");
+        DatagramChannel receiver = DatagramChannel.open();
+        receiver.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        receiver.configureBlocking(false);
+        final AtomicReference<Object> selected = new AtomicReference<>();
+        Thread selecting = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // Blocks with nothing registered until the command wakes it up
+                    while (registrations.select() == 0) ;
+                    selected.set(selector.selectedKeys().iterator().next().attachment());
+                } catch (Exception e) {
+                    selected.set(e);
+                }
+            }
+        });
+        selecting.start();
+        Thread.sleep(100);
+        registrations.interestOps(receiver, SelectionKey.OP_READ, "receiver");
+
+        DatagramChannel sender = DatagramChannel.open();
+        sender.send(ByteBuffer.wrap(new byte[]{1}), receiver.socket().getLocalSocketAddress());
+        selecting.join(5000);
+        assertFalse(selecting.isAlive());
+        assertEquals("receiver", selected.get());
+        sender.close();
+        receiver.close();
+        selector.close();
+    }
+
+    @Test
+    public void changesInterestInOrder() throws Exception {
+        Selector selector = Selector.open();
+        RegistrationQueue registrations = new RegistrationQueue(selector, "test");
+        DatagramChannel channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        registrations.interestOps(channel, SelectionKey.OP_READ, "first");
+        registrations.interestOps(channel, 0, null);
+        registrations.interestOps(channel, SelectionKey.OP_WRITE, null);
+        // A datagram channel is always writable, so this returns at once
+        assertEquals(1, registrations.select());
+        SelectionKey key = channel.keyFor(selector);
+        assertEquals(SelectionKey.OP_WRITE, key.interestOps());
+        assertEquals("first", key.attachment());
+        channel.close();
+        selector.close();
+    }
+}
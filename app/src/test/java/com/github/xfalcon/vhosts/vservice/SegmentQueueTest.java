@@ -0,0 +1,85 @@
+/*
+ **Copyright (C) 2017  xfalcon
+ **
+ **This program is free software: you can redistribute it and/or modify
+ **it under the terms of the GNU General Public License as published by
+ **the Free Software Foundation, either version 3 of the License, or
+ **(at your option) any later version.
+ **
+ **This program is distributed in the hope that it will be useful,
+ **but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ **GNU General Public License for more details.
+ **
+ **You should have received a copy of the GNU General Public License
+ **along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **
+ */
+
+package com.github.xfalcon.vhosts.vservice;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class SegmentQueueTest {
+
+    private static ByteBuffer payload(int length, int fill) {
+        ByteBuffer buffer = ByteBuffer.allocate(length + 10);
+        for (int i = 0; i < buffer.capacity(); i++)
+            buffer.put(i, (byte) (i < 10 ? 0 : fill));
+        return buffer;
+    }
+
+    @Test
+    public void keepsSequenceOrderAcrossWrap() {
+        SegmentQueue queue = new SegmentQueue();
+        long base = 0xFFFFFF00L;
+        queue.add(base + 0x200, payload(100, 3), 10, 100);
+        queue.add(base, payload(100, 1), 10, 100);
+        queue.add(base + 0x100, payload(100, 2), 10, 100);
+        assertEquals(3, queue.size());
+        assertEquals(300, queue.bytes());
+        assertEquals(base, queue.sequenceAt(0));
+        assertEquals(0x000000000L, queue.sequenceAt(1));
+        assertEquals(0x000000100L, queue.sequenceAt(2));
+        assertEquals(2, queue.payloadAt(1).get(0));
+        assertEquals(100, queue.payloadAt(2).remaining());
+        queue.clear();
+    }
+
+    @Test
+    public void dropsRepeatedSegments() {
+        SegmentQueue queue = new SegmentQueue();
+        assertTrue(queue.add(500, payload(100, 1), 10, 100));
+        assertFalse(queue.add(500, payload(50, 1), 10, 50));
+        assertTrue(queue.add(500, payload(200, 1), 10, 200));
+        assertEquals(1, queue.size());
+        assertEquals(200, queue.bytes());
+        queue.clear();
+    }
+
+    @Test
+    public void removesWhatACumulativeAckCovers() {
+        SegmentQueue queue = new SegmentQueue();
+        for (int i = 0; i < 20; i++)
+            queue.add(1000 + i * 100, payload(100, i), 10, 100);
+        queue.removeUpTo(1150);
+        assertEquals(19, queue.size());
+        assertEquals(1100, queue.sequenceAt(0));
+        queue.removeUpTo(1300);
+        assertEquals(17, queue.size());
+        queue.removeUpTo(5000);
+        assertTrue(queue.isEmpty());
+        assertEquals(0, queue.bytes());
+    }
+
+    @Test
+    public void distanceWraps() {
+        assertEquals(16, SegmentQueue.distance(0x8, 0xFFFFFFF8L));
+        assertEquals(-16, SegmentQueue.distance(0xFFFFFFF8L, 0x8));
+        assertEquals(0, SegmentQueue.distance(0x100000005L, 5));
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ **Copyright (C) 2017  xfalcon
+ **
+ **This program is free software: you can redistribute it and/or modify
+ **it under the terms of the GNU General Public License as published by
+ **the Free Software Foundation, either version 3 of the License, or
+ **(at your option) any later version.
+ **
+ **This program is distributed in the hope that it will be useful,
+ **but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ **GNU General Public License for more details.
+ **
+ **You should have received a copy of the GNU General Public License
+ **along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **
+ */
+
+package com.github.xfalcon.vhosts.vservice;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Network to device throughput of TCPInput, with a loopback server standing
+ * in for the remote end.
+ */
+public class TCPInputBenchmark {
+    private static final int TOTAL_BYTES = 64 * 1024 * 1024;
+
+    @Test
+    public void segmentsByMss() throws Exception {
+        Benchmark.assumeEnabled();
+        for (final int mss : new int[]{536, 1460}) {
+            // Iterations are bytes relayed
+            long elapsed = Benchmark.time(8 * 1024 * 1024, TOTAL_BYTES, new Benchmark.Body() {
+                @Override
+                public long run(int total) throws Exception {
+                    return TCPInputBenchmark.run(mss, total);
+                }
+            });
+            Benchmark.report("TCPInput MSS " + mss + ": " + TOTAL_BYTES * 1000L / elapsed + " MB/s");
+        }
+    }
+
+    private static long run(int mss, int total) throws Exception {
+        TCPInputTest.Relay relay = new TCPInputTest.Relay(mss, 65535, total);
+        long expectedSequence = relay.tcb.mySequenceNum;
+        long end = expectedSequence + total;
+        try {
+            while (expectedSequence < end) {
+                ByteBuffer segment = relay.queue.take();
+                int payloadSize = segment.position() - relay.headerSize;
+                assertTrue(payloadSize > 0 && payloadSize <= mss);
+                assertEquals(expectedSequence, segment.getInt(24) & 0xFFFFFFFFL);
+                expectedSequence += payloadSize;
+                ByteBufferPool.release(segment);
+                // A device that acknowledges every segment as it arrives
+                relay.ack(expectedSequence);
+            }
+        } finally {
+            relay.close();
+        }
+        assertEquals(end, expectedSequence);
+        return expectedSequence;
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ **Copyright (C) 2017  xfalcon
+ **
+ **This program is free software: you can redistribute it and/or modify
+ **it under the terms of the GNU General Public License as published by
+ **the Free Software Foundation, either version 3 of the License, or
+ **(at your option) any later version.
+ **
+ **This program is distributed in the hope that it will be useful,
+ **but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ **GNU General Public License for more details.
+ **
+ **You should have received a copy of the GNU General Public License
+ **along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **
+ */
+
+package com.github.xfalcon.vhosts.vservice;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import static org.junit.Assert.*;
+
+public class TCPInputTest {
+
+    @Test
+    public void advertisesAndParsesMss() throws Exception {
+        Packet packet = new Packet(PacketTest.tcpPacket(false, 0));
+        packet.swapSourceAndDestination();
+        ByteBuffer synAck = ByteBuffer.allocateDirect(ByteBufferPool.SMALL);
+        packet.updateTCPBuffer(synAck, (byte) (Packet.TCPHeader.SYN | Packet.TCPHeader.ACK), 1, 2, 0,
+                packet.maxSegmentSize());
+        synAck.flip();
+        assertEquals(44, synAck.limit());
+        assertEquals(0xFFFF, PacketTest.verify(synAck, false));
+
+        Packet parsed = new Packet(synAck);
+        assertEquals(1460, parsed.tcpHeader.maxSegmentSize);
+        assertEquals(44, synAck.position());
+    }
+
+    @Test
+    public void readsNoMoreThanTheWindow() throws Exception {
+        Relay relay = new Relay(1460, 3000, 64 * 1024);
+        try {
+            for (int size : new int[]{1460, 1460, 80}) {
+                ByteBuffer segment = relay.queue.poll(5000);
+                assertNotNull(segment);
+                assertEquals(size, segment.position() - relay.headerSize);
+                ByteBufferPool.release(segment);
+            }
+            assertNull(relay.queue.poll(200));
+            assertEquals(3000, relay.tcb.bytesInFlight());
+
+            // 1000 bytes still in flight leave room for 2000 more
+            relay.ack(relay.tcb.mySequenceNum - 1000);
+            for (int size : new int[]{1460, 540}) {
+                ByteBuffer segment = relay.queue.poll(5000);
+                assertNotNull(segment);
+                assertEquals(size, segment.position() - relay.headerSize);
+                ByteBufferPool.release(segment);
+            }
+            assertNull(relay.queue.poll(200));
+        } finally {
+            relay.close();
+        }
+    }
+
+    /**
+     * TCPInput relaying a loopback server into a queue, {@link #ack(long)} plays TCPOutput's part.
+     */
+    static class Relay {
+        final ServerSocketChannel server;
+        final Thread sender;
+        final SocketChannel channel;
+        final Selector selector;
+        final RegistrationQueue registrations;
+        final TCB tcb;
+        final PacketQueue<ByteBuffer> queue;
+        final Thread input;
+        final int headerSize;
+
+        Relay(int mss, int window, final int total) throws Exception {
+            server = ServerSocketChannel.open();
+            server.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+            sender = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        SocketChannel peer = server.accept();
+                        ByteBuffer data = ByteBuffer.allocateDirect(64 * 1024);
+                        int sent = 0;
+                        while (sent < total) {
+                            data.clear();
+                            data.limit(Math.min(data.capacity(), total - sent));
+                            while (data.hasRemaining()) sent += peer.write(data);
+                        }
+                        peer.close();
+                    } catch (Exception e) {
+                        // Closed under a test that did not read everything
+                    }
+                }
+            });
+            sender.start();
+
+            channel = SocketChannel.open(server.socket().getLocalSocketAddress());
+            channel.configureBlocking(false);
+            Packet referencePacket = new Packet(PacketTest.tcpPacket(false, 0));
+            referencePacket.swapSourceAndDestination();
+            headerSize = referencePacket.IP_TRAN_SIZE;
+            tcb = new TCB("test", 0, 0, 0, 1000, 0, 1, 1000, channel, referencePacket);
+            tcb.status = TCB.TCBStatus.ESTABLISHED;
+            tcb.maxSegmentSize = mss;
+            tcb.deviceWindow = window;
+
+            selector = Selector.open();
+            registrations = new RegistrationQueue(selector, "test");
+            registrations.interestOps(channel, SelectionKey.OP_READ, tcb);
+            queue = new PacketQueue<>("test", 256, PacketQueue.Policy.BLOCK,
+                    new PacketQueue.DropCallback<ByteBuffer>() {
+                        @Override
+                        public void dropped(ByteBuffer buffer) {
+                            ByteBufferPool.release(buffer);
+                        }
+                    });
+            input = new Thread(new TCPInput(queue, registrations, 0));
+            input.start();
+        }
+
+        void ack(long acknowledgementNumber) {
+            synchronized (tcb) {
+                tcb.theirAcknowledgementNum = acknowledgementNumber & 0xFFFFFFFFL;
+                tcb.unacknowledged.removeUpTo(acknowledgementNumber);
+                if (tcb.windowFull && tcb.windowAvailable() > 0) {
+                    tcb.windowFull = false;
+                    registrations.interestOps(channel, SelectionKey.OP_READ, null);
+                }
+            }
+        }
+
+        void close() throws Exception {
+            input.interrupt();
+            input.join();
+            // Unblocks a sender still writing
+            channel.close();
+            sender.join();
+            selector.close();
+            server.close();
+            tcb.unacknowledged.clear();
+        }
+    }
+}
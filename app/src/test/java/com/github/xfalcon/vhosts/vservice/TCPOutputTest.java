@@ -0,0 +1,359 @@
+/*
+ **Copyright (C) 2017  xfalcon
+ **
+ **This program is free software: you can redistribute it and/or modify
+ **it under the terms of the GNU General Public License as published by
+ **the Free Software Foundation, either version 3 of the License, or
+ **(at your option) any later version.
+ **
+ **This program is distributed in the hope that it will be useful,
+ **but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ **GNU General Public License for more details.
+ **
+ **You should have received a copy of the GNU General Public License
+ **along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **
+ */
+
+package com.github.xfalcon.vhosts.vservice;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import static org.junit.Assert.*;
+
+public class TCPOutputTest {
+
+    private static final long DEVICE_ISN = 5000;
+    // IPv4 and TCP without options
+    private static final int HEADER_SIZE = 40;
+    // RFC 879 default, the device's SYN carries no MSS option
+    private static final int MSS = 536;
+
+    @Test
+    public void synAckStartsWhatTheDeviceAcknowledges() throws Exception {
+        Flow flow = new Flow(8192, 0);
+        try {
+            Packet synAck = flow.connect();
+            assertTrue(synAck.tcpHeader.isSYN() && synAck.tcpHeader.isACK());
+            assertEquals(DEVICE_ISN + 1, synAck.tcpHeader.acknowledgementNumber);
+            long isn = synAck.tcpHeader.sequenceNumber;
+            TCB tcb = flow.tcb();
+            synchronized (tcb) {
+                assertEquals(TCB.TCBStatus.SYN_RECEIVED, tcb.status);
+                // The SYN is all that is in flight, whatever the device's SYN carried as its ACK field
+                assertEquals(1, tcb.bytesInFlight());
+                assertEquals(8191, tcb.windowAvailable());
+            }
+
+            flow.send(Packet.TCPHeader.ACK, DEVICE_ISN + 1, isn + 1, 4096, 0);
+            synchronized (tcb) {
+                assertEquals(TCB.TCBStatus.ESTABLISHED, tcb.status);
+                assertEquals(isn + 1, tcb.theirAcknowledgementNum);
+                assertEquals(0, tcb.bytesInFlight());
+                assertEquals(4096, tcb.windowAvailable());
+            }
+        } finally {
+            flow.close();
+        }
+    }
+
+    @Test
+    public void pausesWhenTheWindowFillsAndResumesOnTheAck() throws Exception {
+        Stats.Counter resumed = Stats.counter("tcp.window.resumed");
+        Flow flow = new Flow(3000, 6000);
+        try {
+            flow.establish();
+            assertEquals(3000, flow.receive());
+            TCB tcb = flow.tcb();
+            long acknowledged;
+            synchronized (tcb) {
+                assertTrue(tcb.windowFull);
+                assertEquals(3000, tcb.bytesInFlight());
+                acknowledged = tcb.mySequenceNum;
+            }
+
+            long before = resumed.get();
+            flow.send(Packet.TCPHeader.ACK, DEVICE_ISN + 1, acknowledged, 3000, 0);
+            assertEquals(before + 1, resumed.get());
+            // TCPInput reads again at once, so only what it relayed is certain
+            assertEquals(3000, flow.receive());
+            synchronized (tcb) {
+                assertEquals(acknowledged + 3000, tcb.mySequenceNum);
+                assertEquals(3000, tcb.bytesInFlight());
+            }
+        } finally {
+            flow.close();
+        }
+    }
+
+    @Test
+    public void resendsAfterThreeDuplicateAcks() throws Exception {
+        Stats.Counter fast = Stats.counter("tcp.tx.fast_retransmitted");
+        Flow flow = new Flow(3000, 3000);
+        try {
+            long first = flow.establish() + 1;
+            assertEquals(3000, flow.receive());
+            // The first segment arrived, the second did not
+            long missing = first + MSS;
+            flow.send(Packet.TCPHeader.ACK, DEVICE_ISN + 1, missing, 3000, 0);
+
+            long before = fast.get();
+            for (int i = 1; i < TCPOutput.DUPLICATE_ACK_THRESHOLD; i++)
+                flow.send(Packet.TCPHeader.ACK, DEVICE_ISN + 1, missing, 3000, 0);
+            assertEquals(before, fast.get());
+            assertNull(flow.next());
+
+            flow.send(Packet.TCPHeader.ACK, DEVICE_ISN + 1, missing, 3000, 0);
+            assertEquals(before + 1, fast.get());
+            Packet resent = flow.next();
+            assertNotNull(resent);
+            assertEquals(missing, resent.tcpHeader.sequenceNumber);
+            assertEquals(MSS, resent.backingBuffer.limit() - HEADER_SIZE);
+            ByteBufferPool.release(resent.backingBuffer);
+
+            // Once per loss, not for every duplicate after
+            flow.send(Packet.TCPHeader.ACK, DEVICE_ISN + 1, missing, 3000, 0);
+            assertEquals(before + 1, fast.get());
+            assertNull(flow.next());
+        } finally {
+            flow.close();
+        }
+    }
+
+    @Test
+    public void retransmissionTimeoutDoublesUpToTheMaximum() throws Exception {
+        Stats.Counter retransmitted = Stats.counter("tcp.tx.retransmitted");
+        Flow flow = new Flow(3000, 3000);
+        try {
+            long first = flow.establish() + 1;
+            assertEquals(3000, flow.receive());
+            TCB tcb = flow.tcb();
+            long now;
+            synchronized (tcb) {
+                assertEquals(TCPOutput.INITIAL_RETRANSMIT_TIMEOUT, tcb.retransmitTimeout);
+                now = tcb.lastAckProgress;
+            }
+
+            long timeout = TCPOutput.INITIAL_RETRANSMIT_TIMEOUT;
+            // 1, 2, 4, 8, 16, 32, then held at 60 seconds
+            for (int i = 0; i < 8; i++) {
+                long before = retransmitted.get();
+                flow.output.advance(now + timeout - 1);
+                assertEquals(before, retransmitted.get());
+
+                now += timeout + TCPOutput.TICK_MILLIS;
+                flow.output.advance(now);
+                assertEquals(before + 1, retransmitted.get());
+                Packet resent = flow.next();
+                assertNotNull(resent);
+                assertEquals(first, resent.tcpHeader.sequenceNumber);
+                ByteBufferPool.release(resent.backingBuffer);
+
+                timeout = Math.min(timeout * 2, TCPOutput.MAX_RETRANSMIT_TIMEOUT);
+                synchronized (tcb) {
+                    assertEquals(timeout, tcb.retransmitTimeout);
+                }
+            }
+            assertEquals(TCPOutput.MAX_RETRANSMIT_TIMEOUT, timeout);
+        } finally {
+            flow.close();
+        }
+    }
+
+    @Test
+    public void fullAckCancelsTheRetransmitTimer() throws Exception {
+        Stats.Counter retransmitted = Stats.counter("tcp.tx.retransmitted");
+        Flow flow = new Flow(3000, 3000);
+        try {
+            long first = flow.establish() + 1;
+            assertEquals(3000, flow.receive());
+            TCB tcb = flow.tcb();
+            long now = TimerWheel.now();
+            flow.output.advance(now);
+            assertTrue(tcb.retransmitTimer.isScheduled());
+
+            flow.send(Packet.TCPHeader.ACK, DEVICE_ISN + 1, first + MSS, 3000, 0);
+            assertTrue(tcb.retransmitTimer.isScheduled());
+            synchronized (tcb) {
+                assertEquals(TCPOutput.INITIAL_RETRANSMIT_TIMEOUT, tcb.retransmitTimeout);
+            }
+
+            flow.send(Packet.TCPHeader.ACK, DEVICE_ISN + 1, first + 3000, 3000, 0);
+            assertFalse(tcb.retransmitTimer.isScheduled());
+            long before = retransmitted.get();
+            flow.output.advance(now + TCPOutput.MAX_RETRANSMIT_TIMEOUT);
+            assertEquals(before, retransmitted.get());
+            assertNull(flow.next());
+        } finally {
+            flow.close();
+        }
+    }
+
+    /**
+     * TCPOutput driven packet by packet for a device connecting to a loopback
+     * server, with TCPInput relaying what the server sends.
+     */
+    static class Flow {
+        final ServerSocketChannel server;
+        final Thread sender;
+        final Selector selector;
+        final RegistrationQueue registrations;
+        final PacketQueue<Packet> inputQueue;
+        final PacketQueue<ByteBuffer> queue;
+        final TCPOutput output;
+        final Thread input;
+        final int window;
+        final int port;
+
+        Flow(int window, final int total) throws Exception {
+            this.window = window;
+            server = ServerSocketChannel.open();
+            server.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+            port = server.socket().getLocalPort();
+            sender = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        SocketChannel peer = server.accept();
+                        ByteBuffer data = ByteBuffer.allocateDirect(total);
+                        while (data.hasRemaining()) peer.write(data);
+                        // Open until the test is done, an end of stream would close the flow
+                        peer.read(ByteBuffer.allocate(1));
+                        peer.close();
+                    } catch (Exception e) {
+                        // Closed under a test that did not read everything
+                    }
+                }
+            });
+            sender.start();
+
+            selector = Selector.open();
+            registrations = new RegistrationQueue(selector, "test");
+            inputQueue = new PacketQueue<>("test", 16, PacketQueue.Policy.BLOCK, null);
+            queue = new PacketQueue<>("test", 256, PacketQueue.Policy.BLOCK,
+                    new PacketQueue.DropCallback<ByteBuffer>() {
+                        @Override
+                        public void dropped(ByteBuffer buffer) {
+                            ByteBufferPool.release(buffer);
+                        }
+                    });
+            output = new TCPOutput(inputQueue, queue, registrations, null, 0, 16) {
+                @Override
+                SocketChannel openChannel() throws IOException {
+                    // Nothing to protect without a VPN
+                    SocketChannel channel = SocketChannel.open();
+                    channel.configureBlocking(false);
+                    return channel;
+                }
+            };
+            input = new Thread(new TCPInput(queue, registrations, 0));
+            input.start();
+        }
+
+        /**
+         * A segment from the device, handled by TCPOutput before this returns
+         */
+        void send(int flags, long sequenceNumber, long acknowledgementNumber, int window, int payloadSize)
+                throws Exception {
+            ByteBuffer buffer = segment(flags, sequenceNumber, acknowledgementNumber, window, payloadSize);
+            output.process(new Packet(buffer), TimerWheel.now());
+        }
+
+        /**
+         * The device's SYN, carrying a stale ACK field as some stacks do
+         *
+         * @return the SYN-ACK
+         */
+        Packet connect() throws Exception {
+            send(Packet.TCPHeader.SYN, DEVICE_ISN, 0xDEADBEEFL, window, 0);
+            ByteBuffer buffer = queue.poll(5000);
+            assertNotNull(buffer);
+            buffer.flip();
+            Packet synAck = new Packet(buffer);
+            assertEquals(0xFFFF, PacketTest.verify(buffer, false));
+            return synAck;
+        }
+
+        /**
+         * @return the SYN-ACK's sequence number
+         */
+        long establish() throws Exception {
+            Packet synAck = connect();
+            long isn = synAck.tcpHeader.sequenceNumber;
+            ByteBufferPool.release(synAck.backingBuffer);
+            send(Packet.TCPHeader.ACK, DEVICE_ISN + 1, isn + 1, window, 0);
+            return isn;
+        }
+
+        TCB tcb() throws Exception {
+            Packet packet = new Packet(segment(Packet.TCPHeader.ACK, 0, 0, 0, 0));
+            return output.flow(packet.ipHeader.destinationHigh, packet.ipHeader.destinationLow,
+                    FlowTable.ports(packet));
+        }
+
+        /**
+         * @return the next segment to the device, or null if none comes
+         */
+        Packet next() throws Exception {
+            ByteBuffer buffer = queue.poll(200);
+            if (buffer == null) return null;
+            buffer.flip();
+            return new Packet(buffer);
+        }
+
+        /**
+         * @return the payload bytes relayed until nothing more comes
+         */
+        int receive() throws Exception {
+            int received = 0;
+            ByteBuffer segment;
+            while ((segment = queue.poll(500)) != null) {
+                received += segment.position() - HEADER_SIZE;
+                ByteBufferPool.release(segment);
+            }
+            return received;
+        }
+
+        ByteBuffer segment(int flags, long sequenceNumber, long acknowledgementNumber, int window,
+                           int payloadSize) throws Exception {
+            ByteBuffer buffer = PacketTest.tcpPacket(false, payloadSize);
+            // From 10.0.0.2 to the server
+            buffer.putInt(12, 0x0A000002);
+            buffer.putInt(16, 0x7F000001);
+            buffer.putShort(10, (short) 0);
+            buffer.putShort(10, (short) Checksum.finish(Checksum.sum(buffer, 0, 20)));
+            buffer.putShort(22, (short) port);
+            buffer.putInt(24, (int) sequenceNumber);
+            buffer.putInt(28, (int) acknowledgementNumber);
+            buffer.put(33, (byte) flags);
+            buffer.putShort(34, (short) window);
+            return buffer;
+        }
+
+        void close() throws Exception {
+            input.interrupt();
+            input.join();
+            TCB tcb = tcb();
+            if (tcb != null) {
+                tcb.channel.close();
+                tcb.unacknowledged.clear();
+            }
+            server.close();
+            sender.interrupt();
+            sender.join();
+            selector.close();
+            ByteBuffer buffer;
+            while ((buffer = queue.poll()) != null)
+                ByteBufferPool.release(buffer);
+        }
+    }
+}
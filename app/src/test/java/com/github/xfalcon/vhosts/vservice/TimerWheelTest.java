@@ -0,0 +1,156 @@
+/*
+ **Copyright (C) 2017  xfalcon
+ **
+ **This program is free software: you can redistribute it and/or modify
+ **it under the terms of the GNU General Public License as published by
+ **the Free Software Foundation, either version 3 of the License, or
+ **(at your option) any later version.
+ **
+ **This program is distributed in the hope that it will be useful,
+ **but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ **GNU General Public License for more details.
+ **
+ **You should have received a copy of the GNU General Public License
+ **along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **
+ */
+
+package com.github.xfalcon.vhosts.vservice;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TimerWheelTest {
+
+    private static class RecordingTimer extends TimerWheel.Timer {
+        long firedAt = -1;
+
+        @Override
+        protected void expired(long now) {
+            firedAt = now;
+        }
+    }
+
+    @Test
+    public void firesWithinOneTickOfTheDeadline() {
+        Random random = new Random(1);
+        long start = 100000;
+        TimerWheel wheel = new TimerWheel(100, 16, start);
+        List<RecordingTimer> timers = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            RecordingTimer timer = new RecordingTimer();
+            // Up to several turns of the wheel away
+            wheel.schedule(timer, start + random.nextInt(10000));
+            timers.add(timer);
+        }
+        for (long now = start; now <= start + 10100; now += 1 + random.nextInt(150))
+            wheel.advance(now);
+        assertEquals(0, wheel.size());
+        for (RecordingTimer timer : timers) {
+            assertTrue(timer.firedAt >= timer.deadline());
+            assertTrue(timer.firedAt < timer.deadline() + 250);
+        }
+    }
+
+    @Test
+    public void cancelledTimersDoNotFire() {
+        TimerWheel wheel = new TimerWheel(100, 16, 0);
+        RecordingTimer timer = new RecordingTimer();
+        wheel.schedule(timer, 500);
+        wheel.cancel(timer);
+        assertFalse(timer.isScheduled());
+        wheel.advance(1000);
+        assertEquals(-1, timer.firedAt);
+    }
+
+    @Test
+    public void expiredTimerCanScheduleItselfAgain() {
+        final TimerWheel wheel = new TimerWheel(100, 16, 0);
+        final int[] fired = new int[1];
+        TimerWheel.Timer timer = new TimerWheel.Timer() {
+            @Override
+            protected void expired(long now) {
+                if (++fired[0] < 3) wheel.schedule(this, now + 50);
+            }
+        };
+        wheel.schedule(timer, 100);
+        for (long now = 0; now <= 1000; now += 100)
+            wheel.advance(now);
+        assertEquals(3, fired[0]);
+    }
+
+    @Test
+    public void nextDeadlineIsWhenAdvanceFiresTheFirstTimer() {
+        TimerWheel wheel = new TimerWheel(100, 16, 0);
+        assertEquals(Long.MAX_VALUE, wheel.nextDeadline());
+        RecordingTimer far = new RecordingTimer();
+        // Two turns away, in the same slot as the near one
+        wheel.schedule(far, 3450);
+        assertEquals(1600, wheel.nextDeadline());
+        RecordingTimer near = new RecordingTimer();
+        wheel.schedule(near, 250);
+        assertEquals(300, wheel.nextDeadline());
+
+        wheel.advance(wheel.nextDeadline() - 1);
+        assertEquals(-1, near.firedAt);
+        wheel.advance(wheel.nextDeadline());
+        assertEquals(300, near.firedAt);
+        wheel.cancel(far);
+        assertEquals(Long.MAX_VALUE, wheel.nextDeadline());
+    }
+
+    /**
+     * Two timers in one slot, the first of which acts on the second when it fires.
+     */
+    private static RecordingTimer[] sameSlot(TimerWheel wheel, final boolean reschedule) {
+        final RecordingTimer second = new RecordingTimer();
+        final TimerWheel owner = wheel;
+        RecordingTimer first = new RecordingTimer() {
+            @Override
+            protected void expired(long now) {
+                super.expired(now);
+                if (reschedule) owner.schedule(second, now + 1000);
+                else owner.cancel(second);
+            }
+        };
+        // Walked head first, so the later scheduled fires first
+        wheel.schedule(second, 500);
+        wheel.schedule(first, 450);
+        return new RecordingTimer[]{first, second};
+    }
+
+    @Test
+    public void callbackCanCancelATimerInItsSlot() {
+        TimerWheel wheel = new TimerWheel(100, 16, 0);
+        RecordingTimer[] timers = sameSlot(wheel, false);
+        wheel.advance(600);
+        assertEquals(600, timers[0].firedAt);
+        assertEquals(-1, timers[1].firedAt);
+        assertFalse(timers[1].isScheduled());
+        assertEquals(0, wheel.size());
+        wheel.advance(5000);
+        assertEquals(-1, timers[1].firedAt);
+    }
+
+    @Test
+    public void callbackCanRescheduleATimerInItsSlot() {
+        TimerWheel wheel = new TimerWheel(100, 16, 0);
+        RecordingTimer[] timers = sameSlot(wheel, true);
+        wheel.advance(600);
+        assertEquals(600, timers[0].firedAt);
+        assertEquals(-1, timers[1].firedAt);
+        assertEquals(1, wheel.size());
+        assertEquals(1600, wheel.nextDeadline());
+        wheel.advance(1599);
+        assertEquals(-1, timers[1].firedAt);
+        wheel.advance(1600);
+        assertEquals(1600, timers[1].firedAt);
+        assertEquals(0, wheel.size());
+    }
+}